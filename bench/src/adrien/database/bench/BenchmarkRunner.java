@@ -0,0 +1,29 @@
+package adrien.database.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Run the benchmarks matching the first argument (all of them by default) and
+// write the results as JSON in the file given as second argument, so that they
+// can be compared with the ones of another commit.
+public class BenchmarkRunner {
+
+	public static void main(String[] arguments) throws RunnerException {
+		String include = arguments.length > 0 ? arguments[0] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark";
+		String resultFile = arguments.length > 1 ? arguments[1] : "bench-results.json";
+
+		Options options = new OptionsBuilder()
+				.include(include)
+				.forks(1)
+				.warmupIterations(5)
+				.measurementIterations(10)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile)
+				.build();
+		new Runner(options).run();
+	}
+
+}
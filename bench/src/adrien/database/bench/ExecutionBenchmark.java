@@ -0,0 +1,93 @@
+package adrien.database.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import adrien.database.IncludeResolver;
+import adrien.database.ScriptExecutor;
+import adrien.database.StatementExecutor;
+import adrien.database.bench.ScriptGenerator.Shape;
+import adrien.database.jdbc.BatchingJDBCStatementExecutor;
+import adrien.database.jdbc.JDBCStatementExecutor;
+
+// Run generated scripts end to end against an in-memory database. The H2
+// driver is expected on the class path by default, any other embedded
+// database can be given through the url parameter.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExecutionBenchmark {
+
+	public static enum Executor {
+
+		PLAIN, BATCHING;
+
+	}
+
+	@Param({ "jdbc:h2:mem:bench" })
+	public String url;
+
+	// PL/SQL blocks need a database which understands them (-p shape=PLSQL).
+	@Param({ "DML" })
+	public Shape shape;
+
+	@Param({ "PLAIN", "BATCHING" })
+	public Executor executor;
+
+	@Param({ "1000" })
+	public int statementCount;
+
+	private String script;
+
+	private Connection connection;
+
+	// Shared by the invocations, it starts a thread pool.
+	private IncludeResolver includeResolver;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		script = ScriptGenerator.generate(shape, statementCount);
+		connection = DriverManager.getConnection(url);
+		includeResolver = new IncludeResolver();
+	}
+
+	@TearDown(Level.Invocation)
+	public void dropTable() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute("DROP TABLE bench");
+		} finally {
+			statement.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+
+	@Benchmark
+	public void executeScript() throws IOException, SQLException {
+		StatementExecutor statementExecutor = executor == Executor.BATCHING
+				? BatchingJDBCStatementExecutor.forConnection(connection)
+				: JDBCStatementExecutor.forConnection(connection);
+		new ScriptExecutor(statementExecutor, includeResolver).executeScript(new StringReader(script));
+	}
+
+}
@@ -0,0 +1,83 @@
+package adrien.database.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import adrien.database.IncludeResolver;
+import adrien.database.ScriptCache;
+import adrien.database.ScriptExecutor;
+
+import com.google.common.io.Files;
+
+// Parse deep include trees, from the files and from the script cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IncludeBenchmark {
+
+	@Param({ "1", "4", "16" })
+	public int depth;
+
+	@Param({ "1", "2" })
+	public int fanOut;
+
+	@Param({ "10" })
+	public int statementCount;
+
+	private File directory;
+
+	private File rootScript;
+
+	private ScriptCache scriptCache = new ScriptCache();
+
+	// Shared by the invocations, it starts a thread pool.
+	private IncludeResolver includeResolver;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// A fan-out of 2 over 16 levels would write too many files.
+		int actualDepth = fanOut > 1 ? Math.min(depth, 8) : depth;
+		directory = Files.createTempDir();
+		rootScript = ScriptGenerator.writeIncludeTree(directory, actualDepth, fanOut, statementCount);
+		includeResolver = new IncludeResolver();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] scriptFiles = directory.listFiles();
+		for (File scriptFile : scriptFiles == null ? new File[0] : scriptFiles) {
+			scriptFile.delete();
+		}
+		directory.delete();
+	}
+
+	// The included scripts are read from the files again.
+	@Benchmark
+	public void parse(Blackhole blackhole) throws IOException, SQLException {
+		includeResolver.clear();
+		ScriptExecutor scriptExecutor = new ScriptExecutor(new NullStatementExecutor(blackhole), includeResolver);
+		scriptExecutor.executeScript(rootScript);
+	}
+
+	@Benchmark
+	public void parseCached(Blackhole blackhole) throws IOException, SQLException {
+		ScriptExecutor scriptExecutor = new ScriptExecutor(new NullStatementExecutor(blackhole), includeResolver);
+		scriptExecutor.setScriptCache(scriptCache);
+		scriptExecutor.executeScript(rootScript);
+	}
+
+}
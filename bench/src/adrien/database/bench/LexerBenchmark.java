@@ -0,0 +1,66 @@
+package adrien.database.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import adrien.database.IncludeResolver;
+import adrien.database.ScriptExecutor;
+import adrien.database.ScriptLexer;
+import adrien.database.bench.ScriptGenerator.Shape;
+
+import com.google.common.base.Splitter;
+
+// Classify the lines of generated scripts, alone and as part of the parsing.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LexerBenchmark {
+
+	@Param({ "DML", "PLSQL", "COMMENTS" })
+	public Shape shape;
+
+	@Param({ "1000" })
+	public int statementCount;
+
+	private String script;
+
+	private List<String> lines;
+
+	private ScriptLexer lexer = new ScriptLexer(";", ".");
+
+	// Shared by the invocations, it starts a thread pool.
+	private IncludeResolver includeResolver = new IncludeResolver();
+
+	@Setup
+	public void setUp() {
+		script = ScriptGenerator.generate(shape, statementCount);
+		lines = Splitter.on('\n').trimResults().splitToList(script);
+	}
+
+	@Benchmark
+	public void classify(Blackhole blackhole) {
+		for (String line : lines) {
+			blackhole.consume(lexer.classify(line));
+		}
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) throws IOException, SQLException {
+		ScriptExecutor scriptExecutor = new ScriptExecutor(new NullStatementExecutor(blackhole), includeResolver);
+		scriptExecutor.executeScript(new StringReader(script));
+	}
+
+}
@@ -0,0 +1,25 @@
+package adrien.database.bench;
+
+import java.sql.SQLException;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import adrien.database.StatementExecutor;
+
+// Consume the statements without executing them, to measure the parsing only.
+public class NullStatementExecutor implements StatementExecutor {
+
+	private Blackhole blackhole;
+
+	public NullStatementExecutor(Blackhole blackhole) {
+		super();
+
+		this.blackhole = blackhole;
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		blackhole.consume(sql);
+	}
+
+}
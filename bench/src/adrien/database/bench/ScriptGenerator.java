@@ -0,0 +1,101 @@
+package adrien.database.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Generate the scripts the benchmarks run.
+public class ScriptGenerator {
+
+	public static enum Shape {
+
+		// Single-line INSERT statements.
+		DML,
+
+		// PL/SQL blocks with a few statements each.
+		PLSQL,
+
+		// As many comment lines as statements.
+		COMMENTS;
+
+	}
+
+	public static String generate(Shape shape, int statementCount) {
+		StringBuilder script = new StringBuilder();
+		script.append("CREATE TABLE bench (id INT, name VARCHAR(64));\n");
+		for (int i = 0; i < statementCount; i++) {
+			switch (shape) {
+				case DML:
+					appendInsert(script, i);
+					break;
+
+				case PLSQL:
+					script.append("BEGIN\n");
+					script.append("  UPDATE bench SET name = 'block ").append(i).append("' WHERE id = ").append(i).append(";\n");
+					script.append("  DELETE FROM bench WHERE id < 0;\n");
+					script.append("END;\n");
+					script.append("/\n");
+					break;
+
+				case COMMENTS:
+					script.append("-- Comment before the statement ").append(i).append('\n');
+					script.append("# Another comment style\n");
+					script.append("// And the last one\n");
+					appendInsert(script, i);
+					break;
+
+				default:
+					throw new IllegalStateException();
+			}
+		}
+		return script.toString();
+	}
+
+	private static void appendInsert(StringBuilder script, int i) {
+		script.append("INSERT INTO bench (id, name) VALUES (").append(i).append(", 'row ").append(i).append("');\n");
+	}
+
+	// Return a statement referencing the given number of distinct variables.
+	public static String statementWithVariables(int variableCount) {
+		StringBuilder statement = new StringBuilder("INSERT INTO bench (id, name) VALUES (1, 'literal part'");
+		for (int i = 0; i < variableCount; i++) {
+			statement.append(", '&var").append(i).append("'");
+		}
+		statement.append(")");
+		return statement.toString();
+	}
+
+	// Write an include tree of the given depth and fan-out in the directory,
+	// each script holding a few statements before including its children with
+	// @@, and return the root script.
+	public static File writeIncludeTree(File directory, int depth, int fanOut, int statementCount) throws IOException {
+		return writeIncludeTree(directory, "root", depth, fanOut, statementCount);
+	}
+
+	private static File writeIncludeTree(File directory, String name, int depth, int fanOut, int statementCount) throws IOException {
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < statementCount; i++) {
+			appendInsert(script, i);
+		}
+		if (depth > 0) {
+			for (int i = 0; i < fanOut; i++) {
+				String childName = name + "_" + i;
+				writeIncludeTree(directory, childName, depth - 1, fanOut, statementCount);
+				script.append("@@").append(childName).append(".sql\n");
+			}
+		}
+
+		File scriptFile = new File(directory, name + ".sql");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(scriptFile), StandardCharsets.UTF_8);
+		try {
+			writer.write(script.toString());
+		} finally {
+			writer.close();
+		}
+		return scriptFile;
+	}
+
+}
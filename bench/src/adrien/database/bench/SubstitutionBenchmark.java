@@ -0,0 +1,58 @@
+package adrien.database.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import adrien.database.ScriptExecutor.Option;
+import adrien.database.SubstitutionSyntax;
+import adrien.database.SubstitutionTemplate;
+
+import com.google.common.collect.Maps;
+
+// Substitute the variables of a statement, with and without a template
+// compiled beforehand.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SubstitutionBenchmark {
+
+	@Param({ "0", "10", "100" })
+	public int variableCount;
+
+	private SubstitutionSyntax syntax = new SubstitutionSyntax(Option.DEFINE.getDefaultValue(), Option.CONCAT.getDefaultValue(), Option.ESCAPE.getDefaultValue());
+
+	private Map<String, String> variables = Maps.newHashMap();
+
+	private String statement;
+
+	private SubstitutionTemplate template;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < variableCount; i++) {
+			variables.put("var" + i, "value " + i);
+		}
+		statement = ScriptGenerator.statementWithVariables(variableCount);
+		template = syntax.compile(statement);
+	}
+
+	@Benchmark
+	public String substituteVariables() {
+		return syntax.compile(statement).expand(variables);
+	}
+
+	@Benchmark
+	public String expand() {
+		return template.expand(variables);
+	}
+
+}
@@ -0,0 +1,17 @@
+package adrien.database;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+// A statement executor which keeps several statements in flight. The returned
+// future completes with the number of rows affected (UNKNOWN when it is not
+// known), or fails with the SQLException raised by the statement.
+//
+// The statements are applied in the order they are submitted, and their
+// futures complete in that order: a statement is never applied before the
+// ones submitted earlier. The script executor relies on it to count the
+// committed statements and to write them to the journal as they complete.
+public interface AsyncStatementExecutor extends StatementExecutor {
+
+	ListenableFuture<Long> submitStatement(String sql);
+
+}
@@ -0,0 +1,16 @@
+package adrien.database;
+
+import java.sql.SQLException;
+
+// A statement executor which may defer the execution of some statements until
+// it is flushed.
+public interface BatchStatementExecutor extends StatementExecutor {
+
+	void setBatchSize(int batchSize) throws SQLException;
+
+	int getBatchSize();
+
+	// Execute all the deferred statements.
+	void flush() throws SQLException;
+
+}
@@ -0,0 +1,321 @@
+package adrien.database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import adrien.database.ScriptExecutor.Option;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+// A script parsed once and for all: the statements (not substituted yet) and
+// the directives to replay, in order, with the @@ includes inlined. It is only
+// valid for the settings it has been compiled with and as long as none of its
+// files has been modified.
+public final class CompiledScript {
+
+	final private static int MAGIC = 0x53514C43;
+
+	final private static int VERSION = 4;
+
+	public static enum Type {
+
+		STATEMENT, SET, DEFINE, INCLUDE, SPOOL;
+
+	}
+
+	public static final class Directive {
+
+		final private static int[] NO_SUBSTITUTION_POINTS = new int[0];
+
+		private final Type type;
+
+		private final String text;
+
+		private final Option option;
+
+		private final int[] substitutionPoints;
+
+		private final String source;
+
+		private final int line;
+
+		// The statement compiled with the last syntax it has been substituted
+		// with.
+		private volatile SubstitutionTemplate template;
+
+		private Directive(Type type, String text, Option option, int[] substitutionPoints, String source, int line) {
+			super();
+
+			this.type = type;
+			this.text = text;
+			this.option = option;
+			this.substitutionPoints = substitutionPoints;
+			this.source = source;
+			this.line = line;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		// Return the SQL, the DEFINE line, the included file path or the SET
+		// value (null for the default one).
+		public String getText() {
+			return text;
+		}
+
+		public Option getOption() {
+			return option;
+		}
+
+		// Return the offsets of the substitution variable prefix in the statement.
+		public int[] getSubstitutionPoints() {
+			return substitutionPoints.clone();
+		}
+
+		// Return the script file the statement comes from (null for a stream).
+		public String getSource() {
+			return source;
+		}
+
+		// Return the line of the script where the statement starts.
+		public int getLine() {
+			return line;
+		}
+
+		public boolean hasSubstitutionPoints() {
+			return substitutionPoints.length > 0;
+		}
+
+		// The substitution points are those of the prefix the script has been
+		// compiled with, which the replayed SET directives bring back.
+		public SubstitutionTemplate getTemplate(SubstitutionSyntax syntax) {
+			SubstitutionTemplate template = this.template;
+			if (template == null || !template.getSyntax().equals(syntax)) {
+				template = syntax.compile(text, substitutionPoints);
+				this.template = template;
+			}
+			return template;
+		}
+
+		public static Directive statement(String sql, int[] substitutionPoints, String source, int line) {
+			return new Directive(Type.STATEMENT, sql, null, substitutionPoints, source, line);
+		}
+
+		public static Directive set(Option option, String value) {
+			return new Directive(Type.SET, value, option, NO_SUBSTITUTION_POINTS, null, 0);
+		}
+
+		public static Directive define(String line) {
+			return new Directive(Type.DEFINE, line, null, NO_SUBSTITUTION_POINTS, null, 0);
+		}
+
+		public static Directive spool(String line) {
+			return new Directive(Type.SPOOL, line, null, NO_SUBSTITUTION_POINTS, null, 0);
+		}
+
+		public static Directive include(File scriptFile) {
+			return new Directive(Type.INCLUDE, scriptFile.getPath(), null, NO_SUBSTITUTION_POINTS, null, 0);
+		}
+
+	}
+
+	private final String settings;
+
+	private final Map<File, Long> dependencies;
+
+	private final List<Directive> directives;
+
+	public CompiledScript(String settings, Map<File, Long> dependencies, List<Directive> directives) {
+		super();
+
+		this.settings = settings;
+		this.dependencies = ImmutableMap.copyOf(dependencies);
+		this.directives = ImmutableList.copyOf(directives);
+	}
+
+	public String getSettings() {
+		return settings;
+	}
+
+	// Return the last modification time of every file the script was compiled
+	// from, the script itself included.
+	public Map<File, Long> getDependencies() {
+		return dependencies;
+	}
+
+	public List<Directive> getDirectives() {
+		return Collections.unmodifiableList(directives);
+	}
+
+	public boolean isValidFor(String settings) {
+		if (!this.settings.equals(settings)) {
+			return false;
+		}
+		for (Map.Entry<File, Long> dependency : dependencies.entrySet()) {
+			if (dependency.getKey().lastModified() != dependency.getValue().longValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Write the script in a compact binary format: variable-length integers,
+	// UTF-8 strings prefixed by their length and delta-encoded substitution
+	// points.
+	public void writeTo(DataOutput output) throws IOException {
+		output.writeInt(MAGIC);
+		writeVarInt(output, VERSION);
+		writeString(output, settings);
+
+		writeVarInt(output, dependencies.size());
+		for (Map.Entry<File, Long> dependency : dependencies.entrySet()) {
+			writeString(output, dependency.getKey().getPath());
+			output.writeLong(dependency.getValue());
+		}
+
+		// The sources of the statements are written once, and referenced by
+		// their index (starting at 1, 0 standing for no source).
+		List<String> sources = Lists.newArrayList();
+		for (Directive directive : directives) {
+			if (directive.source != null && !sources.contains(directive.source)) {
+				sources.add(directive.source);
+			}
+		}
+		writeVarInt(output, sources.size());
+		for (String source : sources) {
+			writeString(output, source);
+		}
+
+		writeVarInt(output, directives.size());
+		for (Directive directive : directives) {
+			output.writeByte(directive.type.ordinal());
+			switch (directive.type) {
+				case SET:
+					output.writeByte(directive.option.ordinal());
+					output.writeBoolean(directive.text != null);
+					if (directive.text != null) {
+						writeString(output, directive.text);
+					}
+					break;
+
+				case STATEMENT:
+					writeString(output, directive.text);
+					writeVarInt(output, directive.substitutionPoints.length);
+					int previous = 0;
+					for (int substitutionPoint : directive.substitutionPoints) {
+						writeVarInt(output, substitutionPoint - previous);
+						previous = substitutionPoint;
+					}
+					writeVarInt(output, directive.source == null ? 0 : sources.indexOf(directive.source) + 1);
+					writeVarInt(output, directive.line);
+					break;
+
+				default:
+					writeString(output, directive.text);
+			}
+		}
+	}
+
+	public static CompiledScript readFrom(DataInput input) throws IOException {
+		if (input.readInt() != MAGIC || readVarInt(input) != VERSION) {
+			throw new IOException("Not a compiled script, or compiled by another version");
+		}
+		String settings = readString(input);
+
+		int dependencyCount = readVarInt(input);
+		ImmutableMap.Builder<File, Long> dependencies = ImmutableMap.builder();
+		for (int i = 0; i < dependencyCount; i++) {
+			dependencies.put(new File(readString(input)), input.readLong());
+		}
+
+		String[] sources = new String[readVarInt(input) + 1];
+		for (int i = 1; i < sources.length; i++) {
+			sources[i] = readString(input);
+		}
+
+		int directiveCount = readVarInt(input);
+		ImmutableList.Builder<Directive> directives = ImmutableList.builder();
+		Type[] types = Type.values();
+		Option[] options = Option.values();
+		for (int i = 0; i < directiveCount; i++) {
+			Type type = types[input.readUnsignedByte()];
+			switch (type) {
+				case SET:
+					Option option = options[input.readUnsignedByte()];
+					directives.add(Directive.set(option, input.readBoolean() ? readString(input) : null));
+					break;
+
+				case STATEMENT:
+					String sql = readString(input);
+					int[] substitutionPoints = new int[readVarInt(input)];
+					int previous = 0;
+					for (int j = 0; j < substitutionPoints.length; j++) {
+						previous += readVarInt(input);
+						substitutionPoints[j] = previous;
+					}
+					String source = sources[readVarInt(input)];
+					directives.add(Directive.statement(sql, substitutionPoints, source, readVarInt(input)));
+					break;
+
+				case DEFINE:
+					directives.add(Directive.define(readString(input)));
+					break;
+
+				case INCLUDE:
+					directives.add(Directive.include(new File(readString(input))));
+					break;
+
+				case SPOOL:
+					directives.add(Directive.spool(readString(input)));
+					break;
+
+				default:
+					throw new IllegalStateException();
+			}
+		}
+
+		return new CompiledScript(settings, dependencies.build(), directives.build());
+	}
+
+	protected static void writeString(DataOutput output, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(output, bytes.length);
+		output.write(bytes);
+	}
+
+	protected static String readString(DataInput input) throws IOException {
+		byte[] bytes = new byte[readVarInt(input)];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	protected static void writeVarInt(DataOutput output, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+
+	protected static int readVarInt(DataInput input) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = input.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+}
@@ -0,0 +1,659 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.jdbc.JDBCStatementExecutor;
+import adrien.database.jdbc.MetadataTableLinks;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+// Execute the statements on a few lanes, each with its own statement executor
+// (and so its own connection) and thread, when they do not depend on each
+// other. A statement depends on the previous ones writing a table it reads or
+// writes, and on the ones reading a table it writes (see TableAccess). A
+// write also touches the tables linked by foreign keys, and is a barrier if
+// the table has triggers (see TableLinks), as is any statement using a view.
+// Without table links, every write is a barrier.
+//
+// A statement goes to the lane of the statements it depends on, after them,
+// so that it sees what they have not committed yet. If they are on several
+// lanes, the other ones are flushed and committed first. A barrier (DDL,
+// block, or anything not understood) waits for every lane and commits it,
+// runs on the first lane, and is committed too. Otherwise the lanes are
+// committed together, when the script executor commits.
+//
+// The statements controlling the transaction (ROLLBACK, SAVEPOINT, LOCK...)
+// are refused, since each lane has its own. While spooling, the statements all
+// run on the first lane, which spools their results. The statements are not
+// committed in the order of the script, so a journal can not be used.
+//
+// A statement too large to be kept in memory is not analyzed: it is a barrier,
+// streamed from its file on the first lane while the parser waits.
+//
+// After a failure, the statements not started yet are skipped and the failure
+// is rethrown to the parser. The ones already running on the other lanes
+// complete: without transactions, some statements after the failed one may
+// have been applied.
+public class ConcurrentStatementExecutor implements BatchStatementExecutor, TransactionalStatementExecutor, SpoolingStatementExecutor, StreamingStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ConcurrentStatementExecutor.class);
+
+	// The statements queued on a lane before the parser waits.
+	public static final int DEFAULT_CAPACITY = 256;
+
+	final private static Pattern TRANSACTION_CONTROL_PATTERN = Pattern.compile("^\\s*(?:ROLLBACK|SAVEPOINT|RELEASE|LOCK|(?:SET|START)\\s+TRANSACTION|BEGIN\\s*(?:TRANSACTION|WORK)?\\s*;?\\s*$)", Pattern.CASE_INSENSITIVE);
+
+	protected static class Lane {
+
+		final int index;
+
+		final StatementExecutor statementExecutor;
+
+		final ExecutorService executorService;
+
+		// Only used by the parser.
+		final Deque<Future<Void>> futures = Queues.newArrayDeque();
+
+		// Only used when the statement executor does not count them.
+		final AtomicLong executedStatementCount = new AtomicLong();
+
+		Lane(int index, StatementExecutor statementExecutor, ExecutorService executorService) {
+			this.index = index;
+			this.statementExecutor = statementExecutor;
+			this.executorService = executorService;
+		}
+
+		@Override
+		public String toString() {
+			return "lane " + index;
+		}
+
+	}
+
+	private StatementExecutorFactory statementExecutorFactory;
+
+	private List<Lane> lanes;
+
+	private int capacity;
+
+	// The lane of the last statement writing each table, until it is committed.
+	private Map<String, Lane> writers = Maps.newHashMap();
+
+	// The lanes of the statements reading each table, until they are waited for.
+	private SetMultimap<String, Lane> readers = HashMultimap.create();
+
+	private volatile Throwable failure;
+
+	private TableLinks tableLinks;
+
+	// Gives the connection of the table links, if taken from the factory.
+	private StatementExecutor metadataStatementExecutor;
+
+	private boolean spooling = false;
+
+	protected ConcurrentStatementExecutor(StatementExecutorFactory statementExecutorFactory, List<Lane> lanes, int capacity) {
+		super();
+
+		this.statementExecutorFactory = statementExecutorFactory;
+		this.lanes = lanes;
+		this.capacity = capacity;
+	}
+
+	public int getLaneCount() {
+		return lanes.size();
+	}
+
+	// Only used by the parser.
+	public void setTableLinks(TableLinks tableLinks) {
+		this.tableLinks = tableLinks;
+	}
+
+	public TableLinks getTableLinks() {
+		return tableLinks;
+	}
+
+	// Find the tables of the statement. Override to describe the statements
+	// better (a barrier is always safe).
+	protected TableAccess analyze(String sql) {
+		return TableAccess.of(sql);
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		checkFailure();
+		for (Lane lane : lanes) {
+			await(lane, Integer.MAX_VALUE);
+		}
+
+		if (TRANSACTION_CONTROL_PATTERN.matcher(sql).find()) {
+			throw new SQLException("The statement can not be executed on several connections, each having its own transaction: " + sql);
+		}
+
+		TableAccess tableAccess = link(analyze(sql));
+		if (tableAccess.isBarrier()) {
+			LOGGER.debug("Waiting for every lane before {}", sql);
+			for (Lane lane : lanes) {
+				synchronize(lane);
+			}
+			Lane lane = lanes.get(0);
+			submit(lane, sql);
+			synchronize(lane);
+			return;
+		}
+
+		Set<Lane> dependencies = Sets.newLinkedHashSet();
+		for (String table : Sets.union(tableAccess.getReadTables(), tableAccess.getWrittenTables())) {
+			Lane writer = writers.get(table);
+			if (writer != null) {
+				dependencies.add(writer);
+			}
+		}
+		for (String table : tableAccess.getWrittenTables()) {
+			dependencies.addAll(readers.get(table));
+		}
+
+		Lane lane;
+		if (spooling) {
+			lane = lanes.get(0);
+		} else if (dependencies.isEmpty()) {
+			lane = getLeastBusyLane();
+		} else {
+			lane = dependencies.iterator().next();
+		}
+		for (Lane dependency : dependencies) {
+			if (dependency != lane) {
+				LOGGER.debug("Waiting for the {} before {}", dependency, sql);
+				synchronize(dependency);
+			}
+		}
+
+		await(lane, capacity - 1);
+		submit(lane, sql);
+		for (String table : tableAccess.getWrittenTables()) {
+			writers.put(table, lane);
+		}
+		for (String table : tableAccess.getReadTables()) {
+			readers.put(table, lane);
+		}
+	}
+
+	@Override
+	public void executeStatement(final SpilledStatement statement) throws SQLException {
+		checkFailure();
+		for (Lane lane : lanes) {
+			synchronize(lane);
+		}
+		final Lane lane = lanes.get(0);
+		call(lane, new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				try {
+					statement.executeOn(lane.statementExecutor);
+					lane.executedStatementCount.incrementAndGet();
+				} catch (SQLException e) {
+					fail(e);
+					throw e;
+				} catch (RuntimeException e) {
+					fail(e);
+					throw e;
+				}
+				return null;
+			}
+
+		});
+		synchronize(lane);
+	}
+
+	// Add the tables linked to the written ones, which the foreign keys check
+	// or cascade to. A write to a table with triggers is a barrier, and so is
+	// a statement using a name which is not a table (a view may read or write
+	// any table).
+	protected TableAccess link(TableAccess tableAccess) throws SQLException {
+		if (tableAccess.isBarrier()) {
+			return tableAccess;
+		} else if (tableLinks == null) {
+			return tableAccess.getWrittenTables().isEmpty() ? tableAccess : TableAccess.barrier();
+		}
+
+		for (String table : Sets.union(tableAccess.getReadTables(), tableAccess.getWrittenTables())) {
+			if (!tableLinks.isTable(table)) {
+				return TableAccess.barrier();
+			}
+		}
+		if (tableAccess.getWrittenTables().isEmpty()) {
+			return tableAccess;
+		}
+
+		Set<String> writtenTables = Sets.newLinkedHashSet(tableAccess.getWrittenTables());
+		for (String table : tableAccess.getWrittenTables()) {
+			if (tableLinks.hasTriggers(table)) {
+				return TableAccess.barrier();
+			}
+			writtenTables.addAll(tableLinks.getLinkedTables(table));
+		}
+		return new TableAccess(tableAccess.getReadTables(), ImmutableSet.copyOf(writtenTables), false);
+	}
+
+	protected Lane getLeastBusyLane() {
+		Lane leastBusyLane = lanes.get(0);
+		for (Lane lane : lanes) {
+			if (lane.futures.size() < leastBusyLane.futures.size()) {
+				leastBusyLane = lane;
+			}
+		}
+		return leastBusyLane;
+	}
+
+	protected void submit(final Lane lane, final String sql) {
+		lane.futures.addLast(lane.executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				if (failure != null) {
+					LOGGER.debug("Skipping statement after failure ({})", sql);
+					return null;
+				}
+
+				try {
+					lane.statementExecutor.executeStatement(sql);
+					lane.executedStatementCount.incrementAndGet();
+				} catch (SQLException e) {
+					fail(e);
+					throw e;
+				} catch (RuntimeException e) {
+					fail(e);
+					throw e;
+				}
+				return null;
+			}
+
+		}));
+	}
+
+	private synchronized void fail(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	// Wait until at most the given number of statements are queued on the
+	// lane. The completed ones are always collected.
+	protected void await(Lane lane, int maxQueuedStatements) throws SQLException {
+		while (!lane.futures.isEmpty() && (lane.futures.size() > maxQueuedStatements || lane.futures.peekFirst().isDone())) {
+			try {
+				lane.futures.removeFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the statements to be executed", e);
+			} catch (ExecutionException e) {
+				// Kept as the failure by the lane.
+			}
+		}
+		checkFailure();
+	}
+
+	// Wait for the statements of the lane, and flush and commit them so that
+	// the other lanes see them.
+	protected void synchronize(final Lane lane) throws SQLException {
+		await(lane, 0);
+		call(lane, new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				if (lane.statementExecutor instanceof BatchStatementExecutor) {
+					((BatchStatementExecutor) lane.statementExecutor).flush();
+				}
+				if (lane.statementExecutor instanceof TransactionalStatementExecutor) {
+					((TransactionalStatementExecutor) lane.statementExecutor).commit();
+				}
+				return null;
+			}
+
+		});
+		forget(lane);
+	}
+
+	private void forget(Lane lane) {
+		for (Iterator<Lane> iterator = writers.values().iterator(); iterator.hasNext();) {
+			if (iterator.next() == lane) {
+				iterator.remove();
+			}
+		}
+		for (Iterator<Lane> iterator = readers.values().iterator(); iterator.hasNext();) {
+			if (iterator.next() == lane) {
+				iterator.remove();
+			}
+		}
+	}
+
+	// Run the task on the thread of the lane, after its statements, and
+	// rethrow its failure.
+	protected <T> T call(Lane lane, Callable<T> task) throws SQLException {
+		try {
+			return lane.executorService.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the " + lane, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				SQLException sqlException = (SQLException) cause;
+				throw new SQLException(sqlException.getMessage(), sqlException.getSQLState(), sqlException.getErrorCode(), sqlException);
+			}
+			throw new SQLException(cause.getMessage(), cause);
+		}
+	}
+
+	protected void checkFailure() throws SQLException {
+		Throwable failure = this.failure;
+		if (failure instanceof SQLException) {
+			SQLException e = (SQLException) failure;
+			throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+		} else if (failure != null) {
+			throw new SQLException(failure.getMessage(), failure);
+		}
+	}
+
+	// Wait until the statements of every lane have been executed.
+	@Override
+	public void flush() throws SQLException {
+		for (final Lane lane : lanes) {
+			await(lane, 0);
+			if (lane.statementExecutor instanceof BatchStatementExecutor) {
+				call(lane, new Callable<Void>() {
+
+					@Override
+					public Void call() throws SQLException {
+						((BatchStatementExecutor) lane.statementExecutor).flush();
+						return null;
+					}
+
+				});
+			}
+		}
+	}
+
+	@Override
+	public void setBatchSize(final int batchSize) throws SQLException {
+		if (!(lanes.get(0).statementExecutor instanceof BatchStatementExecutor)) {
+			LOGGER.warn("Ignoring the batch size {} because the statement executor does not support batches", batchSize);
+			return;
+		}
+
+		for (final Lane lane : lanes) {
+			await(lane, 0);
+			call(lane, new Callable<Void>() {
+
+				@Override
+				public Void call() throws SQLException {
+					((BatchStatementExecutor) lane.statementExecutor).setBatchSize(batchSize);
+					return null;
+				}
+
+			});
+		}
+	}
+
+	@Override
+	public int getBatchSize() {
+		StatementExecutor statementExecutor = lanes.get(0).statementExecutor;
+		return statementExecutor instanceof BatchStatementExecutor ? ((BatchStatementExecutor) statementExecutor).getBatchSize() : 1;
+	}
+
+	// Every lane commits on its own at the interval.
+	@Override
+	public void setCommitInterval(final int commitInterval) throws SQLException {
+		if (!(lanes.get(0).statementExecutor instanceof TransactionalStatementExecutor)) {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitInterval);
+			return;
+		}
+
+		for (final Lane lane : lanes) {
+			await(lane, 0);
+			call(lane, new Callable<Void>() {
+
+				@Override
+				public Void call() throws SQLException {
+					((TransactionalStatementExecutor) lane.statementExecutor).setCommitInterval(commitInterval);
+					return null;
+				}
+
+			});
+		}
+	}
+
+	@Override
+	public int getCommitInterval() {
+		StatementExecutor statementExecutor = lanes.get(0).statementExecutor;
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitInterval() : 0;
+	}
+
+	@Override
+	public void setCommitRows(final long commitRows) throws SQLException {
+		if (!(lanes.get(0).statementExecutor instanceof TransactionalStatementExecutor)) {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitRows);
+			return;
+		}
+
+		for (final Lane lane : lanes) {
+			await(lane, 0);
+			call(lane, new Callable<Void>() {
+
+				@Override
+				public Void call() throws SQLException {
+					((TransactionalStatementExecutor) lane.statementExecutor).setCommitRows(commitRows);
+					return null;
+				}
+
+			});
+		}
+	}
+
+	@Override
+	public long getCommitRows() {
+		StatementExecutor statementExecutor = lanes.get(0).statementExecutor;
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitRows() : 0;
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		checkFailure();
+		for (Lane lane : lanes) {
+			synchronize(lane);
+		}
+	}
+
+	// Wait for the statements still running, and roll back every lane.
+	@Override
+	public void rollback() throws SQLException {
+		for (final Lane lane : lanes) {
+			while (!lane.futures.isEmpty()) {
+				try {
+					lane.futures.removeFirst().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for the statements to be executed", e);
+				} catch (ExecutionException e) {
+					// Already kept as the failure.
+				}
+			}
+			if (lane.statementExecutor instanceof TransactionalStatementExecutor) {
+				call(lane, new Callable<Void>() {
+
+					@Override
+					public Void call() throws SQLException {
+						((TransactionalStatementExecutor) lane.statementExecutor).rollback();
+						return null;
+					}
+
+				});
+			}
+		}
+		writers.clear();
+		readers.clear();
+		failure = null;
+	}
+
+	@Override
+	public long getCommittedStatementCount() {
+		long committedStatementCount = 0;
+		for (Lane lane : lanes) {
+			if (lane.statementExecutor instanceof TransactionalStatementExecutor) {
+				committedStatementCount += ((TransactionalStatementExecutor) lane.statementExecutor).getCommittedStatementCount();
+			} else {
+				committedStatementCount += lane.executedStatementCount.get();
+			}
+		}
+		return committedStatementCount;
+	}
+
+	// Wait for every lane, and spool the results of the next statements, which
+	// all run on the first lane.
+	@Override
+	public void spool(final File file, final boolean append, final char delimiter) throws IOException, SQLException {
+		final Lane lane = lanes.get(0);
+		if (!(lane.statementExecutor instanceof SpoolingStatementExecutor)) {
+			LOGGER.warn("The statement executor can not spool, {} is ignored", file);
+			return;
+		}
+
+		for (Lane otherLane : lanes) {
+			if (otherLane != lane) {
+				synchronize(otherLane);
+			}
+		}
+		await(lane, 0);
+		call(lane, new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException, SQLException {
+				((SpoolingStatementExecutor) lane.statementExecutor).spool(file, append, delimiter);
+				return null;
+			}
+
+		});
+		spooling = true;
+	}
+
+	@Override
+	public void spoolOff() throws IOException, SQLException {
+		final Lane lane = lanes.get(0);
+		if (!spooling) {
+			return;
+		}
+
+		spooling = false;
+		await(lane, 0);
+		call(lane, new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException, SQLException {
+				((SpoolingStatementExecutor) lane.statementExecutor).spoolOff();
+				return null;
+			}
+
+		});
+	}
+
+	// Execute the remaining statements, stop the threads and give the
+	// statement executors back to the factory. Every lane is given back, and
+	// the first failure to commit one is thrown.
+	public void close() throws SQLException {
+		boolean succeeded = false;
+		SQLException failure = null;
+		try {
+			flush();
+			succeeded = true;
+		} finally {
+			for (Lane lane : lanes) {
+				lane.executorService.shutdown();
+				try {
+					statementExecutorFactory.release(lane.statementExecutor, succeeded);
+				} catch (SQLException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						LOGGER.warn("Unable to give the statement executor of the {} back", lane, e);
+					}
+				}
+			}
+			if (metadataStatementExecutor != null) {
+				statementExecutorFactory.release(metadataStatementExecutor, false);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public static ConcurrentStatementExecutor of(StatementExecutorFactory statementExecutorFactory, int laneCount) throws SQLException {
+		return of(statementExecutorFactory, laneCount, DEFAULT_CAPACITY);
+	}
+
+	public static ConcurrentStatementExecutor of(StatementExecutorFactory statementExecutorFactory, int laneCount, int capacity) throws SQLException {
+		List<Lane> lanes = Lists.newArrayList();
+		try {
+			for (int i = 0; i < laneCount; i++) {
+				lanes.add(new Lane(i + 1, statementExecutorFactory.newStatementExecutor(), Executors.newSingleThreadExecutor(newThreadFactory(i + 1))));
+			}
+		} catch (SQLException e) {
+			for (Lane lane : lanes) {
+				lane.executorService.shutdown();
+				statementExecutorFactory.release(lane.statementExecutor, false);
+			}
+			throw e;
+		}
+		ConcurrentStatementExecutor concurrentStatementExecutor = new ConcurrentStatementExecutor(statementExecutorFactory, lanes, capacity);
+
+		// The foreign keys and the triggers are read on a connection of their
+		// own, since the ones of the lanes are used by their threads.
+		StatementExecutor metadataStatementExecutor = statementExecutorFactory.newStatementExecutor();
+		if (metadataStatementExecutor instanceof JDBCStatementExecutor) {
+			concurrentStatementExecutor.metadataStatementExecutor = metadataStatementExecutor;
+			concurrentStatementExecutor.setTableLinks(MetadataTableLinks.forConnection(((JDBCStatementExecutor) metadataStatementExecutor).getConnection()));
+		} else {
+			statementExecutorFactory.release(metadataStatementExecutor, false);
+			LOGGER.warn("Unable to find the foreign keys and the triggers, every write is a barrier until the table links are set");
+		}
+		return concurrentStatementExecutor;
+	}
+
+	private static ThreadFactory newThreadFactory(final int index) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "concurrent-statement-executor-" + index);
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
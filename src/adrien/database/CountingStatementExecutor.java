@@ -0,0 +1,13 @@
+package adrien.database;
+
+// A statement executor which knows how many rows its last statement affected
+// and fetched.
+public interface CountingStatementExecutor extends StatementExecutor {
+
+	long UNKNOWN = -1;
+
+	long getLastRowsAffected();
+
+	long getLastRowsFetched();
+
+}
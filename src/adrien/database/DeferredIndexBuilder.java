@@ -0,0 +1,341 @@
+package adrien.database;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+// Hold back the CREATE INDEX statements of a script (and, if asked, the
+// ALTER TABLE ... ADD PRIMARY KEY, UNIQUE, FOREIGN KEY or CHECK ones) while
+// the table is being loaded, so that the rows do not maintain the index one by
+// one. The deferred statements of a table are built once a statement needs
+// them: any statement mentioning the table except a plain INSERT (an INSERT
+// IGNORE, ON CONFLICT or ON DUPLICATE KEY UPDATE needs them), and any block or
+// unknown statement. The builds run on several connections at the same time:
+// the indexes first, then the constraints of each table one after the other,
+// and then the foreign keys.
+//
+// The builds run on other connections, so the script executor commits its
+// statements before. A duplicate row is reported when the unique index or
+// constraint is built, rather than by the INSERT.
+public class DeferredIndexBuilder {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(DeferredIndexBuilder.class);
+
+	final private static String NAME = "(?:\"[^\"]+\"|[\\w$#]+)";
+
+	final private static String QUALIFIED_NAME = NAME + "(?:\\s*\\.\\s*" + NAME + ")*";
+
+	final private static Pattern CREATE_INDEX_PATTERN = Pattern.compile("^\\s*CREATE\\s+(?:(?:UNIQUE|BITMAP|FULLTEXT|SPATIAL)\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(?:" + QUALIFIED_NAME + "\\s+)?ON\\s+(?:ONLY\\s+)?(" + QUALIFIED_NAME + ")", Pattern.CASE_INSENSITIVE);
+
+	final private static Pattern ADD_CONSTRAINT_PATTERN = Pattern.compile("^\\s*ALTER\\s+TABLE\\s+(?:ONLY\\s+)?(?:IF\\s+EXISTS\\s+)?(" + QUALIFIED_NAME + ")\\s+ADD\\s+(?:CONSTRAINT\\s+" + NAME + "\\s+)?(PRIMARY\\s+KEY|UNIQUE|FOREIGN\\s+KEY|CHECK)\\b", Pattern.CASE_INSENSITIVE);
+
+	final private static Pattern REFERENCES_PATTERN = Pattern.compile("\\bREFERENCES\\s+(" + QUALIFIED_NAME + ")", Pattern.CASE_INSENSITIVE);
+
+	final private static Pattern INDEX_DDL_PATTERN = Pattern.compile("^\\s*(?:DROP|ALTER)\\s+INDEX\\b", Pattern.CASE_INSENSITIVE);
+
+	final private static Pattern INSERT_PATTERN = Pattern.compile("^\\s*INSERT\\b", Pattern.CASE_INSENSITIVE);
+
+	// The inserts relying on a unique index to find the existing rows.
+	final private static Pattern UPSERT_PATTERN = Pattern.compile("^\\s*INSERT\\s+(?:IGNORE|OR)\\b|\\bON\\s+(?:CONFLICT|DUPLICATE\\s+KEY)\\b", Pattern.CASE_INSENSITIVE);
+
+	// A statement held back, with the table it is built on and, for a foreign
+	// key, the table it references.
+	protected static class DeferredBuild {
+
+		final String sql;
+
+		final String table;
+
+		final String referencedTable;
+
+		final boolean index;
+
+		DeferredBuild(String sql, String table, String referencedTable, boolean index) {
+			this.sql = sql;
+			this.table = table;
+			this.referencedTable = referencedTable;
+			this.index = index;
+		}
+
+	}
+
+	private StatementExecutorFactory statementExecutorFactory;
+
+	private int parallelism;
+
+	private boolean deferringConstraints = false;
+
+	// The deferred builds of each table, in the order of the script.
+	private Map<String, List<DeferredBuild>> deferredBuilds = Maps.newLinkedHashMap();
+
+	public DeferredIndexBuilder(StatementExecutorFactory statementExecutorFactory, int parallelism) {
+		super();
+
+		this.statementExecutorFactory = statementExecutorFactory;
+		this.parallelism = parallelism;
+	}
+
+	public void setDeferringConstraints(boolean deferringConstraints) {
+		this.deferringConstraints = deferringConstraints;
+	}
+
+	public boolean isDeferringConstraints() {
+		return deferringConstraints;
+	}
+
+	public boolean hasDeferredBuilds() {
+		return !deferredBuilds.isEmpty();
+	}
+
+	// Hold the statement back if it builds an index (or a constraint), and
+	// return whether it has been.
+	public boolean defer(String sql) {
+		DeferredBuild deferredBuild = parse(sql);
+		if (deferredBuild == null) {
+			return false;
+		}
+
+		LOGGER.debug("Deferring the build on {} ({})", deferredBuild.table, sql);
+		List<DeferredBuild> builds = deferredBuilds.get(deferredBuild.table);
+		if (builds == null) {
+			builds = Lists.newArrayList();
+			deferredBuilds.put(deferredBuild.table, builds);
+		}
+		builds.add(deferredBuild);
+		return true;
+	}
+
+	protected DeferredBuild parse(String sql) {
+		Matcher matcher = CREATE_INDEX_PATTERN.matcher(sql);
+		if (matcher.find()) {
+			return new DeferredBuild(sql, normalize(matcher.group(1)), null, true);
+		}
+
+		if (deferringConstraints) {
+			matcher = ADD_CONSTRAINT_PATTERN.matcher(sql);
+			if (matcher.find()) {
+				String referencedTable = null;
+				if (matcher.group(2).toUpperCase().startsWith("FOREIGN")) {
+					Matcher referencesMatcher = REFERENCES_PATTERN.matcher(sql);
+					if (referencesMatcher.find()) {
+						referencedTable = normalize(referencesMatcher.group(1));
+					}
+				}
+				return new DeferredBuild(sql, normalize(matcher.group(1)), referencedTable, false);
+			}
+		}
+		return null;
+	}
+
+	// Keep the name of the table without its schema, in lower case unless it
+	// is quoted.
+	protected static String normalize(String qualifiedName) {
+		String name = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1).trim();
+		if (name.startsWith("\"") && name.endsWith("\"") && name.length() > 1) {
+			return name.substring(1, name.length() - 1);
+		}
+		return name.toLowerCase();
+	}
+
+	// Return the tables whose deferred builds have to be done before the
+	// statement, with the tables their foreign keys reference.
+	public Set<String> getRequiredTables(String sql) {
+		if (deferredBuilds.isEmpty() || (INSERT_PATTERN.matcher(sql).find() && !UPSERT_PATTERN.matcher(sql).find())) {
+			return ImmutableSet.of();
+		}
+
+		StatementType statementType = StatementType.of(sql);
+		if (statementType == StatementType.BLOCK || statementType == StatementType.OTHER || INDEX_DDL_PATTERN.matcher(sql).find()) {
+			return ImmutableSet.copyOf(deferredBuilds.keySet());
+		}
+
+		Set<String> tables = Sets.newLinkedHashSet();
+		for (String table : deferredBuilds.keySet()) {
+			if (mentions(sql, table)) {
+				addRequiredTable(tables, table);
+			}
+		}
+		return tables;
+	}
+
+	private void addRequiredTable(Set<String> tables, String table) {
+		if (!tables.add(table)) {
+			return;
+		}
+
+		List<DeferredBuild> builds = deferredBuilds.get(table);
+		if (builds != null) {
+			for (DeferredBuild build : builds) {
+				if (build.referencedTable != null && deferredBuilds.containsKey(build.referencedTable)) {
+					addRequiredTable(tables, build.referencedTable);
+				}
+			}
+		}
+	}
+
+	// Find the name as a whole word, ignoring the case.
+	protected static boolean mentions(String sql, String name) {
+		int length = name.length();
+		for (int offset = 0; offset + length <= sql.length(); offset++) {
+			if (sql.regionMatches(true, offset, name, 0, length) && (offset == 0 || !isNameCharacter(sql.charAt(offset - 1))) && (offset + length == sql.length() || !isNameCharacter(sql.charAt(offset + length)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isNameCharacter(char character) {
+		return Character.isLetterOrDigit(character) || character == '_' || character == '$' || character == '#';
+	}
+
+	public void buildAll() throws SQLException {
+		build(Lists.newArrayList(deferredBuilds.keySet()));
+	}
+
+	// Build the deferred indexes and constraints of the tables, and wait for
+	// them. They are forgotten even if one of them fails.
+	public void build(Collection<String> tables) throws SQLException {
+		List<List<String>> indexes = Lists.newArrayList();
+		List<List<String>> constraints = Lists.newArrayList();
+		List<List<String>> foreignKeys = Lists.newArrayList();
+		int count = 0;
+		for (String table : tables) {
+			List<DeferredBuild> builds = deferredBuilds.remove(table);
+			if (builds == null) {
+				continue;
+			}
+
+			List<String> tableConstraints = Lists.newArrayList();
+			List<String> tableForeignKeys = Lists.newArrayList();
+			for (DeferredBuild build : builds) {
+				if (build.index) {
+					indexes.add(Lists.newArrayList(build.sql));
+				} else if (build.referencedTable != null) {
+					tableForeignKeys.add(build.sql);
+				} else {
+					tableConstraints.add(build.sql);
+				}
+				count++;
+			}
+			if (!tableConstraints.isEmpty()) {
+				constraints.add(tableConstraints);
+			}
+			if (!tableForeignKeys.isEmpty()) {
+				foreignKeys.add(tableForeignKeys);
+			}
+		}
+
+		if (count == 0) {
+			return;
+		}
+
+		LOGGER.info("Building {} deferred indexes and constraints on {} tables", count, tables.size());
+		long startTime = System.nanoTime();
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, parallelism), newThreadFactory());
+		try {
+			run(executorService, indexes);
+			run(executorService, constraints);
+			run(executorService, foreignKeys);
+		} finally {
+			executorService.shutdownNow();
+		}
+		LOGGER.info("Deferred builds done in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+	}
+
+	// Forget the deferred builds, after a failure of the script.
+	public void discard() {
+		if (!deferredBuilds.isEmpty()) {
+			int count = 0;
+			for (List<DeferredBuild> builds : deferredBuilds.values()) {
+				count += builds.size();
+			}
+			LOGGER.warn("{} deferred indexes and constraints are not built", count);
+			deferredBuilds.clear();
+		}
+	}
+
+	// Run the lanes at the same time, the statements of a lane one after the
+	// other, and wait for all of them. The first failure is rethrown.
+	protected void run(ExecutorService executorService, List<List<String>> lanes) throws SQLException {
+		List<Future<Void>> futures = Lists.newArrayList();
+		for (final List<String> lane : lanes) {
+			futures.add(executorService.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws SQLException {
+					StatementExecutor statementExecutor = statementExecutorFactory.newStatementExecutor();
+					boolean succeeded = false;
+					try {
+						for (String sql : lane) {
+							statementExecutor.executeStatement(sql);
+						}
+						if (statementExecutor instanceof TransactionalStatementExecutor) {
+							((TransactionalStatementExecutor) statementExecutor).commit();
+						}
+						succeeded = true;
+					} finally {
+						statementExecutorFactory.release(statementExecutor, succeeded);
+					}
+					return null;
+				}
+
+			}));
+		}
+
+		SQLException failure = null;
+		for (Iterator<Future<Void>> iterator = futures.iterator(); iterator.hasNext();) {
+			try {
+				iterator.next().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while building the deferred indexes", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					Throwable cause = e.getCause();
+					failure = cause instanceof SQLException ? (SQLException) cause : new SQLException(cause.getMessage(), cause);
+				} else {
+					LOGGER.warn("Another deferred build failed", e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "index-build-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
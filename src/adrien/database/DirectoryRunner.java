@@ -0,0 +1,440 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.util.FileFilters;
+import adrien.util.FileOrderings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+
+// Run the scripts of a directory in stages, one after the other. The scripts
+// of a stage are split in lanes which run at the same time, each with its own
+// script executor and statement executor, and the scripts of a lane run in
+// order. A stage starts once all the lanes of the previous one are done, and
+// nothing runs after a stage where a lane failed.
+//
+// By default, the stage and the lane come from the names of the scripts:
+// <stage>[_<lane>]__<description>.sql, the stage being a version (so
+// 010_users__create.sql and 10_orders__create.sql run at the same time, in
+// the users and orders lanes, and V1.2__migrate.sql runs later). The scripts
+// without a lane go to the default lane, and the scripts without a version to
+// a last stage.
+//
+// Otherwise, a manifest gives them: one line per lane, with the stage, the
+// name of the lane and the globs of its scripts. A script belongs to the first
+// line it matches, and the scripts which match no line are not run.
+//
+//   # stage lane globs
+//   1 users users_*.sql
+//   1 orders orders_*.sql order_items_*.sql
+//   2 main *.sql
+public class DirectoryRunner {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(DirectoryRunner.class);
+
+	public static final String DEFAULT_LANE = "default";
+
+	// The rest of the name after the version.
+	final private static Pattern LANE_PATTERN = Pattern.compile("^_([A-Za-z][A-Za-z0-9-]*)__.*$", Pattern.DOTALL);
+
+	final private static Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+	public static class Stage {
+
+		private String name;
+
+		private Map<String, List<File>> lanes;
+
+		public Stage(String name, Map<String, List<File>> lanes) {
+			super();
+
+			this.name = name;
+			ImmutableMap.Builder<String, List<File>> builder = ImmutableMap.builder();
+			for (Map.Entry<String, List<File>> lane : lanes.entrySet()) {
+				builder.put(lane.getKey(), ImmutableList.copyOf(lane.getValue()));
+			}
+			this.lanes = builder.build();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// The scripts of each lane, in the order they run.
+		public Map<String, List<File>> getLanes() {
+			return lanes;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + lanes;
+		}
+
+	}
+
+	public static class Result {
+
+		private Stage stage;
+
+		private String lane;
+
+		private List<File> executedScripts;
+
+		private File failedScript;
+
+		private Throwable failure;
+
+		private long elapsedTime;
+
+		public Result(Stage stage, String lane, List<File> executedScripts, File failedScript, Throwable failure, long elapsedTime) {
+			super();
+
+			this.stage = stage;
+			this.lane = lane;
+			this.executedScripts = ImmutableList.copyOf(executedScripts);
+			this.failedScript = failedScript;
+			this.failure = failure;
+			this.elapsedTime = elapsedTime;
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		public String getLane() {
+			return lane;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		public List<File> getExecutedScripts() {
+			return executedScripts;
+		}
+
+		// Return the script which failed (null if the statement executor could
+		// not be created).
+		public File getFailedScript() {
+			return failedScript;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		// Return the elapsed time in nanoseconds.
+		public long getElapsedTime() {
+			return elapsedTime;
+		}
+
+	}
+
+	private StatementExecutorFactory statementExecutorFactory;
+
+	private int parallelism;
+
+	private FileFilter fileFilter = FileFilters.havingExtension("sql");
+
+	private Ordering<File> ordering = FileOrderings.versioned();
+
+	private File manifest;
+
+	private ScriptCache scriptCache = new ScriptCache();
+
+	private IncludeResolver includeResolver = new IncludeResolver();
+
+	public DirectoryRunner(StatementExecutorFactory statementExecutorFactory, int parallelism) {
+		super();
+
+		this.statementExecutorFactory = statementExecutorFactory;
+		this.parallelism = parallelism;
+	}
+
+	public void setFileFilter(FileFilter fileFilter) {
+		this.fileFilter = fileFilter;
+	}
+
+	public void setGlob(String glob) {
+		setFileFilter(FileFilters.matchingGlob(glob));
+	}
+
+	// The order of the scripts of a lane (the versioned order by default).
+	public void setOrdering(Ordering<File> ordering) {
+		this.ordering = ordering;
+	}
+
+	public void setManifest(File manifest) {
+		this.manifest = manifest;
+	}
+
+	// The cache is shared by all the lanes, for the @ and START includes.
+	public void setScriptCache(ScriptCache scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
+	// Shared by all the lanes, and by the compilation of the scripts.
+	public void setIncludeResolver(IncludeResolver includeResolver) {
+		this.includeResolver = includeResolver;
+	}
+
+	// Return the scripts of the directory accepted by the filter, in order.
+	public List<File> listScripts(File directory) throws IOException {
+		File[] files = directory.listFiles(fileFilter);
+		if (files == null) {
+			throw new IOException("Unable to list the " + directory + " directory");
+		}
+
+		List<File> scripts = Lists.newArrayList();
+		for (File file : files) {
+			if (file.isFile()) {
+				scripts.add(file);
+			}
+		}
+		return ordering.sortedCopy(scripts);
+	}
+
+	// Split the scripts of the directory in stages and lanes.
+	public List<Stage> plan(File directory) throws IOException {
+		List<File> scripts = listScripts(directory);
+		return manifest == null ? planByNames(scripts) : planByManifest(scripts, manifest);
+	}
+
+	protected List<Stage> planByNames(List<File> scripts) {
+		Map<String, Map<String, List<File>>> stages = Maps.newTreeMap(FileOrderings.versions());
+		Map<String, List<File>> unversioned = Maps.newTreeMap();
+		for (File script : scripts) {
+			String name = script.getName();
+			String version = FileOrderings.getVersion(name);
+			if (version == null) {
+				addScript(unversioned, DEFAULT_LANE, script);
+				continue;
+			}
+
+			Map<String, List<File>> lanes = stages.get(version);
+			if (lanes == null) {
+				lanes = Maps.newTreeMap();
+				stages.put(version, lanes);
+			}
+			Matcher matcher = LANE_PATTERN.matcher(name.substring(name.indexOf(version) + version.length()));
+			addScript(lanes, matcher.matches() ? matcher.group(1) : DEFAULT_LANE, script);
+		}
+
+		List<Stage> plan = Lists.newArrayList();
+		for (Map.Entry<String, Map<String, List<File>>> stage : stages.entrySet()) {
+			plan.add(new Stage(stage.getKey(), stage.getValue()));
+		}
+		if (!unversioned.isEmpty()) {
+			plan.add(new Stage("", unversioned));
+		}
+		return plan;
+	}
+
+	protected List<Stage> planByManifest(List<File> scripts, File manifest) throws IOException {
+		Map<String, Map<String, List<File>>> stages = Maps.newTreeMap(FileOrderings.versionedNames());
+		List<String[]> entries = Lists.newArrayList();
+		List<List<FileFilter>> entryFilters = Lists.newArrayList();
+		int lineNumber = 0;
+		for (String line : Files.readLines(manifest, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			String[] fields = WHITESPACE_PATTERN.split(line);
+			if (fields.length < 3) {
+				throw new IOException("Expected a stage, a lane and globs at line " + lineNumber + " of the " + manifest + " manifest: " + line);
+			}
+			List<FileFilter> filters = Lists.newArrayList();
+			for (String glob : Arrays.asList(fields).subList(2, fields.length)) {
+				filters.add(FileFilters.matchingGlob(glob));
+			}
+			entries.add(fields);
+			entryFilters.add(filters);
+		}
+
+		for (File script : scripts) {
+			String[] entry = findEntry(script, entries, entryFilters);
+			if (entry == null) {
+				LOGGER.warn("The {} script is not in the {} manifest, and is not run", script, manifest);
+				continue;
+			}
+
+			Map<String, List<File>> lanes = stages.get(entry[0]);
+			if (lanes == null) {
+				lanes = Maps.newLinkedHashMap();
+				stages.put(entry[0], lanes);
+			}
+			addScript(lanes, entry[1], script);
+		}
+
+		List<Stage> plan = Lists.newArrayList();
+		for (Map.Entry<String, Map<String, List<File>>> stage : stages.entrySet()) {
+			plan.add(new Stage(stage.getKey(), stage.getValue()));
+		}
+		return plan;
+	}
+
+	private static String[] findEntry(File script, List<String[]> entries, List<List<FileFilter>> entryFilters) {
+		for (int i = 0; i < entries.size(); i++) {
+			for (FileFilter filter : entryFilters.get(i)) {
+				if (filter.accept(script)) {
+					return entries.get(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void addScript(Map<String, List<File>> lanes, String lane, File script) {
+		List<File> scripts = lanes.get(lane);
+		if (scripts == null) {
+			scripts = Lists.newArrayList();
+			lanes.put(lane, scripts);
+		}
+		scripts.add(script);
+	}
+
+	// Run the scripts of the directory and return the results of the lanes, in
+	// the order of the stages.
+	public List<Result> run(File directory) throws IOException, InterruptedException {
+		return run(plan(directory));
+	}
+
+	public List<Result> run(List<Stage> plan) throws InterruptedException {
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, parallelism), newThreadFactory());
+		try {
+			List<Result> results = Lists.newArrayList();
+			for (Stage stage : plan) {
+				LOGGER.info("Running the {} stage ({} lanes)", stage.getName(), stage.getLanes().size());
+				List<Result> stageResults = run(executorService, stage);
+				results.addAll(stageResults);
+				for (Result result : stageResults) {
+					if (!result.isSuccess()) {
+						LOGGER.error("The {} lane of the {} stage failed, the next stages are not run", result.getLane(), stage.getName());
+						return results;
+					}
+				}
+			}
+			return results;
+		} finally {
+			executorService.shutdownNow();
+			executorService.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	// Run all the lanes of the stage, and wait for them.
+	protected List<Result> run(ExecutorService executorService, final Stage stage) throws InterruptedException {
+		List<Future<Result>> futures = Lists.newArrayList();
+		for (final Map.Entry<String, List<File>> lane : stage.getLanes().entrySet()) {
+			futures.add(executorService.submit(new Callable<Result>() {
+
+				@Override
+				public Result call() {
+					return run(stage, lane.getKey(), lane.getValue());
+				}
+
+			}));
+		}
+
+		List<Result> results = Lists.newArrayList();
+		for (Future<Result> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Failures are expected to be caught", e);
+			}
+		}
+		return results;
+	}
+
+	protected Result run(Stage stage, String lane, List<File> scripts) {
+		long startTime = System.nanoTime();
+		List<File> executedScripts = Lists.newArrayList();
+		File failedScript = null;
+		Throwable failure = null;
+		StatementExecutor statementExecutor = null;
+		try {
+			statementExecutor = statementExecutorFactory.newStatementExecutor();
+			ScriptExecutor scriptExecutor = newScriptExecutor(statementExecutor, lane);
+			for (File script : scripts) {
+				failedScript = script;
+				scriptExecutor.executeScript(script);
+				executedScripts.add(script);
+			}
+			failedScript = null;
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			if (statementExecutor != null) {
+				try {
+					statementExecutorFactory.release(statementExecutor, failure == null);
+				} catch (SQLException e) {
+					// The scripts of the lane are rolled back.
+					if (failure == null) {
+						failure = e;
+					} else {
+						LOGGER.warn("Unable to give the statement executor of the {} lane back", lane, e);
+					}
+				}
+			}
+		}
+
+		Result result = new Result(stage, lane, executedScripts, failedScript, failure, System.nanoTime() - startTime);
+		if (failure == null) {
+			LOGGER.info("{}/{} done in {} ms ({} scripts)", stage.getName(), lane, TimeUnit.NANOSECONDS.toMillis(result.getElapsedTime()), executedScripts.size());
+		} else {
+			LOGGER.error("{}/{} failed after {} ms on {}", stage.getName(), lane, TimeUnit.NANOSECONDS.toMillis(result.getElapsedTime()), failedScript, failure);
+		}
+		return result;
+	}
+
+	// Create the script executor of a lane. Override to configure it.
+	protected ScriptExecutor newScriptExecutor(StatementExecutor statementExecutor, String lane) throws SQLException {
+		ScriptExecutor scriptExecutor = new ScriptExecutor(statementExecutor, includeResolver);
+		scriptExecutor.setScriptCache(scriptCache);
+		return scriptExecutor;
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "directory-runner-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
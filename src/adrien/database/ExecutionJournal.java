@@ -0,0 +1,210 @@
+package adrien.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Deque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Queues;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedLongs;
+
+// An append-only journal of the statements applied to the database, one line
+// per statement: <position> <hash> <script>:<line>. The position counts the
+// statements from the start of the run, and the hash is computed on the
+// substituted statement. The lines are written once the statements are
+// committed (or executed, when they are not grouped in transactions), and
+// flushed in batches. When resuming, the statements already in the journal
+// are skipped. After a crash (rather than a failure), the last lines may be
+// lost and their statements executed again.
+public class ExecutionJournal implements Closeable {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ExecutionJournal.class);
+
+	final private static int BUFFER_SIZE = 64 * 1024;
+
+	private File file;
+
+	// The hashes of the statements to skip, by position (starting at 1).
+	private long[] hashes;
+
+	private int replayCount;
+
+	// The lines of the statements executed but not committed yet.
+	private Deque<String> pendingLines = Queues.newArrayDeque();
+
+	private Writer writer;
+
+	protected ExecutionJournal(File file, long[] hashes, int replayCount) throws IOException {
+		super();
+
+		this.file = file;
+		this.hashes = hashes;
+		this.replayCount = replayCount;
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, replayCount > 0), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// Return the number of statements skipped when resuming.
+	public int getReplayCount() {
+		return replayCount;
+	}
+
+	// Whether the statement has already been applied, in which case it must be
+	// skipped. The statement must be the same as the one which was applied.
+	public boolean isApplied(long position, String sql) {
+		if (position > replayCount) {
+			return false;
+		}
+
+		if (hashes[(int) position - 1] != hash(sql)) {
+			throw new IllegalStateException("The statement " + position + " does not match the " + file + " journal (the script has changed since): " + sql);
+		}
+		return true;
+	}
+
+	public boolean isApplied(long position, long hash) {
+		if (position > replayCount) {
+			return false;
+		}
+
+		if (hashes[(int) position - 1] != hash) {
+			throw new IllegalStateException("The statement " + position + " does not match the " + file + " journal (the script has changed since)");
+		}
+		return true;
+	}
+
+	public void executed(long position, String script, int line, String sql) {
+		executed(position, script, line, hash(sql));
+	}
+
+	public void executed(long position, String script, int line, long hash) {
+		pendingLines.addLast(position + " " + UnsignedLongs.toString(hash, 16) + " " + script + ":" + line + "\n");
+	}
+
+	// Write the given number of statements executed, which are now committed,
+	// and return how many were (fewer when the others are not reported yet).
+	public int committed(int statementCount) throws IOException {
+		int writtenCount = 0;
+		for (; writtenCount < statementCount && !pendingLines.isEmpty(); writtenCount++) {
+			writer.write(pendingLines.removeFirst());
+		}
+		return writtenCount;
+	}
+
+	// Forget the statements executed but not committed.
+	public void rolledBack() {
+		if (!pendingLines.isEmpty()) {
+			LOGGER.debug("{} statements rolled back, not written to the journal", pendingLines.size());
+			pendingLines.clear();
+		}
+	}
+
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	protected static long hash(String sql) {
+		return Hashing.murmur3_128().hashUnencodedChars(sql).asLong();
+	}
+
+	// Same as the hash of the statement read in memory.
+	protected static long hash(SpilledStatement statement) throws IOException {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		Reader reader = statement.openReader();
+		try {
+			char[] chars = new char[BUFFER_SIZE];
+			int count;
+			while ((count = reader.read(chars)) >= 0) {
+				hasher.putUnencodedChars(CharBuffer.wrap(chars, 0, count));
+			}
+		} finally {
+			reader.close();
+		}
+		return hasher.hash().asLong();
+	}
+
+	// Start a new journal, discarding the previous one.
+	public static ExecutionJournal create(File file) throws IOException {
+		return new ExecutionJournal(file, new long[0], 0);
+	}
+
+	// Read the journal, if it exists, to skip the statements already applied.
+	public static ExecutionJournal resume(File file) throws IOException {
+		if (!file.exists()) {
+			return create(file);
+		}
+
+		truncatePartialLine(file);
+
+		long[] hashes = new long[1024];
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ", 3);
+				if (fields.length < 3 || Long.parseLong(fields[0]) != count + 1) {
+					throw new IOException("The " + file + " journal is corrupted at line " + (count + 1) + ": " + line);
+				}
+				if (count == hashes.length) {
+					hashes = Arrays.copyOf(hashes, count * 2);
+				}
+				hashes[count++] = UnsignedLongs.parseUnsignedLong(fields[1], 16);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("The " + file + " journal is corrupted at line " + (count + 1), e);
+		} finally {
+			reader.close();
+		}
+
+		LOGGER.info("Resuming after {} statements from the {} journal", count, file);
+		return new ExecutionJournal(file, hashes, count);
+	}
+
+	// A line written partially before a crash is removed.
+	private static void truncatePartialLine(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			long length = randomAccessFile.length();
+			while (length > 0) {
+				randomAccessFile.seek(length - 1);
+				if (randomAccessFile.read() == '\n') {
+					break;
+				}
+				length--;
+			}
+			if (length < randomAccessFile.length()) {
+				LOGGER.warn("Removing the partial last line of the {} journal", file);
+				randomAccessFile.setLength(length);
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+}
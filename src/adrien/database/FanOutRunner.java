@@ -0,0 +1,226 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.jdbc.JDBCStatementExecutor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+// Run a script, parsed once, against many targets at the same time on a
+// bounded pool of threads. Each target has its own script executor and
+// substitution variables, and a failed or slow target does not stop the others.
+public class FanOutRunner {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(FanOutRunner.class);
+
+	public static class Target {
+
+		private String name;
+
+		private StatementExecutor statementExecutor;
+
+		private Map<String, String> substitutionVariables;
+
+		private String[] arguments;
+
+		public Target(String name, StatementExecutor statementExecutor, Map<String, String> substitutionVariables, String[] arguments) {
+			super();
+
+			this.name = name;
+			this.statementExecutor = statementExecutor;
+			this.substitutionVariables = ImmutableMap.copyOf(substitutionVariables);
+			this.arguments = arguments.clone();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public StatementExecutor getStatementExecutor() {
+			return statementExecutor;
+		}
+
+		public Map<String, String> getSubstitutionVariables() {
+			return substitutionVariables;
+		}
+
+		public String[] getArguments() {
+			return arguments.clone();
+		}
+
+		public static Target forConnection(String name, Connection connection, Map<String, String> substitutionVariables, String... arguments) {
+			return new Target(name, JDBCStatementExecutor.forConnection(connection), substitutionVariables, arguments);
+		}
+
+	}
+
+	public static class Result {
+
+		private Target target;
+
+		private Throwable failure;
+
+		private long elapsedTime;
+
+		public Result(Target target, Throwable failure, long elapsedTime) {
+			super();
+
+			this.target = target;
+			this.failure = failure;
+			this.elapsedTime = elapsedTime;
+		}
+
+		public Target getTarget() {
+			return target;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		// Return the elapsed time in nanoseconds.
+		public long getElapsedTime() {
+			return elapsedTime;
+		}
+
+	}
+
+	// Notified as soon as a target is done, from the thread which ran it.
+	public static interface Listener {
+
+		void targetDone(Result result);
+
+	}
+
+	private int parallelism;
+
+	private ScriptCache scriptCache = new ScriptCache();
+
+	private IncludeResolver includeResolver = new IncludeResolver();
+
+	private Listener listener;
+
+	public FanOutRunner(int parallelism) {
+		super();
+
+		this.parallelism = parallelism;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// The cache is shared by all the targets, for the @ and START includes.
+	public void setScriptCache(ScriptCache scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
+	// Shared by all the targets, and by the compilation of the scripts.
+	public void setIncludeResolver(IncludeResolver includeResolver) {
+		this.includeResolver = includeResolver;
+	}
+
+	// Run the script against all the targets and return their results, in the
+	// order of the targets.
+	public List<Result> run(File scriptFile, List<Target> targets) throws IOException, InterruptedException {
+		CompiledScript compiledScript = scriptCache.get(scriptFile, new ScriptExecutor(null, includeResolver));
+		return run(compiledScript, targets);
+	}
+
+	public List<Result> run(final CompiledScript compiledScript, List<Target> targets) throws InterruptedException {
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, targets.size())), newThreadFactory());
+		try {
+			List<Future<Result>> futures = Lists.newArrayList();
+			for (final Target target : targets) {
+				futures.add(executorService.submit(new Callable<Result>() {
+
+					@Override
+					public Result call() {
+						return run(compiledScript, target);
+					}
+
+				}));
+			}
+
+			List<Result> results = Lists.newArrayList();
+			for (Future<Result> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Failures are expected to be caught", e);
+				}
+			}
+			return results;
+		} finally {
+			executorService.shutdownNow();
+			executorService.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	protected Result run(CompiledScript compiledScript, Target target) {
+		long startTime = System.nanoTime();
+		Throwable failure = null;
+		try {
+			ScriptExecutor scriptExecutor = newScriptExecutor(target);
+			scriptExecutor.executeScript(compiledScript, target.getArguments());
+		} catch (Throwable e) {
+			failure = e;
+		}
+
+		Result result = new Result(target, failure, System.nanoTime() - startTime);
+		if (failure == null) {
+			LOGGER.info("{} done in {} ms", target.getName(), TimeUnit.NANOSECONDS.toMillis(result.getElapsedTime()));
+		} else {
+			LOGGER.error("{} failed after {} ms", target.getName(), TimeUnit.NANOSECONDS.toMillis(result.getElapsedTime()), failure);
+		}
+		if (listener != null) {
+			listener.targetDone(result);
+		}
+		return result;
+	}
+
+	// Create the script executor of the target. Override to configure it.
+	protected ScriptExecutor newScriptExecutor(Target target) {
+		ScriptExecutor scriptExecutor = new ScriptExecutor(target.getStatementExecutor(), includeResolver);
+		scriptExecutor.setScriptCache(scriptCache);
+		for (Map.Entry<String, String> substitutionVariable : target.getSubstitutionVariables().entrySet()) {
+			scriptExecutor.setSubstitutionVariable(substitutionVariable.getKey(), substitutionVariable.getValue());
+		}
+		return scriptExecutor;
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fan-out-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
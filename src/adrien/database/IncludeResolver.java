@@ -0,0 +1,215 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.util.CharArrayLineSource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+// Keep the content of the scripts in memory while their files are not
+// modified, so that a script included many times is read only once. When a
+// script is read, the scripts it includes are read in the background, while
+// its first statements are executed.
+public class IncludeResolver {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(IncludeResolver.class);
+
+	// In characters, for all the scripts.
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+	// In bytes, the larger files are not kept (nor read in the background).
+	public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+	final private static int PREFETCH_THREAD_COUNT = 2;
+
+	private static class Script {
+
+		private Charset charset;
+
+		private long lastModified;
+
+		private long length;
+
+		// Null if the file is too large to be kept.
+		private CharBuffer content;
+
+		public Script(Charset charset, long lastModified, long length, CharBuffer content) {
+			super();
+
+			this.charset = charset;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.content = content;
+		}
+
+		public boolean isValidFor(File file, Charset charset) {
+			return this.charset.equals(charset) && file.lastModified() == lastModified && file.length() == length;
+		}
+
+		public int getWeight() {
+			return content == null ? 0 : content.remaining();
+		}
+
+	}
+
+	private long maxFileSize;
+
+	private Cache<File, Script> scripts;
+
+	private ThreadPoolExecutor prefetchExecutor;
+
+	public IncludeResolver() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_FILE_SIZE);
+	}
+
+	public IncludeResolver(long maxSize, long maxFileSize) {
+		super();
+
+		this.maxFileSize = maxFileSize;
+		this.scripts = CacheBuilder.newBuilder()
+				.maximumWeight(maxSize)
+				.weigher(new Weigher<File, Script>() {
+
+					@Override
+					public int weigh(File file, Script script) {
+						return script.getWeight();
+					}
+
+				})
+				.build();
+		this.prefetchExecutor = new ThreadPoolExecutor(PREFETCH_THREAD_COUNT, PREFETCH_THREAD_COUNT, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory());
+		this.prefetchExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	// Return the content of the script (which must not be modified), or null if
+	// the file is too large to be kept.
+	public CharBuffer get(File scriptFile, Charset charset) throws IOException {
+		File key = scriptFile.getCanonicalFile();
+		Script script = get(key, charset, false);
+		if (!script.isValidFor(key, charset)) {
+			LOGGER.debug("Reloading {}", key);
+			scripts.asMap().remove(key, script);
+			script = get(key, charset, false);
+		}
+		return script.content;
+	}
+
+	// Start reading the script in the background.
+	public void prefetch(final File scriptFile, final Charset charset) {
+		prefetchExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					get(scriptFile.getCanonicalFile(), charset, true);
+				} catch (IOException e) {
+					LOGGER.debug("Unable to prefetch {}", scriptFile, e);
+				}
+			}
+
+		});
+	}
+
+	public void invalidate(File scriptFile) throws IOException {
+		scripts.invalidate(scriptFile.getCanonicalFile());
+	}
+
+	public void clear() {
+		scripts.invalidateAll();
+	}
+
+	// A script being read by another thread is waited for.
+	protected Script get(final File key, final Charset charset, final boolean prefetching) throws IOException {
+		try {
+			return scripts.get(key, new Callable<Script>() {
+
+				@Override
+				public Script call() throws IOException {
+					return read(key, charset, prefetching);
+				}
+
+			});
+		} catch (ExecutionException e) {
+			throw propagate(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw propagate(e.getCause());
+		}
+	}
+
+	protected Script read(File scriptFile, Charset charset, boolean prefetching) throws IOException {
+		long lastModified = scriptFile.lastModified();
+		long length = scriptFile.length();
+		if (length > maxFileSize) {
+			return new Script(charset, lastModified, length, null);
+		}
+
+		LOGGER.debug(prefetching ? "Prefetching {}" : "Reading {}", scriptFile);
+		CharBuffer content = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.decode(ByteBuffer.wrap(Files.toByteArray(scriptFile)));
+		prefetchIncludes(scriptFile, content, charset);
+		return new Script(charset, lastModified, length, content);
+	}
+
+	// Read the scripts included by the lines looking like @, @@ or START. The
+	// lines inside blocks or comments may be read for nothing, which is
+	// harmless.
+	protected void prefetchIncludes(File scriptFile, CharBuffer content, Charset charset) {
+		CharArrayLineSource lineSource = new CharArrayLineSource(content);
+		CharSequence line;
+		while ((line = lineSource.readLine()) != null) {
+			String fileName = ScriptLexer.getIncludedFileName(line);
+			if (fileName == null) {
+				continue;
+			}
+
+			boolean fromScriptDirectory = line.length() > 1 && line.charAt(0) == '@' && line.charAt(1) == '@';
+			File includedFile = new File(fromScriptDirectory ? scriptFile.getParentFile() : new File(System.getProperty("user.dir")), fileName);
+			if (includedFile.isFile() && includedFile.length() <= maxFileSize) {
+				prefetch(includedFile, charset);
+			}
+		}
+	}
+
+	private static IOException propagate(Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(cause.getMessage(), cause);
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "include-prefetch-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,211 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.metrics.LoadMetrics;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+// Use a script as a workload: run it, parsed once, a number of times from
+// concurrent sessions, each with its own script executor and statement
+// executor. The iterations are shared by the sessions, and each one gets its
+// number as &1 and the number of its session as &2 (both starting at 1).
+//
+// By default, a session starts its next iteration as soon as the previous one
+// is done, after the think time if any. With a target rate, the iterations are
+// scheduled at fixed times instead (open loop), and their latencies are
+// measured from the time they were scheduled, so that a slow database does not
+// hide its own queueing.
+//
+// A failed iteration is counted and rolled back, and the session goes on.
+public class LoadReplayRunner {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(LoadReplayRunner.class);
+
+	final private static int MAX_LOGGED_FAILURES = 10;
+
+	private StatementExecutorFactory statementExecutorFactory;
+
+	private int sessionCount;
+
+	private long iterationCount = 1;
+
+	private long thinkTime = 0;
+
+	private double targetRate = 0;
+
+	private Map<String, String> substitutionVariables = ImmutableMap.of();
+
+	private ScriptCache scriptCache = new ScriptCache();
+
+	private IncludeResolver includeResolver = new IncludeResolver();
+
+	public LoadReplayRunner(StatementExecutorFactory statementExecutorFactory, int sessionCount) {
+		super();
+
+		this.statementExecutorFactory = statementExecutorFactory;
+		this.sessionCount = sessionCount;
+	}
+
+	// The number of iterations over all the sessions.
+	public void setIterationCount(long iterationCount) {
+		this.iterationCount = iterationCount;
+	}
+
+	public void setThinkTime(long thinkTime, TimeUnit unit) {
+		this.thinkTime = unit.toNanos(thinkTime);
+	}
+
+	// The number of iterations started per second over all the sessions (0 to
+	// start them as fast as the sessions can).
+	public void setTargetRate(double targetRate) {
+		this.targetRate = targetRate;
+	}
+
+	// Defined in every session, before the first iteration.
+	public void setSubstitutionVariables(Map<String, String> substitutionVariables) {
+		this.substitutionVariables = ImmutableMap.copyOf(substitutionVariables);
+	}
+
+	public void setScriptCache(ScriptCache scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
+	// Shared by all the sessions, and by the compilation of the scripts.
+	public void setIncludeResolver(IncludeResolver includeResolver) {
+		this.includeResolver = includeResolver;
+	}
+
+	public LoadMetrics run(File scriptFile) throws IOException, InterruptedException {
+		CompiledScript compiledScript = scriptCache.get(scriptFile, new ScriptExecutor(null, includeResolver));
+		return run(compiledScript);
+	}
+
+	// Run the iterations and return their metrics once they are all done.
+	public LoadMetrics run(final CompiledScript compiledScript) throws InterruptedException {
+		final LoadMetrics loadMetrics = new LoadMetrics();
+		final AtomicLong nextIteration = new AtomicLong(1);
+		ExecutorService executorService = Executors.newFixedThreadPool(sessionCount, newThreadFactory());
+		try {
+			loadMetrics.started();
+			final long startTime = System.nanoTime();
+			List<Future<Void>> futures = Lists.newArrayList();
+			for (int i = 1; i <= sessionCount; i++) {
+				final int session = i;
+				futures.add(executorService.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						runSession(compiledScript, session, nextIteration, startTime, loadMetrics);
+						return null;
+					}
+
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					LOGGER.error("A session has stopped", e.getCause());
+				}
+			}
+			loadMetrics.ended();
+			LOGGER.info(loadMetrics.getSummary());
+			return loadMetrics;
+		} finally {
+			executorService.shutdownNow();
+			executorService.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	protected void runSession(CompiledScript compiledScript, int session, AtomicLong nextIteration, long startTime, LoadMetrics loadMetrics) throws Exception {
+		StatementExecutor statementExecutor = statementExecutorFactory.newStatementExecutor();
+		boolean succeeded = false;
+		try {
+			ScriptExecutor scriptExecutor = newScriptExecutor(statementExecutor, session);
+			scriptExecutor.setExecutionListener(loadMetrics);
+			for (long iteration = nextIteration.getAndIncrement(); iteration <= iterationCount; iteration = nextIteration.getAndIncrement()) {
+				long iterationStartTime = System.nanoTime();
+				if (targetRate > 0) {
+					iterationStartTime = startTime + (long) ((iteration - 1) * 1e9 / targetRate);
+					waitUntil(iterationStartTime);
+				}
+
+				try {
+					scriptExecutor.executeScript(compiledScript, getArguments(iteration, session));
+					loadMetrics.iterationExecuted(System.nanoTime() - iterationStartTime);
+				} catch (Exception e) {
+					loadMetrics.iterationFailed();
+					if (loadMetrics.getFailureCount() <= MAX_LOGGED_FAILURES) {
+						LOGGER.warn("The iteration {} of the session {} failed", iteration, session, e);
+					}
+				}
+
+				if (thinkTime > 0 && targetRate <= 0) {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(thinkTime), (int) (thinkTime % 1000000));
+				}
+			}
+			succeeded = true;
+		} finally {
+			statementExecutorFactory.release(statementExecutor, succeeded);
+		}
+	}
+
+	private static void waitUntil(long time) throws InterruptedException {
+		long remaining;
+		while ((remaining = time - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	// Return the arguments of the iteration, &1 and &2 in the script.
+	protected String[] getArguments(long iteration, int session) {
+		return new String[] { Long.toString(iteration), Integer.toString(session) };
+	}
+
+	// Create the script executor of a session. Override to configure it.
+	protected ScriptExecutor newScriptExecutor(StatementExecutor statementExecutor, int session) {
+		ScriptExecutor scriptExecutor = new ScriptExecutor(statementExecutor, includeResolver);
+		scriptExecutor.setScriptCache(scriptCache);
+		for (Map.Entry<String, String> substitutionVariable : substitutionVariables.entrySet()) {
+			scriptExecutor.setSubstitutionVariable(substitutionVariable.getKey(), substitutionVariable.getValue());
+		}
+		return scriptExecutor;
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "load-replay-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
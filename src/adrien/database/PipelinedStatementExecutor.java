@@ -0,0 +1,318 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Execute the statements on a dedicated thread, so that the script executor
+// can parse the next statements while the database is busy. The statements are
+// queued in a bounded queue (the parser blocks when it is full) and executed in
+// order. After the first failure, no other statement is executed and the
+// failure is rethrown to the parser. A statement too large to be kept in
+// memory is streamed from its file, which only lives until it is executed:
+// the parser waits for it.
+//
+// The SPOOL commands are queued with the statements, so that the spool file
+// gets the rows of the queries between them. They are applied even after a
+// failure, so that the file is closed.
+public class PipelinedStatementExecutor implements BatchStatementExecutor, TransactionalStatementExecutor, StreamingStatementExecutor, SpoolingStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(PipelinedStatementExecutor.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	final private static Object STOP = new Object();
+
+	// Switch the spool file of the statement executor (off without a file).
+	private static class SpoolSwitch {
+
+		final File file;
+
+		final boolean append;
+
+		final char delimiter;
+
+		SpoolSwitch(File file, boolean append, char delimiter) {
+			this.file = file;
+			this.append = append;
+			this.delimiter = delimiter;
+		}
+
+	}
+
+	private StatementExecutor statementExecutor;
+
+	private BlockingQueue<Object> queue;
+
+	private Thread thread;
+
+	private volatile Throwable failure;
+
+	// Only used when the statement executor does not count them.
+	private volatile long executedStatementCount = 0;
+
+	protected PipelinedStatementExecutor(StatementExecutor statementExecutor, int capacity) {
+		super();
+
+		this.statementExecutor = statementExecutor;
+		this.queue = new ArrayBlockingQueue<Object>(capacity);
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drain();
+			}
+
+		}, "statement-executor");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public StatementExecutor getStatementExecutor() {
+		return statementExecutor;
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		checkFailure();
+		put(sql);
+	}
+
+	@Override
+	public void executeStatement(SpilledStatement statement) throws SQLException {
+		checkFailure();
+		put(statement);
+		flush();
+	}
+
+	// Wait until all the queued statements have been executed.
+	@Override
+	public void flush() throws SQLException {
+		await();
+		checkFailure();
+	}
+
+	@Override
+	public void setBatchSize(int batchSize) throws SQLException {
+		flush();
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			((BatchStatementExecutor) statementExecutor).setBatchSize(batchSize);
+		} else {
+			LOGGER.warn("Ignoring the batch size {} because the statement executor does not support batches", batchSize);
+		}
+	}
+
+	@Override
+	public int getBatchSize() {
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			return ((BatchStatementExecutor) statementExecutor).getBatchSize();
+		}
+		return 1;
+	}
+
+	// The transactions are handled once the queued statements are executed,
+	// while the thread waits.
+	@Override
+	public void setCommitInterval(int commitInterval) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			flush();
+			((TransactionalStatementExecutor) statementExecutor).setCommitInterval(commitInterval);
+		} else {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitInterval);
+		}
+	}
+
+	@Override
+	public int getCommitInterval() {
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitInterval() : 0;
+	}
+
+	@Override
+	public void setCommitRows(long commitRows) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			flush();
+			((TransactionalStatementExecutor) statementExecutor).setCommitRows(commitRows);
+		} else {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitRows);
+		}
+	}
+
+	@Override
+	public long getCommitRows() {
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitRows() : 0;
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		if (getCommitInterval() > 0 || getCommitRows() > 0) {
+			flush();
+			((TransactionalStatementExecutor) statementExecutor).commit();
+		}
+	}
+
+	// The statements still queued are dropped, and so is the failure: the
+	// statements can be executed again after the rollback, even if the
+	// statement executor has no transaction to roll back.
+	@Override
+	public void rollback() throws SQLException {
+		queue.clear();
+		await();
+		Throwable failure = this.failure;
+		this.failure = null;
+		if (failure != null) {
+			LOGGER.debug("Rolling back after failure", failure);
+		}
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).rollback();
+		}
+	}
+
+	@Override
+	public void spool(File file, boolean append, char delimiter) throws IOException, SQLException {
+		if (statementExecutor instanceof SpoolingStatementExecutor) {
+			checkFailure();
+			put(new SpoolSwitch(file, append, delimiter));
+		} else {
+			LOGGER.warn("The statement executor can not spool, {} is ignored", file);
+		}
+	}
+
+	// Wait until the spool file is closed, after the queued statements.
+	@Override
+	public void spoolOff() throws IOException, SQLException {
+		if (statementExecutor instanceof SpoolingStatementExecutor) {
+			put(new SpoolSwitch(null, false, '\0'));
+			await();
+		}
+	}
+
+	@Override
+	public long getCommittedStatementCount() {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			return ((TransactionalStatementExecutor) statementExecutor).getCommittedStatementCount();
+		}
+		return executedStatementCount;
+	}
+
+	// Execute the remaining statements and stop the thread.
+	public void close() throws SQLException {
+		try {
+			flush();
+		} finally {
+			put(STOP);
+		}
+	}
+
+	// Wait until the thread has gone through the queued statements, without
+	// checking whether they failed.
+	protected void await() throws SQLException {
+		CountDownLatch barrier = new CountDownLatch(1);
+		put(barrier);
+		try {
+			barrier.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the statements to be executed", e);
+		}
+	}
+
+	protected void put(Object item) throws SQLException {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while queuing a statement", e);
+		}
+	}
+
+	protected void checkFailure() throws SQLException {
+		Throwable failure = this.failure;
+		if (failure instanceof SQLException) {
+			SQLException e = (SQLException) failure;
+			throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+		} else if (failure != null) {
+			throw new SQLException(failure.getMessage(), failure);
+		}
+	}
+
+	// Run on the dedicated thread.
+	protected void drain() {
+		while (true) {
+			Object item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				LOGGER.warn("Statement executor thread interrupted");
+				return;
+			}
+
+			if (item == STOP) {
+				return;
+			} else if (item instanceof CountDownLatch) {
+				if (failure == null && statementExecutor instanceof BatchStatementExecutor) {
+					execute(null);
+				}
+				((CountDownLatch) item).countDown();
+			} else if (item instanceof SpoolSwitch) {
+				apply((SpoolSwitch) item);
+			} else if (failure == null) {
+				execute(item);
+			} else {
+				LOGGER.debug("Skipping statement after failure ({})", item);
+			}
+		}
+	}
+
+	// Execute the statement, or flush the statement executor if there is none.
+	private void execute(Object statement) {
+		try {
+			if (statement == null) {
+				((BatchStatementExecutor) statementExecutor).flush();
+			} else if (statement instanceof SpilledStatement) {
+				((SpilledStatement) statement).executeOn(statementExecutor);
+				executedStatementCount++;
+			} else {
+				statementExecutor.executeStatement((String) statement);
+				executedStatementCount++;
+			}
+		} catch (SQLException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+	}
+
+	// A failure is kept only if it is the first one.
+	private void apply(SpoolSwitch spoolSwitch) {
+		SpoolingStatementExecutor spoolingStatementExecutor = (SpoolingStatementExecutor) statementExecutor;
+		try {
+			if (spoolSwitch.file == null) {
+				spoolingStatementExecutor.spoolOff();
+			} else {
+				spoolingStatementExecutor.spool(spoolSwitch.file, spoolSwitch.append, spoolSwitch.delimiter);
+			}
+		} catch (Exception e) {
+			if (failure == null) {
+				failure = e;
+			} else {
+				LOGGER.warn("Unable to switch the spool file to {}", spoolSwitch.file, e);
+			}
+		}
+	}
+
+	public static PipelinedStatementExecutor of(StatementExecutor statementExecutor) {
+		return of(statementExecutor, DEFAULT_CAPACITY);
+	}
+
+	public static PipelinedStatementExecutor of(StatementExecutor statementExecutor, int capacity) {
+		PipelinedStatementExecutor pipelinedStatementExecutor = new PipelinedStatementExecutor(statementExecutor, capacity);
+		return pipelinedStatementExecutor;
+	}
+
+}
@@ -0,0 +1,11 @@
+package adrien.database;
+
+import java.sql.SQLException;
+
+// Return the execution plan of a statement, in the syntax of a database.
+public interface PlanExplainer {
+
+	// Return the plan as text, or null if the statement can not be explained.
+	String explain(String sql) throws SQLException;
+
+}
@@ -0,0 +1,150 @@
+package adrien.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+// Keep the compiled scripts in memory, keyed by path and checked against the
+// modification time of their files. When a directory is given, the compiled
+// scripts are also saved there so that another JVM can load them without
+// parsing.
+public class ScriptCache {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ScriptCache.class);
+
+	final private static String EXTENSION = ".sqlc";
+
+	private Map<File, CompiledScript> compiledScripts = Maps.newConcurrentMap();
+
+	private File directory;
+
+	public ScriptCache() {
+		this(null);
+	}
+
+	public ScriptCache(File directory) {
+		super();
+
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	// Return the compiled script, compiling it with the settings of the script
+	// executor if needed.
+	public CompiledScript get(File scriptFile, ScriptExecutor scriptExecutor) throws IOException {
+		File key = scriptFile.getAbsoluteFile();
+		String settings = scriptExecutor.getCompileSettings();
+
+		CompiledScript compiledScript = compiledScripts.get(key);
+		if (compiledScript != null && compiledScript.isValidFor(settings)) {
+			return compiledScript;
+		}
+
+		compiledScript = load(key);
+		if (compiledScript == null || !compiledScript.isValidFor(settings)) {
+			LOGGER.debug("Compiling {}", key);
+			compiledScript = new ScriptCompiler(scriptExecutor).compile(key);
+			save(key, compiledScript);
+		}
+
+		compiledScripts.put(key, compiledScript);
+		return compiledScript;
+	}
+
+	public void invalidate(File scriptFile) {
+		compiledScripts.remove(scriptFile.getAbsoluteFile());
+	}
+
+	public void clear() {
+		compiledScripts.clear();
+	}
+
+	protected File getCacheFile(File scriptFile) {
+		String name = scriptFile.getName() + "-" + Integer.toHexString(scriptFile.getPath().hashCode()) + EXTENSION;
+		return new File(directory, name);
+	}
+
+	protected CompiledScript load(File scriptFile) {
+		if (directory == null) {
+			return null;
+		}
+
+		File cacheFile = getCacheFile(scriptFile);
+		if (!cacheFile.exists()) {
+			return null;
+		}
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			CompiledScript compiledScript = CompiledScript.readFrom(input);
+			// The name of the cache file may collide.
+			if (!compiledScript.getDependencies().containsKey(scriptFile)) {
+				return null;
+			}
+			LOGGER.debug("Compiled script loaded from {}", cacheFile);
+			return compiledScript;
+		} catch (IOException e) {
+			LOGGER.warn("Unable to load the compiled script {}", cacheFile, e);
+			return null;
+		} finally {
+			closeQuietly(input);
+		}
+	}
+
+	// Write in a temporary file first, so that a concurrent load never reads a
+	// partial file.
+	protected void save(File scriptFile, CompiledScript compiledScript) {
+		if (directory == null) {
+			return;
+		}
+
+		File cacheFile = getCacheFile(scriptFile);
+		DataOutputStream output = null;
+		try {
+			directory.mkdirs();
+			File temporaryFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+			compiledScript.writeTo(output);
+			output.close();
+			output = null;
+			if (!temporaryFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				if (!temporaryFile.renameTo(cacheFile)) {
+					temporaryFile.delete();
+					LOGGER.warn("Unable to save the compiled script to {}", cacheFile);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to save the compiled script to {}", cacheFile, e);
+		} finally {
+			closeQuietly(output);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close the stream", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import adrien.database.CompiledScript.Directive;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Parse a script into a CompiledScript instead of executing it. The @@
+// includes are inlined, while the @ and START ones (relative to the working
+// directory) are kept as directives.
+//
+// The statements are kept in memory whatever their size, since a spilled one
+// would have its variables substituted at compile time: the spill threshold
+// does not apply to the compiled (and cached) scripts, which should not hold
+// large statements.
+public class ScriptCompiler extends ScriptExecutor {
+
+	private Map<File, Long> dependencies = Maps.newLinkedHashMap();
+
+	private List<Directive> directives = Lists.newArrayList();
+
+	private String settings;
+
+	// Compile with the settings the script executor currently has.
+	public ScriptCompiler(ScriptExecutor scriptExecutor) {
+		super(null, scriptExecutor.getIncludeResolver());
+
+		setSQLTerminator(scriptExecutor.getSQLTerminator());
+		setBlockTerminator(scriptExecutor.getBlockTerminator());
+		setSubstitutionVariablePrefix(scriptExecutor.getSubstitutionVariablePrefix());
+		setSubstitutionVariableTerminator(scriptExecutor.getSubstitutionVariableTerminator());
+		setSubstitutionVariableEscaper(scriptExecutor.getSubstitutionVariableEscaper());
+		setCharset(scriptExecutor.getCharset());
+		// The variables of the spilled statements would be substituted now.
+		setSpillThreshold(Long.MAX_VALUE);
+		this.settings = getCompileSettings();
+	}
+
+	public CompiledScript compile(File scriptFile) throws IOException {
+		dependencies.put(scriptFile, scriptFile.lastModified());
+		try {
+			executeScript(scriptFile);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Nothing should be executed while compiling", e);
+		}
+		return new CompiledScript(settings, dependencies, directives);
+	}
+
+	@Override
+	public void executeStatement(StringBuilder buffer) {
+		String sql = buffer.toString().trim();
+		directives.add(Directive.statement(sql, findSubstitutionPoints(sql), getCurrentScript(), getCurrentLine()));
+	}
+
+	@Override
+	protected void include(String line) throws IOException, SQLException {
+		File scriptFile = parseInclude(line);
+		if (isIncludeFromScriptDirectory(line)) {
+			dependencies.put(scriptFile, scriptFile.lastModified());
+			executeScript(scriptFile);
+		} else {
+			directives.add(Directive.include(scriptFile));
+		}
+	}
+
+	@Override
+	protected void set(Option option, Optional<String> value) throws SQLException {
+		if (option.isParsing()) {
+			super.set(option, value);
+		}
+		directives.add(Directive.set(option, value.orNull()));
+	}
+
+	@Override
+	protected void define(String line) {
+		directives.add(Directive.define(line));
+	}
+
+	@Override
+	protected void spool(String line) {
+		directives.add(Directive.spool(line));
+	}
+
+	@Override
+	protected void flushStatements() {
+	}
+
+	// Find the prefix the way the substitution syntax does, ignoring the case.
+	protected int[] findSubstitutionPoints(String sql) {
+		String prefix = getSubstitutionVariablePrefix();
+		int count = 0;
+		for (int offset = 0; offset < sql.length(); offset++) {
+			if (ScriptLexer.regionMatches(sql, offset, prefix)) {
+				count++;
+			}
+		}
+
+		int[] substitutionPoints = new int[count];
+		int i = 0;
+		for (int offset = 0; i < count; offset++) {
+			if (ScriptLexer.regionMatches(sql, offset, prefix)) {
+				substitutionPoints[i++] = offset;
+			}
+		}
+		return substitutionPoints;
+	}
+
+}
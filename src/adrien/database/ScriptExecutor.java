@@ -1,48 +1,114 @@
 package adrien.database;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Deque;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import adrien.database.CompiledScript.Directive;
+import adrien.database.jdbc.JDBCStatementExecutor;
+import adrien.database.metrics.ExecutionListener;
+import adrien.database.metrics.StatementMetrics;
 import adrien.struct.Pair;
+import adrien.util.CharArrayLineSource;
+import adrien.util.LineSource;
+import adrien.util.MappedFileLineSource;
+import adrien.util.ReaderLineSource;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
-import com.google.common.collect.Maps;
-import com.google.common.io.LineReader;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class ScriptExecutor {
 
 	final private static Logger LOGGER = LoggerFactory
 			.getLogger(ScriptExecutor.class);
 
+	public static final long DEFAULT_SPILL_THRESHOLD = 16 * 1024 * 1024;
+
+	final private static int DEFAULT_BUFFER_SIZE = 4 * 1024;
+
+	final private static int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+	// The part of a spilled statement searched for the tables it needs.
+	final private static int SPILLED_HEAD_LENGTH = 4 * 1024;
+
+	final private static String EOL = System.getProperty("line.separator");
+
+	final private static Pattern SPOOL_PATTERN = Pattern.compile("^SPOOL\\s+(\\S+?)(?:\\s+(CREATE|REPLACE|APPEND))?\\s*;?$", Pattern.CASE_INSENSITIVE);
+
 	public static enum Option {
 
-		SQL_TERMINATOR(";"), BLOCK_TERMINATOR("."), DEFINE("&"), CONCAT("."), ESCAPE("\\");
+		SQL_TERMINATOR(";"), BLOCK_TERMINATOR("."), DEFINE("&"), CONCAT("."), ESCAPE("\\"),
+		BATCH_SIZE("100", false), COMMIT_INTERVAL("0", false), COMMIT_ROWS("0", false), SPOOL_DELIMITER(",", false);
 		
 		private String defaultValue;
+
+		private boolean parsing;
 		
 		private Option(String defaultValue) {
+			this(defaultValue, true);
+		}
+
+		private Option(String defaultValue, boolean parsing) {
 			this.defaultValue = defaultValue;
+			this.parsing = parsing;
 		}
 		
 		public String getDefaultValue() {
 			return defaultValue;
 		}
 
+		// Whether the option changes how the scripts are parsed, rather than
+		// how the statements are executed.
+		public boolean isParsing() {
+			return parsing;
+		}
+
+	}
+
+	// A statement submitted to an asynchronous statement executor, with what
+	// the journal needs once it is executed.
+	private static class OutstandingStatement {
+
+		final ListenableFuture<Long> future;
+
+		final long position;
+
+		final String script;
+
+		final int line;
+
+		final long hash;
+
+		OutstandingStatement(ListenableFuture<Long> future, long position, String script, int line, long hash) {
+			this.future = future;
+			this.position = position;
+			this.script = script;
+			this.line = line;
+			this.hash = hash;
+		}
+
 	}
 
 	private String blockTerminator = Option.BLOCK_TERMINATOR.getDefaultValue();
@@ -51,17 +117,265 @@ public class ScriptExecutor {
 	private String substitutionVariableTerminator = Option.CONCAT.getDefaultValue();
 	private String substitutionVariableEscaper = Option.ESCAPE.getDefaultValue();
 
-	private Map<String, String> substitutionVariables = Maps.newHashMap();
+	private ScriptLexer lexer;
+
+	private SubstitutionSyntax substitutionSyntax;
+
+	private VariableScope substitutionVariables;
+
+	// Whether an included script defines its variables in its own scope.
+	private boolean scopedIncludes = false;
 	
 	private Stack<File> scriptDirectory = new Stack<File>();
+
+	// Number of scripts being executed (the included ones count).
+	private int depth = 0;
 	
 	private StatementExecutor statementExecutor;
 
+	private ScriptCache scriptCache;
+
+	private IncludeResolver includeResolver;
+
+	// The canonical files of the scripts being executed, to detect the cycles.
+	private Deque<File> scriptFiles = Queues.newArrayDeque();
+
+	private Charset charset = Charset.defaultCharset();
+
+	// Size of the parts of the script files mapped in memory at once.
+	private int windowSize = MappedFileLineSource.DEFAULT_WINDOW_SIZE;
+
+	// The script file (null for a stream) and the line of the statement being
+	// executed.
+	private String currentScript;
+
+	private int currentLine;
+
+	private ExecutionListener executionListener;
+
+	// Reused for every statement, only when there is a listener.
+	private StatementMetrics statementMetrics;
+
+	// The sessions of a shared script executor leave the end of the runs to
+	// it, since they share the listener.
+	private boolean session = false;
+
+	private long parseStartTime;
+
+	// The statements submitted to an asynchronous statement executor and not
+	// yet completed (none if 0).
+	private int maxOutstandingStatements = 0;
+
+	private ExecutionJournal journal;
+
+	private char spoolDelimiter = ',';
+
+	private DeferredIndexBuilder indexBuilder;
+
+	// The statements larger than the threshold (in characters) are spilled to
+	// temporary files.
+	private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+	private File spillDirectory;
+
+	private StringBuilder statementBuffer;
+
+	private SpilledStatement spilledStatement;
+
+	// The position of the last statement in the run, for the journal.
+	private long statementPosition = 0;
+
+	// Only used when the statement executor does not count them.
+	private long executedStatementCount = 0;
+
+	private long journaledStatementCount = 0;
+
+	private Deque<OutstandingStatement> outstandingStatements = Queues.newArrayDeque();
+
 	// Create an instance without setting the script directory.
 	public ScriptExecutor(StatementExecutor statementExecutor) {
+		this(statementExecutor, new IncludeResolver());
+	}
+
+	// Create an instance keeping the scripts read in the given include
+	// resolver, which can be shared by several instances (null to read them
+	// every time).
+	public ScriptExecutor(StatementExecutor statementExecutor, IncludeResolver includeResolver) {
 		super();
 		
 		this.statementExecutor = statementExecutor;
+		this.lexer = new ScriptLexer(sqlTerminator, blockTerminator);
+		this.substitutionSyntax = newSubstitutionSyntax();
+		this.substitutionVariables = new VariableScope();
+		this.includeResolver = includeResolver;
+	}
+
+	// Create the session of a run of the shared script executor, which reads
+	// its variables through to the shared ones.
+	protected ScriptExecutor(StatementExecutor statementExecutor, SharedScriptExecutor sharedScriptExecutor) {
+		super();
+
+		this.statementExecutor = statementExecutor;
+		this.sqlTerminator = sharedScriptExecutor.getSQLTerminator();
+		this.blockTerminator = sharedScriptExecutor.getBlockTerminator();
+		this.substitutionVariablePrefix = sharedScriptExecutor.getSubstitutionVariablePrefix();
+		this.substitutionVariableTerminator = sharedScriptExecutor.getSubstitutionVariableTerminator();
+		this.substitutionVariableEscaper = sharedScriptExecutor.getSubstitutionVariableEscaper();
+		this.lexer = sharedScriptExecutor.getLexer();
+		this.substitutionSyntax = sharedScriptExecutor.getSubstitutionSyntax();
+		this.substitutionVariables = new VariableScope(sharedScriptExecutor.getSubstitutionVariables());
+		this.scopedIncludes = sharedScriptExecutor.isScopedIncludes();
+		this.scriptCache = sharedScriptExecutor.getScriptCache();
+		this.includeResolver = sharedScriptExecutor.getIncludeResolver();
+		this.charset = sharedScriptExecutor.getCharset();
+		this.windowSize = sharedScriptExecutor.getWindowSize();
+		this.maxOutstandingStatements = sharedScriptExecutor.getMaxOutstandingStatements();
+		this.spoolDelimiter = sharedScriptExecutor.getSpoolDelimiter();
+		this.spillThreshold = sharedScriptExecutor.getSpillThreshold();
+		this.spillDirectory = sharedScriptExecutor.getSpillDirectory();
+		setExecutionListener(sharedScriptExecutor.getExecutionListener());
+		this.session = true;
+	}
+
+	protected StatementExecutor getStatementExecutor() {
+		return statementExecutor;
+	}
+
+	// Compile the scripts once and run them from the cache.
+	public void setScriptCache(ScriptCache scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
+	public ScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	// Keep the content of the scripts read (null to read them every time).
+	public void setIncludeResolver(IncludeResolver includeResolver) {
+		this.includeResolver = includeResolver;
+	}
+
+	public IncludeResolver getIncludeResolver() {
+		return includeResolver;
+	}
+
+	// Measure every statement and report it to the listener (null to stop).
+	public void setExecutionListener(ExecutionListener executionListener) {
+		this.executionListener = executionListener;
+		if (executionListener != null && statementMetrics == null) {
+			statementMetrics = new StatementMetrics();
+		}
+	}
+
+	public ExecutionListener getExecutionListener() {
+		return executionListener;
+	}
+
+	// Keep up to the given number of statements in flight if the statement
+	// executor is asynchronous (0, the default, executes them one by one). The
+	// listener only sees the statements executed synchronously.
+	public void setMaxOutstandingStatements(int maxOutstandingStatements) {
+		this.maxOutstandingStatements = maxOutstandingStatements;
+	}
+
+	public int getMaxOutstandingStatements() {
+		return maxOutstandingStatements;
+	}
+
+	// Write the statements applied to the journal, and skip the ones it already
+	// holds if it is resumed (null to stop). The statements have to be committed
+	// in the order of the script, which a concurrent statement executor does not.
+	public void setJournal(ExecutionJournal journal) {
+		if (journal != null && statementExecutor instanceof ConcurrentStatementExecutor) {
+			throw new IllegalArgumentException("A journal can not be used with a concurrent statement executor");
+		}
+		this.journal = journal;
+	}
+
+	public ExecutionJournal getJournal() {
+		return journal;
+	}
+
+	// Defer the index builds until the statements need them, and run them on
+	// other connections (null to execute them in place). Ignored with a
+	// journal, which expects the statements in the order of the script, and
+	// when the statements can not be committed before the builds: the
+	// statement executor has to be a JDBC one or group the statements.
+	public void setIndexBuilder(DeferredIndexBuilder indexBuilder) {
+		this.indexBuilder = indexBuilder;
+	}
+
+	public DeferredIndexBuilder getIndexBuilder() {
+		return indexBuilder;
+	}
+
+	// The statements longer than the threshold (in characters) are spilled to
+	// a file rather than kept in memory, unless the script is compiled (see
+	// ScriptCompiler).
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	// Where the large statements are spilled (null for the default temporary
+	// directory).
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	// Run every included script in a scope of its own, so that its DEFINE are
+	// forgotten once it is done (the @@ includes compiled in a cached script
+	// share the scope of the script).
+	public void setScopedIncludes(boolean scopedIncludes) {
+		this.scopedIncludes = scopedIncludes;
+	}
+
+	public boolean isScopedIncludes() {
+		return scopedIncludes;
+	}
+
+	protected boolean isAsynchronous() {
+		return maxOutstandingStatements > 0 && statementExecutor instanceof AsyncStatementExecutor;
+	}
+
+	protected String getCurrentScript() {
+		return currentScript;
+	}
+
+	protected int getCurrentLine() {
+		return currentLine;
+	}
+
+	// Set the charset of the script files and streams.
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	// Create the decoder of the script files. As with InputStreamReader, the
+	// malformed input is replaced.
+	protected CharsetDecoder newDecoder() {
+		return charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
 	}
 
 	protected void pushScriptDirectory(File scriptDirectory) {
@@ -98,7 +412,9 @@ public class ScriptExecutor {
 
 	// Return the connection to use if defined.
 	public Connection getConnection() {
-
+		if (statementExecutor instanceof JDBCStatementExecutor) {
+			return ((JDBCStatementExecutor) statementExecutor).getConnection();
+		}
 		return null;
 	}
 
@@ -117,130 +433,284 @@ public class ScriptExecutor {
 	public void executeScript(File scriptFile, String[] arguments) throws IOException, SQLException {
 		File scriptDirectory = scriptFile.getParentFile();
 		pushScriptDirectory(scriptDirectory);
-		if (!scriptFile.exists()) {
-			LOGGER.warn("Unable to run the {} script because it does not exist", scriptFile);
-		} else {
-			executeScript(new FileInputStream(scriptFile), arguments);
+		String previousScript = currentScript;
+		int previousLine = currentLine;
+		currentScript = scriptFile.getPath();
+		boolean pushed = false;
+		try {
+			if (!scriptFile.exists()) {
+				LOGGER.warn("Unable to run the {} script because it does not exist", scriptFile);
+				return;
+			}
+
+			File canonicalScriptFile = scriptFile.getCanonicalFile();
+			if (scriptFiles.contains(canonicalScriptFile)) {
+				throw new IOException("The " + scriptFile + " script includes itself (" + Joiner.on(" -> ").join(scriptFiles.descendingIterator()) + " -> " + canonicalScriptFile + ")");
+			}
+			scriptFiles.push(canonicalScriptFile);
+			pushed = true;
+
+			if (scriptCache != null) {
+				executeScript(scriptCache.get(scriptFile, this), arguments);
+			} else {
+				LineSource lineSource = newLineSource(scriptFile);
+				try {
+					executeScript(lineSource, arguments);
+				} finally {
+					closeQuietly(lineSource);
+				}
+			}
+		} finally {
+			if (pushed) {
+				scriptFiles.pop();
+			}
+			currentScript = previousScript;
+			currentLine = previousLine;
+			popScriptDirectory();
+		}
+	}
+
+	// Read the script from the include resolver, unless it is too large.
+	protected LineSource newLineSource(File scriptFile) throws IOException {
+		if (includeResolver != null) {
+			CharBuffer content = includeResolver.get(scriptFile, charset);
+			if (content != null) {
+				return new CharArrayLineSource(content);
+			}
 		}
-		popScriptDirectory();
+		return new MappedFileLineSource(scriptFile, newDecoder(), windowSize);
 	}
 
 	public void executeScript(InputStream inputStream, String[] arguments) throws IOException,
 			SQLException {
-		executeScript(new InputStreamReader(inputStream), arguments);
+		executeScript(new InputStreamReader(inputStream, newDecoder()), arguments);
 	}
 
 	public void executeScript(Reader reader, String[] arguments) throws IOException, SQLException {
+		executeScript(new ReaderLineSource(reader), arguments);
+	}
+
+	public void executeScript(LineSource lineSource, String[] arguments) throws IOException, SQLException {
+		boolean done = false;
+		if (depth++ == 0) {
+			startRun();
+		}
+		try {
+			parseScript(lineSource, arguments);
+			commitStatements();
+			done = true;
+		} finally {
+			endScript(done);
+		}
+	}
+
+	public void executeScript(CompiledScript compiledScript, String[] arguments) throws IOException, SQLException {
+		boolean done = false;
+		if (depth++ == 0) {
+			startRun();
+		}
+		try {
+			runScript(compiledScript, arguments);
+			commitStatements();
+			done = true;
+		} finally {
+			endScript(done);
+		}
+	}
+
+	// The deferred statements are executed once the outermost script is done,
+	// and the uncommitted ones are rolled back if it failed.
+	private void endScript(boolean done) throws SQLException {
+		depth--;
+		if (depth == 0) {
+			try {
+				if (done) {
+					endRun();
+				} else {
+					rollbackStatements();
+					if (indexBuilder != null) {
+						indexBuilder.discard();
+					}
+				}
+			} finally {
+				spoolOffQuietly();
+				if (statementExecutor instanceof SourceAwareStatementExecutor) {
+					((SourceAwareStatementExecutor) statementExecutor).runEnded();
+				}
+			}
+		}
+	}
+
+	// Close the spool file left open by the script.
+	private void spoolOffQuietly() {
+		if (statementExecutor instanceof SpoolingStatementExecutor) {
+			try {
+				((SpoolingStatementExecutor) statementExecutor).spoolOff();
+			} catch (Exception e) {
+				LOGGER.warn("Unable to close the spool file", e);
+			}
+		}
+	}
+
+	// Called before the outermost script.
+	protected void startRun() {
+		// Left by a previous run which failed while reading a statement.
+		if (spilledStatement != null) {
+			spilledStatement.close();
+			spilledStatement = null;
+		}
+		statementPosition = 0;
+		journaledStatementCount = getCommittedStatementCount();
+	}
+
+	protected void endRun() throws SQLException {
+		flushStatements();
+		commitStatements();
+		if (indexBuilder != null && indexBuilder.hasDeferredBuilds()) {
+			commitBeforeBuilds();
+			indexBuilder.buildAll();
+		}
+		if (journal != null) {
+			updateJournal(true);
+		}
+		if (executionListener != null && !session) {
+			executionListener.runEnded();
+		}
+	}
+
+	// Parse the script (with the current settings) without executing it.
+	public CompiledScript compileScript(File scriptFile) throws IOException {
+		return new ScriptCompiler(this).compile(scriptFile);
+	}
+
+	protected void runScript(CompiledScript compiledScript, String[] arguments) throws IOException, SQLException {
 		for (int i = 0; i < arguments.length; i++) {
 			substitutionVariables.put(Integer.toString(i + 1), arguments[i]);
 		}
-		
-		LineReader lineReader = new LineReader(reader);
 
+		for (Directive directive : compiledScript.getDirectives()) {
+			switch (directive.getType()) {
+				case STATEMENT:
+					currentScript = directive.getSource();
+					currentLine = directive.getLine();
+					long substitutionStartTime = startTime();
+					parseStartTime = substitutionStartTime;
+					if (directive.hasSubstitutionPoints()) {
+						SubstitutionTemplate template = directive.getTemplate(substitutionSyntax);
+						executeSubstitutedStatement(template.expand(substitutionVariables), substitutionStartTime);
+					} else {
+						executeSubstitutedStatement(directive.getText(), substitutionStartTime);
+					}
+					break;
+
+				case SET:
+					set(directive.getOption(), Optional.fromNullable(directive.getText()));
+					break;
+
+				case DEFINE:
+					define(directive.getText());
+					break;
+
+				case INCLUDE:
+					executeIncludedScript(new File(directive.getText()));
+					break;
+
+				case SPOOL:
+					spool(directive.getText());
+					break;
+
+				default:
+					throw new IllegalStateException();
+			}
+		}
+	}
+
+	protected void parseScript(LineSource lineSource, String[] arguments) throws IOException, SQLException {
+		for (int i = 0; i < arguments.length; i++) {
+			substitutionVariables.put(Integer.toString(i + 1), arguments[i]);
+		}
+		
 		StringBuilder buffer = null;
-		String line = null;
+		CharSequence line = null;
+		int lineNumber = 0;
 		boolean insideBlock = false;
 		boolean insideSQL = false;
 		while (true) {
 			// We read the line if any.
-			line = readLine(lineReader);
+			line = lineSource.readLine();
 			if (line == null) {
 				break;
 			}
+			lineNumber++;
 
 			LOGGER.trace("line={}", line);
 			LOGGER.trace("insideBlock={}", insideBlock);
+			int flags = lexer.classify(line);
 
 			// We create the SQL buffer if needed.
 			if (buffer == null) {
 				LOGGER.debug("Creating new SQL buffer");
-				buffer = new StringBuilder();
+				buffer = newStatementBuffer();
 				insideBlock = false;
 				insideSQL = false;
+				parseStartTime = startTime();
 			}
 
 			// If line is empty, we go to the next line.
-			if (!insideBlock && isEmpty(line)) {
+			if (!insideBlock && ScriptLexer.is(flags, ScriptLexer.EMPTY)) {
 				LOGGER.debug("Empty line encoutered");
 
 				// If the line is a one-line comment.
-			} else if (isOneLineComment(line)) {
+			} else if (ScriptLexer.is(flags, ScriptLexer.ONE_LINE_COMMENT)) {
 				LOGGER.debug("One-line comment encoutered ({})", line);
 
-			} else if (!insideSQL && insideBlock && isBlockEnd(line, buffer)) {
+			} else if (!insideSQL && insideBlock && ScriptLexer.is(flags, ScriptLexer.BLOCK_END)) {
 				LOGGER.debug("PL/SQL terminator encountered({})", line);
-				executeStatement(buffer);
+				executeBufferedStatement(buffer);
 				buffer = null;
 				insideBlock = false;
 
 				// If it is the beginning of a PL/SQL block.
-			} else if (!insideSQL && !insideBlock && isBlockStart(line, buffer)) {
+			} else if (!insideSQL && !insideBlock && ScriptLexer.is(flags, ScriptLexer.BLOCK_START)) {
 				LOGGER.debug("It's a block start ({})", line);
+				markStatementLine(buffer, lineNumber);
+				appendLine(buffer, line, 0, line.length(), true);
 				insideBlock = true;
 
 				// If it's an include.
-			} else if (!insideSQL && !insideBlock && isInclude(line, buffer)) {
+			} else if (!insideSQL && !insideBlock && ScriptLexer.is(flags, ScriptLexer.INCLUDE)) {
 				LOGGER.debug("Include encountered ({})", line);
-				File scriptFile = parseInclude(line);
-				// TODO: Handle arguments
-				executeScript(scriptFile);
+				include(line.toString());
 				buffer = null;
 				insideBlock = false;
 
-			} else if (!insideSQL && !insideBlock && isEXIT(line)) {
+			} else if (!insideSQL && !insideBlock && ScriptLexer.is(flags, ScriptLexer.EXIT)) {
 				LOGGER.debug("EXIT encountered ({})", line);
 				break;
 
 			// If it's a SET. 
-			} else if (!insideSQL && !insideBlock && isSET(line, buffer)) {
+			} else if (!insideSQL && !insideBlock && ScriptLexer.is(flags, ScriptLexer.SET)) {
 				LOGGER.debug("SET encountered ({})", line);
 				
-				Pair<Option, Optional<String>> set = parseSET(line);
-				Option option = set.getFirst();
-				Optional<String> value = set.getSecond();
-				switch (option) {
-					case SQL_TERMINATOR:
-						setSQLTerminator(value.or(Option.SQL_TERMINATOR.getDefaultValue()));
-						break;
-	
-					case BLOCK_TERMINATOR:
-						setBlockTerminator(value.or(Option.BLOCK_TERMINATOR.getDefaultValue()));
-						break;
-						
-					case DEFINE:
-						setSubstitutionVariablePrefix(value.or(Option.DEFINE.getDefaultValue()));
-						break;
-						
-					case CONCAT:
-						setSubstitutionVariableTerminator(value.or(Option.CONCAT.getDefaultValue()));
-						break;
-					case ESCAPE:
-						setSubstitutionVariableEscaper(value.or(Option.ESCAPE.getDefaultValue()));
-					default:
-						throw new IllegalStateException();
-				}
+				Pair<Option, Optional<String>> set = parseSET(line.toString());
+				set(set.getFirst(), set.getSecond());
+
+			// If it's a SPOOL.
+			} else if (!insideSQL && !insideBlock && ScriptLexer.is(flags, ScriptLexer.SPOOL)) {
+				LOGGER.debug("SPOOL encountered ({})", line);
+				spool(line.toString());
 
-			
 			// If it's a DEFINE. 
-			} else if (!insideBlock && isDEFINE(line, buffer)) {
+			} else if (!insideBlock && ScriptLexer.is(flags, ScriptLexer.DEFINE)) {
 				LOGGER.debug("DEFINE encountered ({})", line);
-				Pair<Optional<String>, Optional<String>> define = parseDEFINE(line);
-				Optional<String> name = define.getFirst();
-				Optional<String> value = define.getSecond();
-				if (value.isPresent()) {
-					putSubstitutionVariable(name.get(), value.get());
-				} else {
-					if (name.isPresent()) {
-						printSubstitutionVariable(name.get());
-					} else {
-						printAllSubstitutionVariables();
-					}
-				}
-				
-				
+				define(line.toString());
+
 			// If it is the end of a SQL statement.
-			} else if (!insideBlock && isSQLEnd(line, buffer)) {
-				executeStatement(buffer);
+			} else if (!insideBlock && ScriptLexer.is(flags, ScriptLexer.SQL_END)) {
+				LOGGER.debug("SQL ending ({})", line);
+				markStatementLine(buffer, lineNumber);
+				appendLine(buffer, line, 0, line.length() - 1, false);
+				executeBufferedStatement(buffer);
 				buffer = null;
 				insideSQL = false;
 				insideBlock = false;
@@ -252,20 +722,199 @@ public class ScriptExecutor {
 				}
 				
 				LOGGER.debug("Appening line to SQL buffer");
-				buffer.append(withEOL(line));
+				markStatementLine(buffer, lineNumber);
+				appendLine(buffer, line, 0, line.length(), true);
 			}
 		}
 
-		if (!isNullOrEmpty(buffer)) {
+		if (spilledStatement != null) {
+			LOGGER.warn("Unexecuted artifacts ({} characters in {})", spilledStatement.length(), spilledStatement.getFile());
+			spilledStatement.close();
+			spilledStatement = null;
+		} else if (!isNullOrEmpty(buffer)) {
 			String artifacts = buffer.toString();
 			LOGGER.warn("Unexecuted artifacts ({})", artifacts);
 		}
 	}
 
-	// Read the line from the line reader and trim it.
-	protected String readLine(LineReader lineReader) throws IOException {
-		String line = lineReader.readLine();
-		return line == null ? null : line.trim();
+	// Remember the line where the statement starts.
+	private void markStatementLine(StringBuilder buffer, int lineNumber) {
+		if (buffer.length() == 0 && spilledStatement == null) {
+			currentLine = lineNumber;
+		}
+	}
+
+	// Reuse the same buffer for all the statements, unless it has grown too
+	// much.
+	private StringBuilder newStatementBuffer() {
+		if (statementBuffer == null || statementBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			statementBuffer = new StringBuilder(DEFAULT_BUFFER_SIZE);
+		}
+		statementBuffer.setLength(0);
+		return statementBuffer;
+	}
+
+	// Append the part of the line to the statement, which is spilled to a
+	// temporary file once it is larger than the threshold. The variables of a
+	// spilled statement are substituted line by line.
+	protected void appendLine(StringBuilder buffer, CharSequence line, int start, int end, boolean eol) throws IOException {
+		if (spilledStatement == null) {
+			buffer.append(line, start, end);
+			if (eol) {
+				buffer.append(EOL);
+			}
+			if (buffer.length() > spillThreshold) {
+				spilledStatement = SpilledStatement.create(spillDirectory);
+				spilledStatement.append(substituteVariables(buffer.toString()));
+				buffer.setLength(0);
+				statementBuffer = null;
+			}
+		} else {
+			String part = line.subSequence(start, end).toString();
+			spilledStatement.append(substituteVariables(eol ? part + EOL : part));
+		}
+	}
+
+	private void executeBufferedStatement(StringBuilder buffer) throws IOException, SQLException {
+		if (spilledStatement == null) {
+			executeStatement(buffer);
+		} else {
+			SpilledStatement statement = spilledStatement;
+			spilledStatement = null;
+			try {
+				statement.finish();
+				executeStatement(statement);
+			} finally {
+				statement.close();
+			}
+		}
+	}
+
+	// Include the script.
+	protected void include(String line) throws IOException, SQLException {
+		File scriptFile = parseInclude(line);
+		// TODO: Handle arguments
+		executeIncludedScript(scriptFile);
+	}
+
+	protected void executeIncludedScript(File scriptFile) throws IOException, SQLException {
+		if (!scopedIncludes) {
+			executeScript(scriptFile);
+			return;
+		}
+
+		VariableScope enclosingVariables = substitutionVariables;
+		substitutionVariables = enclosingVariables.newScope();
+		try {
+			executeScript(scriptFile);
+		} finally {
+			substitutionVariables = enclosingVariables;
+		}
+	}
+
+	// Apply the option.
+	protected void set(Option option, Optional<String> value) throws SQLException {
+		switch (option) {
+			case SQL_TERMINATOR:
+				setSQLTerminator(value.or(Option.SQL_TERMINATOR.getDefaultValue()));
+				break;
+	
+			case BLOCK_TERMINATOR:
+				setBlockTerminator(value.or(Option.BLOCK_TERMINATOR.getDefaultValue()));
+				break;
+				
+			case DEFINE:
+				setSubstitutionVariablePrefix(value.or(Option.DEFINE.getDefaultValue()));
+				break;
+				
+			case CONCAT:
+				setSubstitutionVariableTerminator(value.or(Option.CONCAT.getDefaultValue()));
+				break;
+			case ESCAPE:
+				setSubstitutionVariableEscaper(value.or(Option.ESCAPE.getDefaultValue()));
+				break;
+
+			case BATCH_SIZE:
+				setBatchSize(Integer.parseInt(value.or(Option.BATCH_SIZE.getDefaultValue())));
+				break;
+
+			case COMMIT_INTERVAL:
+				setCommitInterval(Integer.parseInt(value.or(Option.COMMIT_INTERVAL.getDefaultValue())));
+				break;
+
+			case COMMIT_ROWS:
+				setCommitRows(Long.parseLong(value.or(Option.COMMIT_ROWS.getDefaultValue())));
+				break;
+
+			case SPOOL_DELIMITER:
+				setSpoolDelimiter(parseDelimiter(value.or(Option.SPOOL_DELIMITER.getDefaultValue())));
+				break;
+
+			default:
+				throw new IllegalStateException();
+		}
+	}
+
+	// Write the rows of the next queries to a file (SPOOL <file> [CREATE |
+	// REPLACE | APPEND]), or stop (SPOOL OFF). The file is relative to the
+	// working directory.
+	protected void spool(String line) throws IOException, SQLException {
+		Matcher matcher = SPOOL_PATTERN.matcher(substituteVariables(line));
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("Invalid SPOOL command: " + line);
+		}
+
+		if (!(statementExecutor instanceof SpoolingStatementExecutor)) {
+			LOGGER.warn("The statement executor can not spool, {} is ignored", line);
+			return;
+		}
+
+		SpoolingStatementExecutor spoolingStatementExecutor = (SpoolingStatementExecutor) statementExecutor;
+		String fileName = matcher.group(1);
+		if (fileName.equalsIgnoreCase("OFF") && matcher.group(2) == null) {
+			spoolingStatementExecutor.spoolOff();
+		} else {
+			File file = new File(fileName);
+			if (!file.isAbsolute()) {
+				file = new File(getWorkingDirectory(), fileName);
+			}
+			spoolingStatementExecutor.spool(file, "APPEND".equalsIgnoreCase(matcher.group(2)), spoolDelimiter);
+		}
+	}
+
+	// A single character, or \t (or TAB) for a tabulation.
+	protected char parseDelimiter(String value) {
+		if (value.equals("\\t") || value.equalsIgnoreCase("TAB")) {
+			return '\t';
+		}
+		if (value.length() != 1) {
+			throw new IllegalArgumentException("The delimiter has to be a single character: " + value);
+		}
+		return value.charAt(0);
+	}
+
+	public void setSpoolDelimiter(char spoolDelimiter) {
+		this.spoolDelimiter = spoolDelimiter;
+	}
+
+	public char getSpoolDelimiter() {
+		return spoolDelimiter;
+	}
+
+	// Define the substitution variable or print it.
+	protected void define(String line) {
+		Pair<Optional<String>, Optional<String>> define = parseDEFINE(line);
+		Optional<String> name = define.getFirst();
+		Optional<String> value = define.getSecond();
+		if (value.isPresent()) {
+			putSubstitutionVariable(name.get(), value.get());
+		} else {
+			if (name.isPresent()) {
+				printSubstitutionVariable(name.get());
+			} else {
+				printAllSubstitutionVariables();
+			}
+		}
 	}
 
 	// Find if the line is empty.
@@ -275,46 +924,51 @@ public class ScriptExecutor {
 
 	// Find if the line is a one-line comment.
 	protected boolean isOneLineComment(String line) {
-		String[] prefixes = new String[] { "--", "#", "//" };
-		String expression = "^" + join(quote(prefixes));
-		return matches(expression, line);
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.ONE_LINE_COMMENT);
 	}
 
 	// Append an end-of-line character sequence at the end of the line.
-	protected String withEOL(String line) {
-		return String.format("%s%n", line);
+	protected String withEOL(CharSequence line) {
+		return line + EOL;
+	}
+
+	protected String getBlockTerminator() {
+		return blockTerminator;
+	}
+
+	protected String getSQLTerminator() {
+		return sqlTerminator;
+	}
+
+	// Return what the parsing depends on, besides the script itself: the
+	// includes are read with the charset, and stored absolute against the
+	// working directory.
+	protected String getCompileSettings() {
+		return Joiner.on('\n').join(sqlTerminator, blockTerminator, substitutionVariablePrefix, charset.name(), getWorkingDirectory().getAbsolutePath());
 	}
 
 	// Set the PL/SQL terminator
 	protected void setBlockTerminator(String blockTerminator) {
 		LOGGER.debug("Changing the block terminator from {} to {}", this.blockTerminator, blockTerminator);
 		this.blockTerminator = blockTerminator;
+		this.lexer = new ScriptLexer(sqlTerminator, blockTerminator);
 	}
 
 	// Set the PL/SQL terminator
 	protected void setSQLTerminator(String sqlTerminator) {
 		LOGGER.debug("Changing the SQL terminator from {} to {}", this.sqlTerminator, sqlTerminator);
 		this.sqlTerminator = sqlTerminator;
+		this.lexer = new ScriptLexer(sqlTerminator, blockTerminator);
 	}
 
 	// Find if it is the end of a PL/SQL statement.
 	protected boolean isBlockEnd(String line, StringBuilder buffer) {
-		String expression = "^[" + Pattern.quote("/")
-				+ Pattern.quote(blockTerminator) + "]$";
-		boolean blockEnd = matches(expression, line);
-		return blockEnd;
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.BLOCK_END);
 	}
 
 	// Find if it is the begin of a PL/SQL statement.
 	protected boolean isBlockStart(String line, StringBuilder buffer) {
-		String[] types = new String[] { "FUNCTION", "LIBRARY",
-				"PACKAGE( BODY)?", "PROCEDURE", "TRIGGER", "TYPE" };
-		String expression = ("(^| )CREATE (OR REPLACE)? " + join(types) + " ")
-				.replace(" ", "(\\s|\\n)+");
-		LOGGER.trace("regEx={}", expression);
-
-		boolean blockStart = matches(expression, line)
-				|| startWithOneOf(line, "BEGIN", "DECLARE");
+		boolean blockStart = ScriptLexer.is(lexer.classify(line), ScriptLexer.BLOCK_START);
 
 		LOGGER.debug("blockStart({})={}", line, blockStart);
 
@@ -326,8 +980,7 @@ public class ScriptExecutor {
 
 	// Find if the line end with the SQL terminator.
 	protected boolean isSQLEnd(String line, StringBuilder buffer) {
-		String[] terminators = new String[] {sqlTerminator, "/"};
-		boolean sqlEnd = endWithOneOf(line, terminators);
+		boolean sqlEnd = ScriptLexer.is(lexer.classify(line), ScriptLexer.SQL_END);
 		
 		if (sqlEnd) {
 			LOGGER.debug("SQL ending ({})", line);
@@ -338,7 +991,7 @@ public class ScriptExecutor {
 
 	// Find if it's the EXIT keyword.
 	protected boolean isEXIT(String line) {
-		return endWith(line, "EXIT");
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.EXIT);
 	}
 
 	protected boolean isInclude(String line, StringBuilder buffer) {
@@ -350,12 +1003,12 @@ public class ScriptExecutor {
 
 	// Find if it's either @ or START
 	protected boolean isIncludeFromWorkingDirectory(String line) {
-		return startWithOneOf(line, "START", "@");
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.INCLUDE_FROM_WORKING_DIRECTORY);
 	}
 
 	// Find if it's @@.
 	protected boolean isIncludeFromScriptDirectory(String line) {
-		return startWithOneOf(line, "@@");
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.INCLUDE_FROM_SCRIPT_DIRECTORY);
 	}
 
 	// Return the file to include.
@@ -367,23 +1020,14 @@ public class ScriptExecutor {
 			folderPath = getWorkingDirectory();
 		}
 
-		String expression = "^(START(\\s|\\n)+|@@?)(.+)(" + sqlTerminator
-				+ ")?$";
-		Pattern pattern = Pattern.compile(expression, Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(line);
-
-		String fileName = null;
-		if (matcher.matches()) {
-			fileName = matcher.group(3);
-		}
-
+		String fileName = ScriptLexer.getIncludedFileName(line);
 		File file = new File(folderPath, fileName);
 		return file;
 	}
 
 	// Find if it's the SET keyword.
 	protected boolean isSET(String line, StringBuilder buffer) {
-		return startWith(line, "SET");
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.SET);
 	}
 	
 	// Parse the SET keyword
@@ -402,6 +1046,14 @@ public class ScriptExecutor {
 				option = Option.SQL_TERMINATOR;
 			} else if (optionName.equals("BLOCKTERMINATOR")) {
 				option = Option.BLOCK_TERMINATOR;
+			} else if (optionName.equals("BATCHSIZE")) {
+				option = Option.BATCH_SIZE;
+			} else if (optionName.equals("COMMITINTERVAL")) {
+				option = Option.COMMIT_INTERVAL;
+			} else if (optionName.equals("COMMITROWS")) {
+				option = Option.COMMIT_ROWS;
+			} else if (optionName.equals("SPOOLDELIMITER")) {
+				option = Option.SPOOL_DELIMITER;
 			} else {
 				option = Option.valueOf(optionName);
 			}
@@ -415,7 +1067,7 @@ public class ScriptExecutor {
 	
 	// Find if it's the DEFINE keyword.
 	protected boolean isDEFINE(String line, StringBuilder buffer) {
-		return startWith(line, "DEFINE");
+		return ScriptLexer.is(lexer.classify(line), ScriptLexer.DEFINE);
 	}
 	
 	protected Pair<Optional<String>, Optional<String>> parseDEFINE(String line) {
@@ -433,9 +1085,316 @@ public class ScriptExecutor {
 	}
 	
 	public void executeStatement(StringBuilder buffer) throws SQLException {
-		String sql = substituteVariables(buffer.toString().trim());
+		int start = 0;
+		int end = buffer.length();
+		while (start < end && buffer.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && buffer.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		executeStatement(buffer.substring(start, end));
+	}
+
+	// Stream the statement to the statement executor if it supports it, or
+	// read it in memory. The variables are already substituted. The statements
+	// in flight are waited for first, since a streamed statement is executed
+	// at once.
+	protected void executeStatement(SpilledStatement statement) throws IOException, SQLException {
+		long substitutionStartTime = startTime();
+		if (!(statementExecutor instanceof StreamingStatementExecutor)) {
+			executeSubstitutedStatement(statement.read(), substitutionStartTime);
+			return;
+		}
+		if (isAsynchronous()) {
+			awaitStatements(0);
+		}
+
+		long hash = journal == null ? 0 : ExecutionJournal.hash(statement);
+		if (journal != null && journal.isApplied(++statementPosition, hash)) {
+			LOGGER.debug("Skipping the statement {} already applied", statementPosition);
+			return;
+		}
+
+		if (indexBuilder != null) {
+			buildRequiredIndexes(statement.getHead(SPILLED_HEAD_LENGTH));
+		}
+
+		setSource();
+		long executionStartTime = startTime();
+		((StreamingStatementExecutor) statementExecutor).executeStatement(statement);
+		executedStatementCount++;
+		if (executionListener != null) {
+			// Only the head of the statement is reported.
+			statementExecuted(statement.getHead(SPILLED_HEAD_LENGTH), substitutionStartTime, executionStartTime, System.nanoTime());
+		}
+
+		if (journal != null) {
+			journal.executed(statementPosition, currentScript, currentLine, hash);
+			updateJournal(false);
+		}
+	}
+
+	protected void executeStatement(String sql) throws SQLException {
 		//LOGGER.info("SQL=<" + sql + ">");
+		long substitutionStartTime = startTime();
+		executeSubstitutedStatement(substituteVariables(sql), substitutionStartTime);
+	}
+
+	// Execute the statement and, if there is a listener, report its metrics.
+	protected void executeSubstitutedStatement(String sql, long substitutionStartTime) throws SQLException {
+		if (journal != null && journal.isApplied(++statementPosition, sql)) {
+			LOGGER.debug("Skipping the statement {} already applied", statementPosition);
+			return;
+		}
+
+		if (isDeferringIndexes() && indexBuilder.defer(sql)) {
+			return;
+		}
+		if (indexBuilder != null) {
+			buildRequiredIndexes(sql);
+		}
+
+		if (isAsynchronous()) {
+			// Written to the journal once executed.
+			submitStatement(sql);
+			return;
+		}
+
+		if (executionListener == null) {
+			setSource();
+			statementExecutor.executeStatement(sql);
+			executedStatementCount++;
+		} else {
+			executeMeasuredStatement(sql, substitutionStartTime);
+			executedStatementCount++;
+		}
+
+		if (journal != null) {
+			journal.executed(statementPosition, currentScript, currentLine, sql);
+			updateJournal(false);
+		}
+	}
+
+	private void executeMeasuredStatement(String sql, long substitutionStartTime) throws SQLException {
+		setSource();
+		long executionStartTime = System.nanoTime();
 		statementExecutor.executeStatement(sql);
+		statementExecuted(sql, substitutionStartTime, executionStartTime, System.nanoTime());
+	}
+
+	// Report the metrics of the statement to the listener.
+	private void statementExecuted(String sql, long substitutionStartTime, long executionStartTime, long executionEndTime) {
+		statementMetrics.reset(currentScript, currentLine, sql);
+		statementMetrics.setParseTime(substitutionStartTime - parseStartTime);
+		statementMetrics.setSubstitutionTime(executionStartTime - substitutionStartTime);
+		statementMetrics.setExecutionTime(executionEndTime - executionStartTime);
+		if (statementExecutor instanceof CountingStatementExecutor) {
+			CountingStatementExecutor countingStatementExecutor = (CountingStatementExecutor) statementExecutor;
+			statementMetrics.setRowsAffected(countingStatementExecutor.getLastRowsAffected());
+			statementMetrics.setRowsFetched(countingStatementExecutor.getLastRowsFetched());
+		}
+		executionListener.statementExecuted(statementMetrics);
+	}
+
+	// Tell the statement executor where the next statement comes from.
+	private void setSource() {
+		if (statementExecutor instanceof SourceAwareStatementExecutor) {
+			((SourceAwareStatementExecutor) statementExecutor).setSource(currentScript, currentLine);
+		}
+	}
+
+	// Return the time only if it is measured.
+	private long startTime() {
+		return executionListener == null ? 0 : System.nanoTime();
+	}
+
+	// Execute the statements deferred by the statement executor, if any.
+	// Submit the statement once there is room for it. Only the queries and the
+	// DML statements overlap, the others wait for the previous ones.
+	protected void submitStatement(String sql) throws SQLException {
+		StatementType statementType = StatementType.of(sql);
+		if (statementType != StatementType.QUERY && statementType != StatementType.DML) {
+			awaitStatements(0);
+		} else {
+			awaitStatements(maxOutstandingStatements - 1);
+		}
+		ListenableFuture<Long> future = ((AsyncStatementExecutor) statementExecutor).submitStatement(sql);
+		outstandingStatements.addLast(new OutstandingStatement(future, statementPosition, currentScript, currentLine, journal == null ? 0 : ExecutionJournal.hash(sql)));
+	}
+
+	// Wait until at most the given number of statements are outstanding, and
+	// rethrow the first failure. The completed ones are always collected, in
+	// the order they were submitted (which is the order they complete in), and
+	// written to the journal.
+	protected void awaitStatements(int maxOutstandingStatements) throws SQLException {
+		while (!outstandingStatements.isEmpty() && (outstandingStatements.size() > maxOutstandingStatements || outstandingStatements.peekFirst().future.isDone())) {
+			OutstandingStatement outstandingStatement = outstandingStatements.removeFirst();
+			try {
+				outstandingStatement.future.get();
+				executedStatementCount++;
+				if (journal != null) {
+					journal.executed(outstandingStatement.position, outstandingStatement.script, outstandingStatement.line, outstandingStatement.hash);
+					updateJournal(false);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the statements to be executed", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException) {
+					SQLException sqlException = (SQLException) cause;
+					throw new SQLException(sqlException.getMessage(), sqlException.getSQLState(), sqlException.getErrorCode(), sqlException);
+				}
+				throw new SQLException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	protected boolean isDeferringIndexes() {
+		return indexBuilder != null && journal == null && (isGroupingStatements() || getConnection() != null);
+	}
+
+	// Build the deferred indexes the statement needs. The statements before it
+	// are committed first, since the builds do not see them otherwise.
+	protected void buildRequiredIndexes(String sql) throws SQLException {
+		Set<String> tables = indexBuilder.getRequiredTables(sql);
+		if (!tables.isEmpty()) {
+			commitBeforeBuilds();
+			indexBuilder.build(tables);
+		}
+	}
+
+	// Commit the statements, even when the statement executor leaves the
+	// transaction to the caller: the builds would otherwise miss the rows, or
+	// wait for their locks while the script waits for them.
+	protected void commitBeforeBuilds() throws SQLException {
+		flushStatements();
+		commitStatements();
+		Connection connection = getConnection();
+		if (connection != null && !isGroupingStatements() && !connection.getAutoCommit()) {
+			LOGGER.debug("Committing before the deferred index builds");
+			connection.commit();
+		}
+	}
+
+	protected void flushStatements() throws SQLException {
+		awaitStatements(0);
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			((BatchStatementExecutor) statementExecutor).flush();
+		}
+	}
+
+	// Set the batch size of the statement executor, which flushes it.
+	protected void setBatchSize(int batchSize) throws SQLException {
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			((BatchStatementExecutor) statementExecutor).setBatchSize(batchSize);
+		} else {
+			LOGGER.warn("Ignoring the batch size {} because the statement executor does not support batches", batchSize);
+		}
+	}
+
+	protected static void closeQuietly(LineSource lineSource) {
+		try {
+			lineSource.close();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close the script", e);
+		}
+	}
+
+	// Commit every given number of statements, if the statement executor
+	// supports it.
+	protected void setCommitInterval(int commitInterval) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).setCommitInterval(commitInterval);
+		} else {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitInterval);
+		}
+	}
+
+	// Commit every given number of rows affected, if the statement executor
+	// supports it.
+	protected void setCommitRows(long commitRows) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).setCommitRows(commitRows);
+		} else {
+			LOGGER.warn("Ignoring the commit interval {} because the statement executor does not support transactions", commitRows);
+		}
+	}
+
+	protected void commitStatements() throws SQLException {
+		awaitStatements(0);
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).commit();
+		}
+		if (journal != null) {
+			updateJournal(false);
+		}
+	}
+
+	// Roll back after a failure, without hiding it. The statements still
+	// outstanding are waited for, since they may have been committed, and the
+	// ones executed go to the journal.
+	protected void rollbackStatements() {
+		try {
+			awaitStatements(0);
+		} catch (SQLException e) {
+			LOGGER.debug("Statement failed while rolling back", e);
+		}
+		while (!outstandingStatements.isEmpty()) {
+			outstandingStatements.removeFirst().future.cancel(false);
+		}
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			try {
+				((TransactionalStatementExecutor) statementExecutor).rollback();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to roll back", e);
+			}
+		}
+		if (journal != null) {
+			try {
+				updateJournal(true);
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to write the journal", e);
+			}
+			journal.rolledBack();
+		}
+	}
+
+	// Return the number of statements durably applied so far.
+	protected long getCommittedStatementCount() {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			return ((TransactionalStatementExecutor) statementExecutor).getCommittedStatementCount();
+		}
+		return executedStatementCount;
+	}
+
+	protected boolean isGroupingStatements() {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			TransactionalStatementExecutor transactionalStatementExecutor = (TransactionalStatementExecutor) statementExecutor;
+			return transactionalStatementExecutor.getCommitInterval() > 0 || transactionalStatementExecutor.getCommitRows() > 0;
+		}
+		return false;
+	}
+
+	// Write the statements committed since the last time to the journal, which
+	// is flushed after every commit.
+	protected void updateJournal(boolean flush) throws SQLException {
+		long committedStatementCount = getCommittedStatementCount();
+		try {
+			// The statements of an asynchronous statement executor may be
+			// committed before they are collected, and are written then.
+			if (committedStatementCount > journaledStatementCount) {
+				int writtenCount = journal.committed((int) (committedStatementCount - journaledStatementCount));
+				journaledStatementCount += writtenCount;
+				flush |= writtenCount > 0 && isGroupingStatements();
+			}
+			if (flush) {
+				journal.flush();
+			}
+		} catch (IOException e) {
+			throw new SQLException("Unable to write the " + journal.getFile() + " journal", e);
+		}
 	}
 
 	protected static boolean isNullOrEmpty(StringBuilder buffer) {
@@ -490,14 +1449,37 @@ public class ScriptExecutor {
 		return endWithOneOf(line, word);
 	}
 	
+	protected String getSubstitutionVariablePrefix() {
+		return substitutionVariablePrefix;
+	}
+
+	protected String getSubstitutionVariableTerminator() {
+		return substitutionVariableTerminator;
+	}
+
+	protected String getSubstitutionVariableEscaper() {
+		return substitutionVariableEscaper;
+	}
+
 	protected void setSubstitutionVariablePrefix(String substitutionVariablePrefix) {
 		LOGGER.debug("Changing substitution variable prefix from {} to {}", this.substitutionVariablePrefix, substitutionVariablePrefix);
 		this.substitutionVariablePrefix = substitutionVariablePrefix;
+		this.substitutionSyntax = newSubstitutionSyntax();
+	}
+
+	// Define a substitution variable before running a script.
+	public void setSubstitutionVariable(String name, String value) {
+		putSubstitutionVariable(name, value);
 	}
 
 	protected void putSubstitutionVariable(String name, String value) {
 		substitutionVariables.put(name, value);
 	}
+
+	// Return the variables currently defined, of every scope.
+	public Map<String, String> getSubstitutionVariables() {
+		return ImmutableMap.copyOf(substitutionVariables);
+	}
 	
 	protected void printSubstitutionVariable(String name) {
 		String value = substitutionVariables.get(name);
@@ -512,53 +1494,18 @@ public class ScriptExecutor {
 	
 	protected String substituteVariables(String sql) {
 		if (sql == null) return null;
-		
-		String beginer = substitutionVariablePrefix;
-		String escaper = substitutionVariableEscaper;
-		String terminator = substitutionVariableTerminator;
-		String identifiers = "[a-zA-Z0-9_]";
-		String[] enders = new String[] {"'", "\"", "\\s", "\\n", "$"};
-		String expression = "(" + Pattern.quote(escaper) + ")?(" + Pattern.quote(beginer) + "(" + identifiers + "+))(" + join(enders) + "|" + Pattern.quote(terminator) + ")";
-		LOGGER.debug("expression={}", expression);
-		
-		Pattern pattern = Pattern.compile(expression, Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(sql);
-		StringBuilder substituedSQL = new StringBuilder();
-		int startOffset = 0;
-		while (matcher.find(startOffset)) {
-			int sqlPartStartOffset = matcher.start();
-			int sqlPartEndOffset = matcher.end();
-			
-			String previousSQLPart = sql.substring(startOffset, sqlPartStartOffset);
-			substituedSQL.append(previousSQLPart);
-			
-			String currentSQLPart = sql.substring(sqlPartStartOffset, sqlPartEndOffset);
-			
-			boolean isEscape = Strings.nullToEmpty(matcher.group(1)).equals(escaper);
-			String lastCharacter = matcher.group(4);
-			boolean isTerminator = Strings.nullToEmpty(lastCharacter).equals(terminator);
-			String variableName = matcher.group(3);
-			
-			if (!isEscape) {
-				String variableValue = Strings.nullToEmpty(substitutionVariables.get(variableName));
-				if (variableValue.isEmpty()) {
-					LOGGER.warn("The substitution variable {} is not defined.", substitutionVariablePrefix + variableName);
-				}
-				substituedSQL.append(variableValue).append(isTerminator ? "" : lastCharacter);
-			} else {
-				substituedSQL.append(currentSQLPart);
-			}
-			
-			startOffset = sqlPartEndOffset;
-		}
-		
-		int lastOffset = sql.length();
-		substituedSQL.append(sql.substring(startOffset, lastOffset));
-		return substituedSQL.toString(); 
+
+		return substitutionSyntax.compile(sql).expand(substitutionVariables);
+	}
+
+	// Create the syntax of the substitution variables from the current settings.
+	private SubstitutionSyntax newSubstitutionSyntax() {
+		return new SubstitutionSyntax(substitutionVariablePrefix, substitutionVariableTerminator, substitutionVariableEscaper);
 	}
 	
 	protected void setSubstitutionVariableTerminator(String substitutionVariableTerminator) {
 		this.substitutionVariableTerminator = substitutionVariableTerminator;
+		this.substitutionSyntax = newSubstitutionSyntax();
 	}
 	
 	protected boolean isSubstitutionVariablePrefix(String text) {
@@ -579,6 +1526,7 @@ public class ScriptExecutor {
 	
 	protected void setSubstitutionVariableEscaper(String substitutionVariableEscaper) {
 		this.substitutionVariableEscaper = substitutionVariableEscaper;
+		this.substitutionSyntax = newSubstitutionSyntax();
 	}
 	
 	protected int lastIndexOf(String text, String[] characters) {
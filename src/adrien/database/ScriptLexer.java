@@ -0,0 +1,264 @@
+package adrien.database;
+
+// Classify a trimmed script line in a single pass, without compiling any
+// regular expression nor allocating. An instance is bound to the SQL and block
+// terminators it has been built with, so it has to be rebuilt when one of them
+// changes.
+public final class ScriptLexer {
+
+	public static final int EMPTY = 1;
+	public static final int ONE_LINE_COMMENT = 1 << 1;
+	public static final int BLOCK_END = 1 << 2;
+	public static final int BLOCK_START = 1 << 3;
+	public static final int INCLUDE_FROM_SCRIPT_DIRECTORY = 1 << 4;
+	public static final int INCLUDE_FROM_WORKING_DIRECTORY = 1 << 5;
+	public static final int INCLUDE = INCLUDE_FROM_SCRIPT_DIRECTORY | INCLUDE_FROM_WORKING_DIRECTORY;
+	public static final int EXIT = 1 << 6;
+	public static final int SET = 1 << 7;
+	public static final int DEFINE = 1 << 8;
+	public static final int SQL_END = 1 << 9;
+	public static final int SPOOL = 1 << 10;
+
+	private static final String[] BLOCK_TYPES = new String[] { "FUNCTION", "LIBRARY", "PACKAGE", "PROCEDURE", "TRIGGER", "TYPE" };
+
+	private final String sqlTerminator;
+	private final String blockTerminator;
+
+	public ScriptLexer(String sqlTerminator, String blockTerminator) {
+		super();
+
+		this.sqlTerminator = sqlTerminator;
+		this.blockTerminator = blockTerminator;
+	}
+
+	public String getSQLTerminator() {
+		return sqlTerminator;
+	}
+
+	public String getBlockTerminator() {
+		return blockTerminator;
+	}
+
+	// Return the combination of all the flags matching the line.
+	public int classify(CharSequence line) {
+		int length = line.length();
+		if (length == 0) {
+			return EMPTY | (sqlTerminator.isEmpty() ? SQL_END : 0);
+		}
+
+		int flags = 0;
+		char first = line.charAt(0);
+		switch (first) {
+			case '-':
+			case '/':
+				if (length > 1 && line.charAt(1) == first) {
+					flags |= ONE_LINE_COMMENT;
+				}
+				break;
+
+			case '#':
+				flags |= ONE_LINE_COMMENT;
+				break;
+
+			case '@':
+				flags |= length > 1 && line.charAt(1) == '@' ? INCLUDE_FROM_SCRIPT_DIRECTORY | INCLUDE_FROM_WORKING_DIRECTORY : INCLUDE_FROM_WORKING_DIRECTORY;
+				break;
+
+			default:
+				if (startsWith(line, "START")) {
+					flags |= INCLUDE_FROM_WORKING_DIRECTORY;
+				} else if (startsWith(line, "SET")) {
+					flags |= SET;
+				} else if (startsWith(line, "DEFINE")) {
+					flags |= DEFINE;
+				} else if (startsWith(line, "SPOOL")) {
+					flags |= SPOOL;
+				}
+		}
+
+		if (length == 1 && (first == '/' || indexOfIgnoreCase(blockTerminator, first) >= 0)) {
+			flags |= BLOCK_END;
+		}
+
+		if (startsWith(line, "BEGIN") || startsWith(line, "DECLARE") || containsCreateBlock(line)) {
+			flags |= BLOCK_START;
+		}
+
+		if (endsWith(line, "EXIT")) {
+			flags |= EXIT;
+		}
+
+		if (line.charAt(length - 1) == '/' || endsWith(line, sqlTerminator)) {
+			flags |= SQL_END;
+		}
+
+		return flags;
+	}
+
+	public static boolean is(int flags, int flag) {
+		return (flags & flag) != 0;
+	}
+
+	// Return the name of the file included by the line, as the legacy
+	// expression ^(START\s+|@@?)(.+)$ extracts it, or null if there is none.
+	public static String getIncludedFileName(CharSequence line) {
+		int length = line.length();
+		int offset;
+		if (startsWith(line, "START")) {
+			offset = skipWhitespaces(line, 5);
+			if (offset == 5) {
+				return null;
+			}
+			// The name takes the last whitespace if there is nothing else.
+			if (offset == length) {
+				if (offset - 5 < 2) {
+					return null;
+				}
+				offset--;
+			}
+		} else if (length > 0 && line.charAt(0) == '@') {
+			offset = length > 1 && line.charAt(1) == '@' ? 2 : 1;
+			// "@@" alone includes "@".
+			if (offset == length) {
+				if (offset == 1) {
+					return null;
+				}
+				offset--;
+			}
+		} else {
+			return null;
+		}
+
+		for (int i = offset; i < length; i++) {
+			if (isLineTerminator(line.charAt(i))) {
+				return null;
+			}
+		}
+		return line.subSequence(offset, length).toString();
+	}
+
+	// Find "CREATE [OR REPLACE] <type> " anywhere in the line, preceded by the
+	// start of the line or a whitespace.
+	protected static boolean containsCreateBlock(CharSequence line) {
+		int length = line.length();
+		for (int offset = 0; offset + 6 <= length; offset++) {
+			if ((offset == 0 || isWhitespace(line.charAt(offset - 1))) && regionMatches(line, offset, "CREATE")) {
+				if (isCreateBlock(line, offset + 6)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Match what follows CREATE. Without OR REPLACE, the legacy expression
+	// requires at least two whitespaces before the type, which is kept as is.
+	private static boolean isCreateBlock(CharSequence line, int offset) {
+		int whitespaces = skipWhitespaces(line, offset) - offset;
+		if (whitespaces == 0) {
+			return false;
+		}
+		offset += whitespaces;
+
+		if (whitespaces >= 2 && isBlockType(line, offset)) {
+			return true;
+		}
+
+		if (regionMatches(line, offset, "OR")) {
+			int replaceOffset = skipWhitespaces(line, offset + 2);
+			if (replaceOffset > offset + 2 && regionMatches(line, replaceOffset, "REPLACE")) {
+				int typeOffset = skipWhitespaces(line, replaceOffset + 7);
+				return typeOffset > replaceOffset + 7 && isBlockType(line, typeOffset);
+			}
+		}
+		return false;
+	}
+
+	// PACKAGE BODY is covered by PACKAGE followed by a whitespace.
+	private static boolean isBlockType(CharSequence line, int offset) {
+		for (String type : BLOCK_TYPES) {
+			int end = offset + type.length();
+			if (regionMatches(line, offset, type) && end < line.length() && isWhitespace(line.charAt(end))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int skipWhitespaces(CharSequence line, int offset) {
+		int length = line.length();
+		while (offset < length && isWhitespace(line.charAt(offset))) {
+			offset++;
+		}
+		return offset;
+	}
+
+	// Same as \s in java.util.regex.
+	protected static boolean isWhitespace(char character) {
+		switch (character) {
+			case ' ':
+			case '\t':
+			case '\n':
+			case '\u000B':
+			case '\f':
+			case '\r':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// Same as the characters not matched by . in java.util.regex.
+	private static boolean isLineTerminator(char character) {
+		switch (character) {
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	protected static boolean startsWith(CharSequence line, String word) {
+		return regionMatches(line, 0, word);
+	}
+
+	protected static boolean endsWith(CharSequence line, String word) {
+		return regionMatches(line, line.length() - word.length(), word);
+	}
+
+	// Compare ignoring the case as Pattern.CASE_INSENSITIVE does (US-ASCII only).
+	protected static boolean regionMatches(CharSequence line, int offset, String word) {
+		int length = word.length();
+		if (offset < 0 || offset + length > line.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (!equalsIgnoreCase(line.charAt(offset + i), word.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOfIgnoreCase(String text, char character) {
+		for (int i = 0; i < text.length(); i++) {
+			if (equalsIgnoreCase(text.charAt(i), character)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equalsIgnoreCase(char left, char right) {
+		return left == right || toUpperCase(left) == toUpperCase(right);
+	}
+
+	private static char toUpperCase(char character) {
+		return character >= 'a' && character <= 'z' ? (char) (character - 32) : character;
+	}
+
+}
@@ -0,0 +1,184 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.Map;
+
+import adrien.database.metrics.ExecutionListener;
+
+import com.google.common.collect.ImmutableMap;
+
+// The settings and the substitution variables of a script executor, frozen so
+// that any number of threads can run scripts with them at the same time. Each
+// run gets its own script executor (its session), which keeps the state of the
+// run: the script directories, the variables it defines (the shared ones are
+// read through, never copied), the SET it applies and its transactions.
+//
+// The script cache and the include resolver are shared by the sessions, and so
+// is the execution listener, which must then be thread-safe. The sessions do
+// not tell the listener when their run ends: call runEnded once they are all
+// done, so that it gets the metrics of all the runs at once.
+public class SharedScriptExecutor {
+
+	private final String sqlTerminator;
+
+	private final String blockTerminator;
+
+	private final String substitutionVariablePrefix;
+
+	private final String substitutionVariableTerminator;
+
+	private final String substitutionVariableEscaper;
+
+	private final ScriptLexer lexer;
+
+	private final SubstitutionSyntax substitutionSyntax;
+
+	private final ImmutableMap<String, String> substitutionVariables;
+
+	private final boolean scopedIncludes;
+
+	private final ScriptCache scriptCache;
+
+	private final IncludeResolver includeResolver;
+
+	private final Charset charset;
+
+	private final int windowSize;
+
+	private final int maxOutstandingStatements;
+
+	private final char spoolDelimiter;
+
+	private final long spillThreshold;
+
+	private final File spillDirectory;
+
+	private final ExecutionListener executionListener;
+
+	// Take the current settings and variables of the script executor, which
+	// may have run a script defining them.
+	protected SharedScriptExecutor(ScriptExecutor scriptExecutor) {
+		super();
+
+		this.sqlTerminator = scriptExecutor.getSQLTerminator();
+		this.blockTerminator = scriptExecutor.getBlockTerminator();
+		this.substitutionVariablePrefix = scriptExecutor.getSubstitutionVariablePrefix();
+		this.substitutionVariableTerminator = scriptExecutor.getSubstitutionVariableTerminator();
+		this.substitutionVariableEscaper = scriptExecutor.getSubstitutionVariableEscaper();
+		this.lexer = new ScriptLexer(sqlTerminator, blockTerminator);
+		this.substitutionSyntax = new SubstitutionSyntax(substitutionVariablePrefix, substitutionVariableTerminator, substitutionVariableEscaper);
+		this.substitutionVariables = ImmutableMap.copyOf(scriptExecutor.getSubstitutionVariables());
+		this.scopedIncludes = scriptExecutor.isScopedIncludes();
+		this.scriptCache = scriptExecutor.getScriptCache();
+		this.includeResolver = scriptExecutor.getIncludeResolver();
+		this.charset = scriptExecutor.getCharset();
+		this.windowSize = scriptExecutor.getWindowSize();
+		this.maxOutstandingStatements = scriptExecutor.getMaxOutstandingStatements();
+		this.spoolDelimiter = scriptExecutor.getSpoolDelimiter();
+		this.spillThreshold = scriptExecutor.getSpillThreshold();
+		this.spillDirectory = scriptExecutor.getSpillDirectory();
+		this.executionListener = scriptExecutor.getExecutionListener();
+	}
+
+	// Create the session of a run. Override to configure it (a journal, an
+	// index builder).
+	public ScriptExecutor newSession(StatementExecutor statementExecutor) {
+		return new ScriptExecutor(statementExecutor, this);
+	}
+
+	public void executeScript(StatementExecutor statementExecutor, File scriptFile, String... arguments) throws IOException, SQLException {
+		newSession(statementExecutor).executeScript(scriptFile, arguments);
+	}
+
+	public void executeScript(StatementExecutor statementExecutor, CompiledScript compiledScript, String... arguments) throws IOException, SQLException {
+		newSession(statementExecutor).executeScript(compiledScript, arguments);
+	}
+
+	// Called once all the runs are done.
+	public void runEnded() {
+		if (executionListener != null) {
+			executionListener.runEnded();
+		}
+	}
+
+	public String getSQLTerminator() {
+		return sqlTerminator;
+	}
+
+	public String getBlockTerminator() {
+		return blockTerminator;
+	}
+
+	public String getSubstitutionVariablePrefix() {
+		return substitutionVariablePrefix;
+	}
+
+	public String getSubstitutionVariableTerminator() {
+		return substitutionVariableTerminator;
+	}
+
+	public String getSubstitutionVariableEscaper() {
+		return substitutionVariableEscaper;
+	}
+
+	ScriptLexer getLexer() {
+		return lexer;
+	}
+
+	SubstitutionSyntax getSubstitutionSyntax() {
+		return substitutionSyntax;
+	}
+
+	public Map<String, String> getSubstitutionVariables() {
+		return substitutionVariables;
+	}
+
+	public boolean isScopedIncludes() {
+		return scopedIncludes;
+	}
+
+	public ScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	public IncludeResolver getIncludeResolver() {
+		return includeResolver;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getMaxOutstandingStatements() {
+		return maxOutstandingStatements;
+	}
+
+	public char getSpoolDelimiter() {
+		return spoolDelimiter;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public ExecutionListener getExecutionListener() {
+		return executionListener;
+	}
+
+	public static SharedScriptExecutor of(ScriptExecutor scriptExecutor) {
+		SharedScriptExecutor sharedScriptExecutor = new SharedScriptExecutor(scriptExecutor);
+		return sharedScriptExecutor;
+	}
+
+}
@@ -0,0 +1,503 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Queues;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+// Measure the statements of another statement executor, and keep the ones
+// slower than a threshold with where they come from, their row counts and, if
+// a plan explainer is given, their execution plan. Only the last statements
+// are kept. Once the run is over, they are written to the report file (or
+// logged) and forgotten.
+//
+// The failed statements are measured too, and kept with their failure when
+// they are slow (a statement timing out after a long time is the one to look
+// at). The statements deferred by a batch statement executor are measured when
+// they are queued, so only the statements executed at once are caught. The
+// statements too large to be kept in memory are streamed to the statement
+// executor, and only their head is kept, unexplained. The statements submitted
+// to an asynchronous statement executor are measured from their submission to
+// their completion, which includes the wait for the ones before them.
+public class SlowStatementExecutor implements SourceAwareStatementExecutor, CountingStatementExecutor, BatchStatementExecutor, TransactionalStatementExecutor, SpoolingStatementExecutor, StreamingStatementExecutor, AsyncStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(SlowStatementExecutor.class);
+
+	public static final long DEFAULT_THRESHOLD = TimeUnit.SECONDS.toNanos(1);
+
+	public static final int DEFAULT_CAPACITY = 100;
+
+	final private static int SPILLED_HEAD_LENGTH = 4 * 1024;
+
+	final private static String EOL = System.getProperty("line.separator");
+
+	public static class SlowStatement {
+
+		private long timestamp;
+
+		private String script;
+
+		private int line;
+
+		private String sql;
+
+		private long executionTime;
+
+		private long rowsAffected;
+
+		private long rowsFetched;
+
+		private String plan;
+
+		private String failure;
+
+		public SlowStatement(long timestamp, String script, int line, String sql, long executionTime, long rowsAffected, long rowsFetched, String plan, String failure) {
+			super();
+
+			this.timestamp = timestamp;
+			this.script = script;
+			this.line = line;
+			this.sql = sql;
+			this.executionTime = executionTime;
+			this.rowsAffected = rowsAffected;
+			this.rowsFetched = rowsFetched;
+			this.plan = plan;
+			this.failure = failure;
+		}
+
+		// The time in milliseconds at which the statement ended.
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		// Return the script the statement comes from (null for a stream).
+		public String getScript() {
+			return script;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		// Return the substituted statement.
+		public String getSQL() {
+			return sql;
+		}
+
+		// Return the execution time in nanoseconds.
+		public long getExecutionTime() {
+			return executionTime;
+		}
+
+		public long getRowsAffected() {
+			return rowsAffected;
+		}
+
+		public long getRowsFetched() {
+			return rowsFetched;
+		}
+
+		// Return the plan, or why it is missing.
+		public String getPlan() {
+			return plan;
+		}
+
+		// Return the message of the failure, or null if the statement succeeded.
+		public String getFailure() {
+			return failure;
+		}
+
+	}
+
+	private StatementExecutor statementExecutor;
+
+	private long threshold = DEFAULT_THRESHOLD;
+
+	private int capacity;
+
+	private PlanExplainer planExplainer;
+
+	private File reportFile;
+
+	private Deque<SlowStatement> slowStatements;
+
+	private long slowStatementCount = 0;
+
+	private long statementCount = 0;
+
+	private long executedStatementCount = 0;
+
+	private String script;
+
+	private int line;
+
+	protected SlowStatementExecutor(StatementExecutor statementExecutor, int capacity) {
+		super();
+
+		this.statementExecutor = statementExecutor;
+		this.capacity = capacity;
+		this.slowStatements = Queues.newArrayDeque();
+	}
+
+	public StatementExecutor getStatementExecutor() {
+		return statementExecutor;
+	}
+
+	public void setThreshold(long threshold, TimeUnit unit) {
+		this.threshold = unit.toNanos(threshold);
+	}
+
+	// Return the threshold in nanoseconds.
+	public long getThreshold() {
+		return threshold;
+	}
+
+	// Explain the slow statements, on another connection than the one of the
+	// statement executor.
+	public void setPlanExplainer(PlanExplainer planExplainer) {
+		this.planExplainer = planExplainer;
+	}
+
+	// Write the report there at the end of each run, rather than logging it.
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	@Override
+	public void setSource(String script, int line) {
+		this.script = script;
+		this.line = line;
+		if (statementExecutor instanceof SourceAwareStatementExecutor) {
+			((SourceAwareStatementExecutor) statementExecutor).setSource(script, line);
+		}
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		long startTime = System.nanoTime();
+		Throwable failure = null;
+		try {
+			statementExecutor.executeStatement(sql);
+		} catch (SQLException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			measured(script, line, sql, true, System.nanoTime() - startTime, failure);
+		}
+	}
+
+	@Override
+	public void executeStatement(SpilledStatement statement) throws SQLException {
+		long startTime = System.nanoTime();
+		Throwable failure = null;
+		try {
+			statement.executeOn(statementExecutor);
+		} catch (SQLException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			measured(script, line, describe(statement), false, System.nanoTime() - startTime, failure);
+		}
+	}
+
+	// The statement is executed at once if the statement executor is not
+	// asynchronous.
+	@Override
+	public ListenableFuture<Long> submitStatement(final String sql) {
+		if (!(statementExecutor instanceof AsyncStatementExecutor)) {
+			try {
+				executeStatement(sql);
+				return Futures.immediateFuture(getLastRowsAffected());
+			} catch (SQLException e) {
+				return Futures.immediateFailedFuture(e);
+			}
+		}
+
+		// The returned future completes once the statement is measured, and
+		// cancels the statement when cancelled.
+		final String script = this.script;
+		final int line = this.line;
+		final long startTime = System.nanoTime();
+		final ListenableFuture<Long> future = ((AsyncStatementExecutor) statementExecutor).submitStatement(sql);
+		final SettableFuture<Long> measuredFuture = SettableFuture.create();
+		Futures.addCallback(future, new FutureCallback<Long>() {
+
+			@Override
+			public void onSuccess(Long rowsAffected) {
+				measured(script, line, sql, true, System.nanoTime() - startTime, rowsAffected == null ? UNKNOWN : rowsAffected, UNKNOWN, null);
+				measuredFuture.set(rowsAffected);
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				if (!future.isCancelled()) {
+					measured(script, line, sql, true, System.nanoTime() - startTime, UNKNOWN, UNKNOWN, failure);
+				}
+				measuredFuture.setException(failure);
+			}
+
+		}, MoreExecutors.directExecutor());
+		measuredFuture.addListener(new Runnable() {
+
+			@Override
+			public void run() {
+				if (measuredFuture.isCancelled()) {
+					future.cancel(false);
+				}
+			}
+
+		}, MoreExecutors.directExecutor());
+		return measuredFuture;
+	}
+
+	private void measured(String script, int line, String sql, boolean explainable, long executionTime, Throwable failure) {
+		long rowsAffected = failure == null ? getLastRowsAffected() : UNKNOWN;
+		long rowsFetched = failure == null ? getLastRowsFetched() : UNKNOWN;
+		measured(script, line, sql, explainable, executionTime, rowsAffected, rowsFetched, failure);
+	}
+
+	// Count the statement, and keep it if it is slow. Called by the threads of
+	// an asynchronous statement executor too.
+	protected synchronized void measured(String script, int line, String sql, boolean explainable, long executionTime, long rowsAffected, long rowsFetched, Throwable failure) {
+		statementCount++;
+		if (failure == null) {
+			executedStatementCount++;
+		}
+		if (executionTime < threshold) {
+			return;
+		}
+
+		if (failure == null) {
+			LOGGER.warn("Slow statement ({} ms) at {}:{}", TimeUnit.NANOSECONDS.toMillis(executionTime), script, line);
+		} else {
+			LOGGER.warn("Slow statement ({} ms) failed at {}:{}", TimeUnit.NANOSECONDS.toMillis(executionTime), script, line);
+		}
+		String plan = explainable ? explain(sql) : null;
+		SlowStatement slowStatement = new SlowStatement(System.currentTimeMillis(), script, line, sql, executionTime, rowsAffected, rowsFetched, plan, failure == null ? null : failure.getMessage());
+		if (slowStatements.size() >= capacity) {
+			slowStatements.removeFirst();
+		}
+		slowStatements.addLast(slowStatement);
+		slowStatementCount++;
+	}
+
+	private static String describe(SpilledStatement statement) {
+		String length = " (" + statement.length() + " characters)";
+		try {
+			return statement.getHead(SPILLED_HEAD_LENGTH) + "..." + length;
+		} catch (IOException e) {
+			LOGGER.debug("Unable to read the head of {}", statement.getFile(), e);
+			return statement.getFile() + length;
+		}
+	}
+
+	// A failure to explain is kept in place of the plan.
+	protected String explain(String sql) {
+		if (planExplainer == null) {
+			return null;
+		}
+
+		try {
+			return planExplainer.explain(sql);
+		} catch (SQLException e) {
+			LOGGER.debug("Unable to explain the statement", e);
+			return "Unable to explain the statement: " + e.getMessage();
+		}
+	}
+
+	// Return the slow statements kept since the start of the run.
+	public synchronized List<SlowStatement> getSlowStatements() {
+		return ImmutableList.copyOf(slowStatements);
+	}
+
+	@Override
+	public synchronized void runEnded() {
+		if (statementExecutor instanceof SourceAwareStatementExecutor) {
+			((SourceAwareStatementExecutor) statementExecutor).runEnded();
+		}
+
+		try {
+			report();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write the slow statements to {}", reportFile, e);
+		} finally {
+			slowStatements.clear();
+			slowStatementCount = 0;
+			statementCount = 0;
+		}
+	}
+
+	protected void report() throws IOException {
+		if (reportFile == null) {
+			if (slowStatementCount > 0) {
+				StringBuilder report = new StringBuilder();
+				writeReport(report);
+				LOGGER.warn(report.toString());
+			}
+			return;
+		}
+
+		Writer writer = Files.newWriter(reportFile, StandardCharsets.UTF_8);
+		try {
+			writeReport(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	protected void writeReport(Appendable report) throws IOException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		report.append(slowStatementCount + " of " + statementCount + " statements slower than " + TimeUnit.NANOSECONDS.toMillis(threshold) + " ms");
+		if (slowStatementCount > slowStatements.size()) {
+			report.append(" (the last " + slowStatements.size() + " are kept)");
+		}
+		report.append(EOL);
+
+		int index = 0;
+		for (SlowStatement slowStatement : slowStatements) {
+			report.append(EOL);
+			report.append("#" + ++index + " " + dateFormat.format(new Date(slowStatement.getTimestamp())) + " " + slowStatement.getScript() + ":" + slowStatement.getLine());
+			report.append(" " + TimeUnit.NANOSECONDS.toMillis(slowStatement.getExecutionTime()) + " ms, " + formatRows(slowStatement.getRowsAffected()) + " rows affected, " + formatRows(slowStatement.getRowsFetched()) + " rows fetched" + EOL);
+			if (slowStatement.getFailure() != null) {
+				report.append("Failed: " + slowStatement.getFailure() + EOL);
+			}
+			report.append(slowStatement.getSQL()).append(EOL);
+			if (slowStatement.getPlan() != null) {
+				report.append("Plan:" + EOL);
+				report.append(slowStatement.getPlan());
+				if (!slowStatement.getPlan().endsWith("\n")) {
+					report.append(EOL);
+				}
+			}
+		}
+	}
+
+	private static String formatRows(long rows) {
+		return rows == UNKNOWN ? "?" : Long.toString(rows);
+	}
+
+	@Override
+	public long getLastRowsAffected() {
+		return statementExecutor instanceof CountingStatementExecutor ? ((CountingStatementExecutor) statementExecutor).getLastRowsAffected() : UNKNOWN;
+	}
+
+	@Override
+	public long getLastRowsFetched() {
+		return statementExecutor instanceof CountingStatementExecutor ? ((CountingStatementExecutor) statementExecutor).getLastRowsFetched() : UNKNOWN;
+	}
+
+	// The other capabilities are forwarded when the statement executor has
+	// them.
+	@Override
+	public void setBatchSize(int batchSize) throws SQLException {
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			((BatchStatementExecutor) statementExecutor).setBatchSize(batchSize);
+		}
+	}
+
+	@Override
+	public int getBatchSize() {
+		return statementExecutor instanceof BatchStatementExecutor ? ((BatchStatementExecutor) statementExecutor).getBatchSize() : 1;
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		if (statementExecutor instanceof BatchStatementExecutor) {
+			((BatchStatementExecutor) statementExecutor).flush();
+		}
+	}
+
+	@Override
+	public void setCommitInterval(int commitInterval) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).setCommitInterval(commitInterval);
+		}
+	}
+
+	@Override
+	public int getCommitInterval() {
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitInterval() : 0;
+	}
+
+	@Override
+	public void setCommitRows(long commitRows) throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).setCommitRows(commitRows);
+		}
+	}
+
+	@Override
+	public long getCommitRows() {
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommitRows() : 0;
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).commit();
+		}
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		if (statementExecutor instanceof TransactionalStatementExecutor) {
+			((TransactionalStatementExecutor) statementExecutor).rollback();
+		}
+	}
+
+	// Without transactions, every executed statement is applied.
+	@Override
+	public long getCommittedStatementCount() {
+		return statementExecutor instanceof TransactionalStatementExecutor ? ((TransactionalStatementExecutor) statementExecutor).getCommittedStatementCount() : executedStatementCount;
+	}
+
+	@Override
+	public void spool(File file, boolean append, char delimiter) throws IOException, SQLException {
+		if (statementExecutor instanceof SpoolingStatementExecutor) {
+			((SpoolingStatementExecutor) statementExecutor).spool(file, append, delimiter);
+		} else {
+			LOGGER.warn("The statement executor can not spool, {} is ignored", file);
+		}
+	}
+
+	@Override
+	public void spoolOff() throws IOException, SQLException {
+		if (statementExecutor instanceof SpoolingStatementExecutor) {
+			((SpoolingStatementExecutor) statementExecutor).spoolOff();
+		}
+	}
+
+	public static SlowStatementExecutor of(StatementExecutor statementExecutor) {
+		return of(statementExecutor, DEFAULT_CAPACITY);
+	}
+
+	public static SlowStatementExecutor of(StatementExecutor statementExecutor, int capacity) {
+		SlowStatementExecutor slowStatementExecutor = new SlowStatementExecutor(statementExecutor, capacity);
+		return slowStatementExecutor;
+	}
+
+}
@@ -0,0 +1,14 @@
+package adrien.database;
+
+// A statement executor which is told where the statements come from, and when
+// the run is over.
+public interface SourceAwareStatementExecutor extends StatementExecutor {
+
+	// Called before each statement with the script (null for a stream) and the
+	// line where the statement starts.
+	void setSource(String script, int line);
+
+	// Called once the outermost script is done, or has failed.
+	void runEnded();
+
+}
@@ -0,0 +1,187 @@
+package adrien.database;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+
+// A statement too large to be kept in memory, written in a temporary file
+// while the script is parsed. The file is in UTF-16, so that the characters
+// can be read from any offset. The trailing whitespaces are not part of the
+// statement.
+public class SpilledStatement implements Closeable {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(SpilledStatement.class);
+
+	final private static Charset CHARSET = Charset.forName("UTF-16BE");
+
+	final private static int BYTES_PER_CHAR = 2;
+
+	final private static int BUFFER_SIZE = 64 * 1024;
+
+	private File file;
+
+	private Writer writer;
+
+	private long length = 0;
+
+	// The length without the trailing whitespaces.
+	private long trimmedLength = 0;
+
+	protected SpilledStatement(File file) throws IOException {
+		super();
+
+		this.file = file;
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET), BUFFER_SIZE);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void append(CharSequence chars, int start, int end) throws IOException {
+		for (int i = end - 1; i >= start; i--) {
+			if (chars.charAt(i) > ' ') {
+				trimmedLength = length + i - start + 1;
+				break;
+			}
+		}
+		writer.append(chars, start, end);
+		length += end - start;
+	}
+
+	public void append(CharSequence chars) throws IOException {
+		append(chars, 0, chars.length());
+	}
+
+	// Stop writing, before reading.
+	public void finish() throws IOException {
+		writer.flush();
+	}
+
+	// Return the number of characters of the statement.
+	public long length() {
+		return trimmedLength;
+	}
+
+	public Reader openReader() throws IOException {
+		return openReader(0, trimmedLength);
+	}
+
+	public Reader openReader(long offset, long length) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		channel.position(offset * BYTES_PER_CHAR);
+		InputStream input = ByteStreams.limit(Channels.newInputStream(channel), length * BYTES_PER_CHAR);
+		return new InputStreamReader(input, CHARSET);
+	}
+
+	// Return the first characters, to find the type of the statement or to log
+	// it.
+	public String getHead(int length) throws IOException {
+		char[] head = new char[(int) Math.min(length, trimmedLength)];
+		Reader reader = openReader(0, head.length);
+		try {
+			int count = 0;
+			while (count < head.length) {
+				int read = reader.read(head, count, head.length - count);
+				if (read < 0) {
+					break;
+				}
+				count += read;
+			}
+			return new String(head, 0, count);
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Read the whole statement in memory, when it can not be streamed.
+	public String read() throws IOException {
+		if (trimmedLength > Integer.MAX_VALUE) {
+			throw new IOException("The statement in " + file + " is too large to be read in memory (" + trimmedLength + " characters)");
+		}
+
+		Reader reader = openReader();
+		try {
+			StringBuilder statement = new StringBuilder((int) trimmedLength);
+			CharStreams.copy(reader, statement);
+			return statement.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Hash the characters of the statement, the way
+	// HashFunction.hashUnencodedChars does, without reading it in memory.
+	public HashCode hash(HashFunction hashFunction) throws IOException {
+		Hasher hasher = hashFunction.newHasher();
+		char[] buffer = new char[BUFFER_SIZE / BYTES_PER_CHAR];
+		Reader reader = openReader();
+		try {
+			for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+				hasher.putUnencodedChars(CharBuffer.wrap(buffer, 0, read));
+			}
+		} finally {
+			reader.close();
+		}
+		return hasher.hash();
+	}
+
+	// Execute the statement with the statement executor, streamed if it can be,
+	// read in memory otherwise.
+	public void executeOn(StatementExecutor statementExecutor) throws SQLException {
+		if (statementExecutor instanceof StreamingStatementExecutor) {
+			((StreamingStatementExecutor) statementExecutor).executeStatement(this);
+			return;
+		}
+
+		String sql;
+		try {
+			sql = read();
+		} catch (IOException e) {
+			throw new SQLException("Unable to read the statement from " + file, e);
+		}
+		statementExecutor.executeStatement(sql);
+	}
+
+	// Delete the file.
+	@Override
+	public void close() {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close {}", file, e);
+		}
+		if (!file.delete()) {
+			LOGGER.warn("Unable to delete {}", file);
+		}
+	}
+
+	public static SpilledStatement create(File directory) throws IOException {
+		File file = File.createTempFile("statement", ".sql", directory);
+		LOGGER.debug("Spilling a statement to {}", file);
+		return new SpilledStatement(file);
+	}
+
+}
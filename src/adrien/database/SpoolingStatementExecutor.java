@@ -0,0 +1,18 @@
+package adrien.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+// A statement executor which can write the rows returned by the queries to a
+// file, as the SPOOL command of SQL*Plus does.
+public interface SpoolingStatementExecutor extends StatementExecutor {
+
+	// Write the rows of the next queries to the file, as delimited text. The
+	// current spool file, if any, is closed first.
+	void spool(File file, boolean append, char delimiter) throws IOException, SQLException;
+
+	// Close the spool file, if any.
+	void spoolOff() throws IOException, SQLException;
+
+}
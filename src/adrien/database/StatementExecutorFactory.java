@@ -0,0 +1,17 @@
+package adrien.database;
+
+import java.sql.SQLException;
+
+// Provide the statement executors of the callers running several scripts at
+// the same time, each executor being used by one thread at a time.
+public interface StatementExecutorFactory {
+
+	StatementExecutor newStatementExecutor() throws SQLException;
+
+	// Give the statement executor back, once its script is executed. What it
+	// has not committed is committed if the script succeeded, and rolled back
+	// otherwise. If the commit fails, the statement executor is given back all
+	// the same, and the failure is thrown: the script has not been applied.
+	void release(StatementExecutor statementExecutor, boolean succeeded) throws SQLException;
+
+}
@@ -0,0 +1,60 @@
+package adrien.database;
+
+// The kind of a statement, found from its first keyword.
+public enum StatementType {
+
+	QUERY("SELECT", "WITH", "VALUES", "SHOW", "DESCRIBE", "DESC", "EXPLAIN"),
+	DML("INSERT", "UPDATE", "DELETE", "MERGE", "UPSERT", "REPLACE"),
+	DDL("CREATE", "ALTER", "DROP", "TRUNCATE", "RENAME", "COMMENT", "GRANT", "REVOKE", "ANALYZE"),
+	BLOCK("BEGIN", "DECLARE"),
+	OTHER;
+
+	private String[] keywords;
+
+	private StatementType(String... keywords) {
+		this.keywords = keywords;
+	}
+
+	// Return the type of the statement, skipping leading whitespaces and
+	// comments.
+	public static StatementType of(CharSequence sql) {
+		int offset = skipComments(sql, 0);
+		int end = offset;
+		while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+			end++;
+		}
+
+		for (StatementType type : values()) {
+			for (String keyword : type.keywords) {
+				if (keyword.length() == end - offset && ScriptLexer.regionMatches(sql, offset, keyword)) {
+					return type;
+				}
+			}
+		}
+		return OTHER;
+	}
+
+	protected static int skipComments(CharSequence sql, int offset) {
+		int length = sql.length();
+		while (offset < length) {
+			char character = sql.charAt(offset);
+			if (Character.isWhitespace(character)) {
+				offset++;
+			} else if (ScriptLexer.regionMatches(sql, offset, "--")) {
+				while (offset < length && sql.charAt(offset) != '\n') {
+					offset++;
+				}
+			} else if (ScriptLexer.regionMatches(sql, offset, "/*")) {
+				offset += 2;
+				while (offset < length && !ScriptLexer.regionMatches(sql, offset, "*/")) {
+					offset++;
+				}
+				offset = Math.min(length, offset + 2);
+			} else {
+				break;
+			}
+		}
+		return offset;
+	}
+
+}
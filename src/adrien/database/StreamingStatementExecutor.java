@@ -0,0 +1,11 @@
+package adrien.database;
+
+import java.sql.SQLException;
+
+// A statement executor which reads the statements too large to be kept in
+// memory from their temporary files.
+public interface StreamingStatementExecutor extends StatementExecutor {
+
+	void executeStatement(SpilledStatement statement) throws SQLException;
+
+}
@@ -0,0 +1,158 @@
+package adrien.database;
+
+// The prefix, terminator and escaper of the substitution variables, from
+// which the statements are compiled into substitution templates.
+public final class SubstitutionSyntax {
+
+	private final String prefix;
+
+	private final String terminator;
+
+	private final String escaper;
+
+	public SubstitutionSyntax(String prefix, String terminator, String escaper) {
+		super();
+
+		this.prefix = prefix;
+		this.terminator = terminator;
+		this.escaper = escaper;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getTerminator() {
+		return terminator;
+	}
+
+	public String getEscaper() {
+		return escaper;
+	}
+
+	// Find the variables the same way as the expression
+	// (escaper)?(prefix([a-zA-Z0-9_]+))('|"|\s|\n|$|terminator) does, ignoring
+	// the case. An escaped variable is kept as is, and the terminator is
+	// removed when it ends the variable.
+	public SubstitutionTemplate compile(String text) {
+		SubstitutionTemplate.Builder builder = new SubstitutionTemplate.Builder(text, this);
+		int length = text.length();
+		int literalStart = 0;
+		int offset = 0;
+		while (offset < length) {
+			int escaperEnd = ScriptLexer.regionMatches(text, offset, escaper) ? offset + escaper.length() : -1;
+			boolean escaped = escaperEnd >= 0 && matchVariable(text, escaperEnd, builder);
+			if (!escaped && !matchVariable(text, offset, builder)) {
+				offset++;
+				continue;
+			}
+
+			int end = builder.getMatchEnd();
+			if (escaped && text.startsWith(escaper, offset)) {
+				// Kept as is, with the escaper.
+				builder.literal(literalStart, end);
+			} else {
+				builder.literal(literalStart, offset);
+				builder.slot();
+				if (!builder.getEnder().equals(terminator)) {
+					builder.literal(end - builder.getEnder().length(), end);
+				}
+			}
+			literalStart = end;
+			offset = end;
+		}
+		builder.literal(literalStart, length);
+		return builder.build();
+	}
+
+	// Compile the text from the offsets of the prefix found beforehand, all of
+	// them and in order, without scanning it again.
+	public SubstitutionTemplate compile(String text, int[] prefixOffsets) {
+		SubstitutionTemplate.Builder builder = new SubstitutionTemplate.Builder(text, this);
+		int literalStart = 0;
+		for (int offset : prefixOffsets) {
+			if (offset < literalStart) {
+				// Part of the previous variable.
+				continue;
+			}
+
+			int escaperStart = offset - escaper.length();
+			boolean escaped = escaperStart >= literalStart && ScriptLexer.regionMatches(text, escaperStart, escaper) && matchVariable(text, offset, builder);
+			if (escaped) {
+				// Kept as is, with the escaper.
+				builder.literal(literalStart, builder.getMatchEnd());
+			} else if (matchVariable(text, offset, builder)) {
+				int end = builder.getMatchEnd();
+				builder.literal(literalStart, offset);
+				builder.slot();
+				if (!builder.getEnder().equals(terminator)) {
+					builder.literal(end - builder.getEnder().length(), end);
+				}
+			} else {
+				continue;
+			}
+			literalStart = builder.getMatchEnd();
+		}
+		builder.literal(literalStart, text.length());
+		return builder.build();
+	}
+
+	// Match the prefix, the longest identifier followed by an ender, and the
+	// ender.
+	private boolean matchVariable(String text, int offset, SubstitutionTemplate.Builder builder) {
+		if (!ScriptLexer.regionMatches(text, offset, prefix)) {
+			return false;
+		}
+
+		int identifierStart = offset + prefix.length();
+		int identifierEnd = identifierStart;
+		while (identifierEnd < text.length() && isIdentifier(text.charAt(identifierEnd))) {
+			identifierEnd++;
+		}
+
+		for (int end = identifierEnd; end > identifierStart; end--) {
+			int enderLength = matchEnder(text, end);
+			if (enderLength >= 0) {
+				builder.match(identifierStart, end, end + enderLength);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Return the length of the ender at the offset, or -1 if there is none.
+	private int matchEnder(String text, int offset) {
+		if (offset == text.length()) {
+			return 0;
+		}
+
+		char character = text.charAt(offset);
+		if (character == '\'' || character == '"' || ScriptLexer.isWhitespace(character)) {
+			return 1;
+		}
+		return ScriptLexer.regionMatches(text, offset, terminator) ? terminator.length() : -1;
+	}
+
+	private static boolean isIdentifier(char character) {
+		return (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z')
+				|| (character >= '0' && character <= '9') || character == '_';
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		if (this == object) {
+			return true;
+		}
+		if (!(object instanceof SubstitutionSyntax)) {
+			return false;
+		}
+		SubstitutionSyntax syntax = (SubstitutionSyntax) object;
+		return prefix.equals(syntax.prefix) && terminator.equals(syntax.terminator) && escaper.equals(syntax.escaper);
+	}
+
+	@Override
+	public int hashCode() {
+		return (prefix.hashCode() * 31 + terminator.hashCode()) * 31 + escaper.hashCode();
+	}
+
+}
@@ -0,0 +1,125 @@
+package adrien.database;
+
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+// A statement split into literal parts and substitution variables:
+// literals[0] names[0] literals[1] ... names[n-1] literals[n].
+public final class SubstitutionTemplate {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(SubstitutionTemplate.class);
+
+	private final String text;
+
+	private final SubstitutionSyntax syntax;
+
+	private final String[] literals;
+
+	private final String[] names;
+
+	private SubstitutionTemplate(String text, SubstitutionSyntax syntax, String[] literals, String[] names) {
+		super();
+
+		this.text = text;
+		this.syntax = syntax;
+		this.literals = literals;
+		this.names = names;
+	}
+
+	// Return the syntax the template has been compiled with.
+	public SubstitutionSyntax getSyntax() {
+		return syntax;
+	}
+
+	public boolean hasVariables() {
+		return names.length > 0;
+	}
+
+	// Replace the variables with their values, the undefined ones with nothing.
+	public String expand(Map<String, String> variables) {
+		if (names.length == 0) {
+			return text;
+		}
+
+		String[] values = new String[names.length];
+		int length = 0;
+		for (int i = 0; i < names.length; i++) {
+			String value = variables.get(names[i]);
+			if (value == null || value.isEmpty()) {
+				LOGGER.warn("The substitution variable {} is not defined.", syntax.getPrefix() + names[i]);
+				value = "";
+			}
+			values[i] = value;
+			length += literals[i].length() + value.length();
+		}
+		length += literals[names.length].length();
+
+		StringBuilder expanded = new StringBuilder(length);
+		for (int i = 0; i < names.length; i++) {
+			expanded.append(literals[i]).append(values[i]);
+		}
+		expanded.append(literals[names.length]);
+		return expanded.toString();
+	}
+
+	static class Builder {
+
+		private String text;
+
+		private SubstitutionSyntax syntax;
+
+		private StringBuilder literal = new StringBuilder();
+
+		private List<String> literals = Lists.newArrayList();
+
+		private List<String> names = Lists.newArrayList();
+
+		private int nameStart;
+
+		private int nameEnd;
+
+		private int matchEnd;
+
+		Builder(String text, SubstitutionSyntax syntax) {
+			this.text = text;
+			this.syntax = syntax;
+		}
+
+		// Record the last variable matched.
+		void match(int nameStart, int nameEnd, int matchEnd) {
+			this.nameStart = nameStart;
+			this.nameEnd = nameEnd;
+			this.matchEnd = matchEnd;
+		}
+
+		int getMatchEnd() {
+			return matchEnd;
+		}
+
+		String getEnder() {
+			return text.substring(nameEnd, matchEnd);
+		}
+
+		void literal(int start, int end) {
+			literal.append(text, start, end);
+		}
+
+		void slot() {
+			literals.add(literal.toString());
+			literal.setLength(0);
+			names.add(text.substring(nameStart, nameEnd));
+		}
+
+		SubstitutionTemplate build() {
+			literals.add(literal.toString());
+			return new SubstitutionTemplate(text, syntax, literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+		}
+
+	}
+
+}
@@ -0,0 +1,301 @@
+package adrien.database;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+// The tables a statement reads and writes, found from the names following
+// FROM, JOIN, USING, INTO, UPDATE and DELETE. The names are kept without their
+// schema, so that two tables of the same name are taken as one.
+//
+// Only queries and DML statements are analyzed. The others (DDL, blocks,
+// unknown statements), the ones using a sequence (seq.NEXTVAL, NEXTVAL('seq'),
+// NEXT VALUE FOR seq), the ones calling a function which is not a standard
+// one, and the DML statements whose target is not found are barriers, which
+// may read or write anything. The names read may still be views, which the
+// table links tell from the tables.
+public class TableAccess {
+
+	final private static TableAccess BARRIER = new TableAccess(ImmutableSet.<String> of(), ImmutableSet.<String> of(), true);
+
+	final private static Set<String> KEYWORDS = ImmutableSet.of("select", "where", "group", "order", "having", "join", "inner", "left", "right", "full", "cross", "natural", "outer", "on", "using", "union", "intersect", "except", "minus", "limit", "offset", "fetch", "for", "start", "connect", "window", "set", "values", "when", "then", "returning", "partition", "sample", "with", "into", "only", "lateral", "table", "all", "first", "from", "as");
+
+	// Followed by a parenthesis without being a function call.
+	final private static Set<String> PARENTHESIZED_KEYWORDS = ImmutableSet.of("in", "exists", "and", "or", "not", "any", "some", "over", "filter", "within", "case", "else", "is", "between", "like", "by", "row", "distinct", "recursive", "escape", "insert", "conflict");
+
+	// The standard functions and types, which can not read or write a table.
+	// Any other function may, and sequences are functions in some databases.
+	final private static Set<String> STANDARD_FUNCTIONS = ImmutableSet.of("count", "sum", "min", "max", "avg", "coalesce", "nullif", "greatest", "least", "cast", "upper", "lower", "trim", "ltrim", "rtrim", "substr", "substring", "length", "char_length", "position", "abs", "round", "trunc", "floor", "ceil", "ceiling", "mod", "power", "sqrt", "concat", "replace", "extract", "nvl", "row_number", "rank", "dense_rank", "lag", "lead", "char", "varchar", "varchar2", "nchar", "nvarchar", "character", "decimal", "numeric", "number", "timestamp", "time", "float");
+
+	private Set<String> readTables;
+
+	private Set<String> writtenTables;
+
+	private boolean barrier;
+
+	protected TableAccess(Set<String> readTables, Set<String> writtenTables, boolean barrier) {
+		super();
+
+		this.readTables = readTables;
+		this.writtenTables = writtenTables;
+		this.barrier = barrier;
+	}
+
+	public Set<String> getReadTables() {
+		return readTables;
+	}
+
+	public Set<String> getWrittenTables() {
+		return writtenTables;
+	}
+
+	public boolean isBarrier() {
+		return barrier;
+	}
+
+	@Override
+	public String toString() {
+		return barrier ? "barrier" : "read " + readTables + ", written " + writtenTables;
+	}
+
+	public static TableAccess barrier() {
+		return BARRIER;
+	}
+
+	public static TableAccess of(String sql) {
+		StatementType statementType = StatementType.of(sql);
+		if (statementType != StatementType.QUERY && statementType != StatementType.DML) {
+			return BARRIER;
+		}
+
+		List<String> tokens = tokenize(sql);
+		if (tokens.isEmpty()) {
+			return BARRIER;
+		}
+		Set<String> commonTableExpressions = getCommonTableExpressions(tokens);
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (token.endsWith(".nextval") || token.endsWith(".currval")) {
+				return BARRIER;
+			} else if (token.equals("next") && i + 2 < tokens.size() && tokens.get(i + 1).equals("value") && tokens.get(i + 2).equals("for")) {
+				return BARRIER;
+			} else if (isCall(tokens, i, commonTableExpressions)) {
+				return BARRIER;
+			}
+		}
+
+		Set<String> readTables = Sets.newLinkedHashSet();
+		Set<String> writtenTables = Sets.newLinkedHashSet();
+		String keyword = tokens.get(0);
+		if (statementType == StatementType.QUERY) {
+			if (!keyword.equals("select") && !keyword.equals("with") && !keyword.equals("values")) {
+				return BARRIER;
+			}
+		} else if (keyword.equals("insert") || keyword.equals("upsert") || keyword.equals("replace") || keyword.equals("merge")) {
+			// Every INTO of a multi-table insert is written.
+			for (int i = 1; i < tokens.size(); i++) {
+				if (tokens.get(i).equals("into")) {
+					addTable(writtenTables, tokens, i + 1);
+				}
+			}
+		} else if (keyword.equals("update")) {
+			addTable(writtenTables, tokens, 1);
+		} else if (keyword.equals("delete")) {
+			addTable(writtenTables, tokens, tokens.size() > 1 && tokens.get(1).equals("from") ? 2 : 1);
+		}
+
+		boolean locking = false;
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (token.equals("from") || token.equals("join") || token.equals("using")) {
+				i = addTables(readTables, tokens, i + 1);
+			} else if (statementType == StatementType.QUERY && (token.equals("into") || token.equals("insert") || token.equals("delete") || token.equals("merge") || (token.equals("update") && (i == 0 || !tokens.get(i - 1).equals("for"))))) {
+				// SELECT ... INTO creates a table, and a WITH may modify one.
+				return BARRIER;
+			} else if (token.equals("for") && i + 1 < tokens.size() && tokens.get(i + 1).equals("update")) {
+				locking = true;
+			}
+		}
+
+		if (statementType == StatementType.DML && writtenTables.isEmpty()) {
+			return BARRIER;
+		}
+		readTables.removeAll(commonTableExpressions);
+		if (locking) {
+			writtenTables.addAll(readTables);
+		}
+		return new TableAccess(ImmutableSet.copyOf(readTables), ImmutableSet.copyOf(writtenTables), false);
+	}
+
+	// Find if the name at the index calls a function which is not a standard
+	// one. The column lists of the written tables and of the common table
+	// expressions are not calls.
+	private static boolean isCall(List<String> tokens, int index, Set<String> commonTableExpressions) {
+		String token = tokens.get(index);
+		if (index + 1 >= tokens.size() || !tokens.get(index + 1).equals("(") || !isName(token)) {
+			return false;
+		} else if (index > 0 && tokens.get(index - 1).equals("into")) {
+			return false;
+		}
+		return !PARENTHESIZED_KEYWORDS.contains(token) && !STANDARD_FUNCTIONS.contains(token) && !commonTableExpressions.contains(token);
+	}
+
+	// Find the names of the common table expressions (WITH name [(columns)]
+	// AS (query)), which are read as tables.
+	private static Set<String> getCommonTableExpressions(List<String> tokens) {
+		Set<String> names = Sets.newHashSet();
+		if (!tokens.get(0).equals("with")) {
+			return names;
+		}
+		for (int i = 1; i + 2 < tokens.size(); i++) {
+			if (!isName(tokens.get(i))) {
+				continue;
+			}
+			int next = i + 1;
+			if (tokens.get(next).equals("(")) {
+				next = skipParentheses(tokens, next);
+			}
+			if (next + 1 < tokens.size() && tokens.get(next).equals("as") && tokens.get(next + 1).equals("(")) {
+				names.add(getTableName(tokens.get(i)));
+			}
+		}
+		return names;
+	}
+
+	// Return the index following the parenthesis closing the one at the
+	// index.
+	private static int skipParentheses(List<String> tokens, int index) {
+		int depth = 0;
+		for (int i = index; i < tokens.size(); i++) {
+			if (tokens.get(i).equals("(")) {
+				depth++;
+			} else if (tokens.get(i).equals(")") && --depth == 0) {
+				return i + 1;
+			}
+		}
+		return tokens.size();
+	}
+
+	// Add the table at the index, if it is a name, skipping ONLY and TABLE.
+	private static boolean addTable(Set<String> tables, List<String> tokens, int index) {
+		while (index < tokens.size() && (tokens.get(index).equals("only") || tokens.get(index).equals("table"))) {
+			index++;
+		}
+		if (index < tokens.size() && isName(tokens.get(index))) {
+			tables.add(getTableName(tokens.get(index)));
+			return true;
+		}
+		return false;
+	}
+
+	// Add the tables of a FROM list, with their aliases, and return the index
+	// of the last token read.
+	private static int addTables(Set<String> tables, List<String> tokens, int index) {
+		while (index < tokens.size() && (tokens.get(index).equals("only") || tokens.get(index).equals("lateral"))) {
+			index++;
+		}
+		while (index < tokens.size() && isName(tokens.get(index))) {
+			tables.add(getTableName(tokens.get(index++)));
+			if (index < tokens.size() && tokens.get(index).equals("as")) {
+				index++;
+			}
+			if (index < tokens.size() && isName(tokens.get(index))) {
+				index++;
+			}
+			if (index < tokens.size() && tokens.get(index).equals(",")) {
+				index++;
+			} else {
+				break;
+			}
+		}
+		return index - 1;
+	}
+
+	// Compare the quoted names as the others, which may take two tables for
+	// one but never misses a dependency.
+	private static String getTableName(String token) {
+		return token.startsWith("\"") ? token.substring(1, Math.max(1, token.length() - 1)).toLowerCase() : token;
+	}
+
+	private static boolean isName(String token) {
+		char first = token.charAt(0);
+		return (Character.isLetter(first) || first == '_' || first == '"') && !KEYWORDS.contains(token);
+	}
+
+	// Split the statement into names (lower case, without their schema) and
+	// punctuation, skipping the literals and the comments. A quoted name keeps
+	// its quotes so that it is never taken for a keyword.
+	protected static List<String> tokenize(String sql) {
+		List<String> tokens = Lists.newArrayList();
+		int length = sql.length();
+		int offset = 0;
+		while (offset < length) {
+			char character = sql.charAt(offset);
+			if (Character.isWhitespace(character)) {
+				offset++;
+			} else if (character == '-' && offset + 1 < length && sql.charAt(offset + 1) == '-') {
+				offset = StatementType.skipComments(sql, offset);
+			} else if (character == '/' && offset + 1 < length && sql.charAt(offset + 1) == '*') {
+				offset = StatementType.skipComments(sql, offset);
+			} else if (character == '\'') {
+				offset++;
+				while (offset < length) {
+					if (sql.charAt(offset++) == '\'') {
+						if (offset < length && sql.charAt(offset) == '\'') {
+							offset++;
+						} else {
+							break;
+						}
+					}
+				}
+			} else if (Character.isLetter(character) || character == '_' || character == '"') {
+				int start = offset;
+				offset = skipName(sql, offset);
+				while (offset + 1 < length && sql.charAt(offset) == '.' && (Character.isLetter(sql.charAt(offset + 1)) || sql.charAt(offset + 1) == '_' || sql.charAt(offset + 1) == '"')) {
+					offset = skipName(sql, offset + 1);
+				}
+				tokens.add(normalize(sql.substring(start, offset)));
+			} else if (Character.isDigit(character)) {
+				while (offset < length && (Character.isLetterOrDigit(sql.charAt(offset)) || sql.charAt(offset) == '.')) {
+					offset++;
+				}
+			} else {
+				if (character == '(' || character == ')' || character == ',' || character == ';') {
+					tokens.add(String.valueOf(character));
+				}
+				offset++;
+			}
+		}
+		return tokens;
+	}
+
+	private static int skipName(String sql, int offset) {
+		if (sql.charAt(offset) == '"') {
+			int end = sql.indexOf('"', offset + 1);
+			return end < 0 ? sql.length() : end + 1;
+		}
+		while (offset < sql.length() && (Character.isLetterOrDigit(sql.charAt(offset)) || sql.charAt(offset) == '_' || sql.charAt(offset) == '$' || sql.charAt(offset) == '#')) {
+			offset++;
+		}
+		return offset;
+	}
+
+	// Keep a sequence pseudo column (seq.nextval) whole, and the last part of
+	// the other names.
+	private static String normalize(String qualifiedName) {
+		String name = qualifiedName;
+		int dot = qualifiedName.endsWith("\"") ? qualifiedName.lastIndexOf('"', qualifiedName.length() - 2) - 1 : qualifiedName.lastIndexOf('.');
+		if (dot >= 0) {
+			String last = qualifiedName.substring(dot + 1).toLowerCase();
+			if (last.equals("nextval") || last.equals("currval")) {
+				return qualifiedName.toLowerCase();
+			}
+			name = qualifiedName.substring(dot + 1);
+		}
+		return name.startsWith("\"") ? name : name.toLowerCase();
+	}
+
+}
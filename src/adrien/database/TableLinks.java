@@ -0,0 +1,23 @@
+package adrien.database;
+
+import java.sql.SQLException;
+import java.util.Set;
+
+// What a write to a table may also touch besides the table, as the database
+// knows it: the tables linked by foreign keys (checked or cascaded) and the
+// triggers. A name which is not a table (a view, a synonym) may stand for any
+// table.
+public interface TableLinks {
+
+	// Whether the name, in the names of TableAccess, is only the one of base
+	// tables.
+	boolean isTable(String name) throws SQLException;
+
+	// Return the tables linked to the table by foreign keys, directly or
+	// through other tables, in the names of TableAccess.
+	Set<String> getLinkedTables(String table) throws SQLException;
+
+	// Whether a write to the table fires a trigger, which may touch any table.
+	boolean hasTriggers(String table) throws SQLException;
+
+}
@@ -0,0 +1,28 @@
+package adrien.database;
+
+import java.sql.SQLException;
+
+// A statement executor which groups the statements in transactions, committed
+// every given number of statements or of rows affected. An interval of 0
+// disables the grouping, and the connection is then left as it is.
+public interface TransactionalStatementExecutor extends StatementExecutor {
+
+	void setCommitInterval(int commitInterval) throws SQLException;
+
+	int getCommitInterval();
+
+	void setCommitRows(long commitRows) throws SQLException;
+
+	long getCommitRows();
+
+	// Commit the current transaction, if the statements are grouped.
+	void commit() throws SQLException;
+
+	// Roll back to the last commit, if the statements are grouped.
+	void rollback() throws SQLException;
+
+	// Return the number of statements durably applied so far: committed, or
+	// executed when they are not grouped. It may be read from any thread.
+	long getCommittedStatementCount();
+
+}
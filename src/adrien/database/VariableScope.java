@@ -0,0 +1,76 @@
+package adrien.database;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+// Substitution variables read through to an enclosing scope. The variables
+// defined in a scope are kept in its own map, created on the first one, so the
+// enclosing variables are never copied nor modified: a run can start from the
+// variables shared by every run, and an included script can have its own.
+public class VariableScope extends AbstractMap<String, String> {
+
+	private Map<String, String> parent;
+
+	private Map<String, String> variables;
+
+	public VariableScope() {
+		this(ImmutableMap.<String, String> of());
+	}
+
+	public VariableScope(Map<String, String> parent) {
+		super();
+
+		this.parent = parent;
+	}
+
+	public Map<String, String> getParent() {
+		return parent;
+	}
+
+	// Return a scope reading through to this one.
+	public VariableScope newScope() {
+		return new VariableScope(this);
+	}
+
+	@Override
+	public String get(Object name) {
+		if (variables != null && variables.containsKey(name)) {
+			return variables.get(name);
+		}
+		return parent.get(name);
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		return (variables != null && variables.containsKey(name)) || parent.containsKey(name);
+	}
+
+	@Override
+	public String put(String name, String value) {
+		String previousValue = get(name);
+		if (variables == null) {
+			variables = Maps.newHashMap();
+		}
+		variables.put(name, value);
+		return previousValue;
+	}
+
+	// Return the variables of every scope, the ones of this scope hiding the
+	// enclosing ones.
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		if (variables == null) {
+			return Collections.unmodifiableMap(parent).entrySet();
+		}
+
+		Map<String, String> flattened = Maps.newLinkedHashMap(parent);
+		flattened.putAll(variables);
+		return Collections.unmodifiableMap(flattened).entrySet();
+	}
+
+}
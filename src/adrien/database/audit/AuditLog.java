@@ -0,0 +1,303 @@
+package adrien.database.audit;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Record the executed statements in a binary file, without blocking the
+// threads which execute them on the file I/O. The statements are put in a
+// lock-free ring buffer, and a background thread writes them to the file. When
+// the buffer is full, the statement is either dropped (and counted) or the
+// thread waits for room, depending on the overflow policy.
+//
+// The file starts with a header (magic number, version and flags), followed by
+// the records: the timestamp as a zigzag variable-length delta with the
+// previous one, the length of the UTF-8 statement as a variable-length int,
+// and the statement. The records may be compressed with deflate.
+public class AuditLog implements Closeable {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(AuditLog.class);
+
+	public static enum OverflowPolicy {
+
+		BLOCK, DROP
+
+	}
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	static final int MAGIC = 0x53514c41;
+
+	static final int VERSION = 1;
+
+	static final int COMPRESSED = 1;
+
+	final private static int BUFFER_SIZE = 64 * 1024;
+
+	final private static long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	final private static long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private File file;
+
+	private OverflowPolicy overflowPolicy;
+
+	private int mask;
+
+	private String[] statements;
+
+	private long[] timestamps;
+
+	// The sequence of the record in each slot, plus 1, once it is published.
+	private AtomicLongArray publishedSequences;
+
+	private AtomicLong nextSequence = new AtomicLong();
+
+	// Only written by the writer thread.
+	private volatile long writtenSequence = 0;
+
+	private AtomicLong droppedCount = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	private volatile IOException failure;
+
+	private DataOutputStream output;
+
+	private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private long lastTimestamp = 0;
+
+	private Thread writer;
+
+	protected AuditLog(File file, int capacity, OverflowPolicy overflowPolicy, boolean compressed) throws IOException {
+		super();
+
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("The capacity has to be a power of two: " + capacity);
+		}
+
+		this.file = file;
+		this.overflowPolicy = overflowPolicy;
+		this.mask = capacity - 1;
+		this.statements = new String[capacity];
+		this.timestamps = new long[capacity];
+		this.publishedSequences = new AtomicLongArray(capacity);
+
+		OutputStream outputStream = new FileOutputStream(file);
+		outputStream.write(new byte[] { (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC, VERSION, (byte) (compressed ? COMPRESSED : 0) });
+		if (compressed) {
+			outputStream = new DeflaterOutputStream(outputStream, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE, true);
+		}
+		this.output = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+
+		this.writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				write();
+			}
+
+		}, "audit-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// Record the statement, and return false if it has been dropped. Nothing is
+	// allocated: the formatting and the encoding are done by the writer thread.
+	public boolean record(String sql) {
+		long sequence;
+		while (true) {
+			if (closed) {
+				droppedCount.incrementAndGet();
+				return false;
+			}
+
+			sequence = nextSequence.get();
+			if (sequence - writtenSequence > mask) {
+				if (overflowPolicy == OverflowPolicy.DROP) {
+					droppedCount.incrementAndGet();
+					return false;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(this, FULL_WAIT);
+			} else if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+				break;
+			}
+		}
+
+		int slot = (int) sequence & mask;
+		if (closed) {
+			// Closed meanwhile: the writer may be gone already, or waiting for
+			// the slot, which is published empty.
+			statements[slot] = null;
+			publishedSequences.lazySet(slot, sequence + 1);
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		statements[slot] = sql;
+		timestamps[slot] = System.currentTimeMillis();
+		publishedSequences.lazySet(slot, sequence + 1);
+		return true;
+	}
+
+	// Return the number of statements dropped because the buffer was full or
+	// the log closed.
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getWrittenCount() {
+		return writtenSequence;
+	}
+
+	// Drain the buffer until the log is closed and every claimed slot is
+	// written, flushing the file whenever the buffer is empty.
+	protected void write() {
+		long sequence = writtenSequence;
+		boolean dirty = false;
+		try {
+			while (true) {
+				int slot = (int) sequence & mask;
+				if (publishedSequences.get(slot) == sequence + 1) {
+					String sql = statements[slot];
+					statements[slot] = null;
+					if (sql != null) {
+						writeRecord(timestamps[slot], sql);
+						dirty = true;
+					}
+					writtenSequence = ++sequence;
+				} else if (closed && sequence == nextSequence.get()) {
+					break;
+				} else if (dirty) {
+					output.flush();
+					dirty = false;
+				} else {
+					LockSupport.parkNanos(this, IDLE_WAIT);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("Unable to write to the {} audit log, the next statements are dropped", file, e);
+			failure = e;
+			closed = true;
+		} finally {
+			try {
+				output.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close the {} audit log", file, e);
+			}
+		}
+	}
+
+	private void writeRecord(long timestamp, String sql) throws IOException {
+		long delta = timestamp - lastTimestamp;
+		lastTimestamp = timestamp;
+		writeVarLong(output, (delta << 1) ^ (delta >> 63));
+
+		// The statement is encoded in chunks of the buffer size, once its
+		// length is known.
+		long length = getEncodedLength(sql);
+		writeVarLong(output, length);
+		encoder.reset();
+		CharBuffer chars = CharBuffer.wrap(sql);
+		boolean flushed = false;
+		while (!flushed) {
+			bytes.clear();
+			CoderResult result = encoder.encode(chars, bytes, true);
+			if (result.isUnderflow()) {
+				flushed = encoder.flush(bytes).isUnderflow();
+			}
+			bytes.flip();
+			output.write(bytes.array(), 0, bytes.remaining());
+			length -= bytes.remaining();
+		}
+		if (length != 0) {
+			throw new IOException("The length of the encoded statement is off by " + -length + " bytes");
+		}
+	}
+
+	// Return the length of the statement in UTF-8, a malformed surrogate being
+	// replaced with a single byte.
+	static long getEncodedLength(String sql) {
+		long length = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char character = sql.charAt(i);
+			if (character < 0x80) {
+				length++;
+			} else if (character < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(character) && i + 1 < sql.length() && Character.isLowSurrogate(sql.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(character)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	static void writeVarLong(DataOutputStream output, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	// Write the statements still in the buffer, and close the file. The
+	// statements recorded afterwards are dropped.
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the " + file + " audit log", e);
+		}
+
+		if (droppedCount.get() > 0) {
+			LOGGER.warn("{} statements were dropped from the {} audit log", droppedCount.get(), file);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public static AuditLog open(File file) throws IOException {
+		return open(file, DEFAULT_CAPACITY, OverflowPolicy.BLOCK, false);
+	}
+
+	public static AuditLog open(File file, int capacity, OverflowPolicy overflowPolicy, boolean compressed) throws IOException {
+		return new AuditLog(file, capacity, overflowPolicy, compressed);
+	}
+
+}
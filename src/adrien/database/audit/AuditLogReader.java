@@ -0,0 +1,138 @@
+package adrien.database.audit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.InflaterInputStream;
+
+// Read the records of an audit log, one after the other. Run it to print the
+// audit logs given as arguments as text, one statement per record preceded by
+// its timestamp.
+public class AuditLogReader implements Closeable {
+
+	final private static int BUFFER_SIZE = 64 * 1024;
+
+	private File file;
+
+	private DataInputStream input;
+
+	private long timestamp = 0;
+
+	private String statement;
+
+	private byte[] bytes = new byte[BUFFER_SIZE];
+
+	public AuditLogReader(File file) throws IOException {
+		super();
+
+		this.file = file;
+		InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			DataInputStream header = new DataInputStream(inputStream);
+			if (header.readInt() != AuditLog.MAGIC) {
+				throw new IOException("The " + file + " file is not an audit log");
+			}
+			int version = header.readUnsignedByte();
+			if (version != AuditLog.VERSION) {
+				throw new IOException("The version " + version + " of the " + file + " audit log is not supported");
+			}
+			if ((header.readUnsignedByte() & AuditLog.COMPRESSED) != 0) {
+				inputStream = new InflaterInputStream(inputStream);
+			}
+		} catch (IOException e) {
+			inputStream.close();
+			throw e;
+		}
+		this.input = new DataInputStream(inputStream);
+	}
+
+	// Read the next record, and return false at the end of the log. A record
+	// cut by the end of the file (if the log was not closed) is ignored.
+	public boolean next() throws IOException {
+		long zigzag;
+		try {
+			zigzag = readVarLong(input);
+		} catch (EOFException e) {
+			statement = null;
+			return false;
+		}
+
+		try {
+			timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+			int length = (int) readVarLong(input);
+			if (bytes.length < length) {
+				bytes = new byte[length];
+			}
+			input.readFully(bytes, 0, length);
+			statement = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			return true;
+		} catch (EOFException e) {
+			statement = null;
+			return false;
+		}
+	}
+
+	// The time in milliseconds at which the statement was recorded.
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getStatement() {
+		return statement;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	static long readVarLong(DataInputStream input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable-length number");
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	public static void main(String[] arguments) throws IOException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		try {
+			for (String argument : arguments) {
+				AuditLogReader reader = new AuditLogReader(new File(argument));
+				try {
+					while (reader.next()) {
+						writer.write(dateFormat.format(new Date(reader.getTimestamp())));
+						writer.write(' ');
+						writer.write(reader.getStatement());
+						writer.write(System.getProperty("line.separator"));
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			writer.flush();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package adrien.database.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.AsyncStatementExecutor;
+import adrien.database.SpoolingStatementExecutor;
+import adrien.database.TransactionalStatementExecutor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// Run the statements of a JDBC statement executor on a dedicated thread, since
+// a connection can not be shared between threads. The statements, commits and
+// rollbacks are executed in the order they are submitted. After a failure, the
+// statements are skipped until the next rollback.
+//
+// With a single thread, the statements do not overlap each other: what
+// overlaps with their execution is the parsing and the substitution of the
+// next statements. Several connections are needed for more (see
+// ConcurrentStatementExecutor).
+public class AsyncJDBCStatementExecutor implements AsyncStatementExecutor, TransactionalStatementExecutor, SpoolingStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(AsyncJDBCStatementExecutor.class);
+
+	private JDBCStatementExecutor statementExecutor;
+
+	private ListeningExecutorService executorService;
+
+	// Only used on the dedicated thread.
+	private SQLException failure;
+
+	protected AsyncJDBCStatementExecutor(JDBCStatementExecutor statementExecutor) {
+		super();
+
+		this.statementExecutor = statementExecutor;
+		this.executorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "async-statement-executor");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		}));
+	}
+
+	public JDBCStatementExecutor getStatementExecutor() {
+		return statementExecutor;
+	}
+
+	@Override
+	public ListenableFuture<Long> submitStatement(final String sql) {
+		return executorService.submit(new Callable<Long>() {
+
+			@Override
+			public Long call() throws SQLException {
+				if (failure != null) {
+					LOGGER.debug("Skipping statement after failure ({})", sql);
+					throw new SQLException("Skipped after a previous failure", failure);
+				}
+
+				try {
+					statementExecutor.executeStatement(sql);
+				} catch (SQLException e) {
+					failure = e;
+					throw e;
+				}
+				return statementExecutor.getLastRowsAffected();
+			}
+
+		});
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		await(submitStatement(sql));
+	}
+
+	@Override
+	public void setCommitInterval(final int commitInterval) throws SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				statementExecutor.setCommitInterval(commitInterval);
+				return null;
+			}
+
+		}));
+	}
+
+	@Override
+	public int getCommitInterval() {
+		return statementExecutor.getCommitInterval();
+	}
+
+	@Override
+	public void setCommitRows(final long commitRows) throws SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				statementExecutor.setCommitRows(commitRows);
+				return null;
+			}
+
+		}));
+	}
+
+	@Override
+	public long getCommitRows() {
+		return statementExecutor.getCommitRows();
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				if (failure != null) {
+					throw new SQLException("Not committed after a previous failure", failure);
+				}
+				statementExecutor.commit();
+				return null;
+			}
+
+		}));
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws SQLException {
+				failure = null;
+				statementExecutor.rollback();
+				return null;
+			}
+
+		}));
+	}
+
+	@Override
+	public long getCommittedStatementCount() {
+		return statementExecutor.getCommittedStatementCount();
+	}
+
+	// Spooled after the statements already submitted.
+	@Override
+	public void spool(final File file, final boolean append, final char delimiter) throws IOException, SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				statementExecutor.spool(file, append, delimiter);
+				return null;
+			}
+
+		}));
+	}
+
+	@Override
+	public void spoolOff() throws IOException, SQLException {
+		await(executorService.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				statementExecutor.spoolOff();
+				return null;
+			}
+
+		}));
+	}
+
+	// Stop the thread once the submitted statements are executed.
+	public void close() {
+		executorService.shutdown();
+	}
+
+	// Wait for the future and rethrow its failure.
+	private static <T> T await(ListenableFuture<T> future) throws SQLException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the statement to be executed", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				SQLException sqlException = (SQLException) cause;
+				throw new SQLException(sqlException.getMessage(), sqlException.getSQLState(), sqlException.getErrorCode(), sqlException);
+			}
+			throw new SQLException(cause.getMessage(), cause);
+		}
+	}
+
+	public static AsyncJDBCStatementExecutor of(JDBCStatementExecutor statementExecutor) {
+		AsyncJDBCStatementExecutor asyncJDBCStatementExecutor = new AsyncJDBCStatementExecutor(statementExecutor);
+		return asyncJDBCStatementExecutor;
+	}
+
+}
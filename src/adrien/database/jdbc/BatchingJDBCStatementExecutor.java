@@ -0,0 +1,166 @@
+package adrien.database.jdbc;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.BatchStatementExecutor;
+import adrien.database.SpilledStatement;
+import adrien.database.StatementType;
+
+import com.google.common.collect.Lists;
+
+// Send the consecutive DML statements to the database in batches. Any other
+// statement (DDL, PL/SQL block, query...) flushes the pending batch before
+// being executed.
+public class BatchingJDBCStatementExecutor extends JDBCStatementExecutor implements BatchStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(BatchingJDBCStatementExecutor.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private int batchSize;
+
+	private List<String> batchedStatements = Lists.newArrayList();
+
+	private Statement batch;
+
+	protected BatchingJDBCStatementExecutor(Connection connection, int batchSize) {
+		super(connection);
+
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void setBatchSize(int batchSize) throws SQLException {
+		LOGGER.debug("Changing the batch size from {} to {}", this.batchSize, batchSize);
+		flush();
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		if (batchSize > 1 && StatementType.of(sql) == StatementType.DML) {
+			addBatch(sql);
+			if (batchedStatements.size() >= batchSize) {
+				flush();
+			}
+		} else {
+			flush();
+			super.executeStatement(sql);
+		}
+	}
+
+	@Override
+	public void executeStatement(SpilledStatement statement) throws SQLException {
+		flush();
+		super.executeStatement(statement);
+	}
+
+	protected void addBatch(String sql) throws SQLException {
+		if (batch == null) {
+			batch = getConnection().createStatement();
+		}
+
+		log(sql);
+
+		markPending();
+		batch.addBatch(sql);
+		batchedStatements.add(sql);
+		setLastRows(UNKNOWN, 0);
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		if (batchedStatements.isEmpty()) {
+			return;
+		}
+
+		LOGGER.debug("Executing a batch of {} statements", batchedStatements.size());
+		int statementCount = batchedStatements.size();
+		long rowsAffected = 0;
+		try {
+			for (int updateCount : batch.executeBatch()) {
+				rowsAffected += Math.max(0, updateCount);
+			}
+		} catch (BatchUpdateException e) {
+			SQLException failure = failedStatement(e);
+			rollbackQuietly();
+			throw failure;
+		} catch (SQLException e) {
+			rollbackQuietly();
+			throw e;
+		} finally {
+			clearBatch();
+		}
+		executed(statementCount, rowsAffected);
+	}
+
+	protected void clearBatch() {
+		batchedStatements.clear();
+		closeQuietly(batch);
+		batch = null;
+	}
+
+	// The pending batch is executed before committing.
+	@Override
+	public void commit() throws SQLException {
+		if (isCommitting()) {
+			flush();
+			super.commit();
+		}
+	}
+
+	// The pending batch is discarded.
+	@Override
+	public void rollback() throws SQLException {
+		clearBatch();
+		super.rollback();
+	}
+
+	// Find the statement at fault from the update counts: either the first one
+	// marked as failed, or the first one without update count when the driver
+	// stops at the first failure.
+	protected SQLException failedStatement(BatchUpdateException e) {
+		return failedStatement(e, batchedStatements);
+	}
+
+	protected static SQLException failedStatement(BatchUpdateException e, List<String> batchedStatements) {
+		int[] updateCounts = e.getUpdateCounts();
+		int index = updateCounts == null ? 0 : updateCounts.length;
+		for (int i = 0; updateCounts != null && i < updateCounts.length; i++) {
+			if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+				index = i;
+				break;
+			}
+		}
+
+		if (index >= batchedStatements.size()) {
+			return e;
+		}
+
+		String sql = batchedStatements.get(index);
+		String message = String.format("Statement %d of the batch failed (%s): %s", index + 1, e.getMessage(), sql);
+		return new SQLException(message, e.getSQLState(), e.getErrorCode(), e);
+	}
+
+	public static BatchingJDBCStatementExecutor forConnection(Connection connection) {
+		return forConnection(connection, DEFAULT_BATCH_SIZE);
+	}
+
+	public static BatchingJDBCStatementExecutor forConnection(Connection connection, int batchSize) {
+		BatchingJDBCStatementExecutor batchingJDBCStatementExecutor = new BatchingJDBCStatementExecutor(connection, batchSize);
+		return batchingJDBCStatementExecutor;
+	}
+
+}
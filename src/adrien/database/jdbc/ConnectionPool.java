@@ -0,0 +1,215 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A small pool of connections, at most the given number being open at the
+// same time. The connections are validated when they are borrowed, and the
+// ones which are no longer valid are replaced. Each connection keeps its
+// prepared statements while it is in the pool.
+public class ConnectionPool {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+	// In seconds.
+	public static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+	// In milliseconds.
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+	public static interface ConnectionFactory {
+
+		Connection newConnection() throws SQLException;
+
+	}
+
+	private ConnectionFactory connectionFactory;
+
+	private int maxSize;
+
+	private int statementCacheSize = StatementCache.DEFAULT_SIZE;
+
+	private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+	private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+	// One permit for each connection which can still be borrowed.
+	private Semaphore permits;
+
+	// The most recently used connections first.
+	private BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+
+	private volatile boolean closed = false;
+
+	public ConnectionPool(ConnectionFactory connectionFactory, int maxSize) {
+		super();
+
+		this.connectionFactory = connectionFactory;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public void setValidationTimeout(int validationTimeout) {
+		this.validationTimeout = validationTimeout;
+	}
+
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	public int getIdleCount() {
+		return idleConnections.size();
+	}
+
+	// Open connections in advance, so that the first callers do not wait. A
+	// permit is held while a connection is opened, and the borrowed connections
+	// count against the maximum size, which is never exceeded.
+	public synchronized void warmUp(int count) throws SQLException {
+		int openCount = 0;
+		while (!closed && idleConnections.size() < count && permits.tryAcquire()) {
+			try {
+				// The other permits taken are the borrowed connections.
+				if (idleConnections.size() > permits.availablePermits()) {
+					break;
+				}
+				idleConnections.offerLast(newPooledConnection());
+				openCount++;
+			} finally {
+				permits.release();
+			}
+		}
+		LOGGER.debug("Opened {} connections in advance", openCount);
+	}
+
+	// Wait for a connection if they are all borrowed.
+	public PooledConnection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("The connection pool is closed");
+		}
+
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("No connection available after " + borrowTimeout + " ms (" + maxSize + " connections at most)");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+
+		boolean borrowed = false;
+		try {
+			PooledConnection pooledConnection;
+			while ((pooledConnection = idleConnections.pollFirst()) != null) {
+				if (isValid(pooledConnection)) {
+					pooledConnection.markBorrowed();
+					borrowed = true;
+					return pooledConnection;
+				}
+				LOGGER.info("Replacing a connection which is no longer valid");
+				pooledConnection.closeQuietly();
+			}
+
+			pooledConnection = newPooledConnection();
+			pooledConnection.markBorrowed();
+			borrowed = true;
+			return pooledConnection;
+		} finally {
+			if (!borrowed) {
+				permits.release();
+			}
+		}
+	}
+
+	// The transaction left open is rolled back: the callers commit before
+	// giving the connection back.
+	protected void release(PooledConnection pooledConnection) {
+		try {
+			if (closed || !reset(pooledConnection.getConnection())) {
+				pooledConnection.closeQuietly();
+			} else {
+				idleConnections.offerFirst(pooledConnection);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	// Close the idle connections, and the borrowed ones once they are released.
+	public void close() {
+		closed = true;
+		PooledConnection pooledConnection;
+		while ((pooledConnection = idleConnections.pollFirst()) != null) {
+			pooledConnection.closeQuietly();
+		}
+	}
+
+	protected PooledConnection newPooledConnection() throws SQLException {
+		LOGGER.debug("Opening a connection");
+		return new PooledConnection(this, connectionFactory.newConnection(), statementCacheSize);
+	}
+
+	protected boolean isValid(PooledConnection pooledConnection) {
+		Connection connection = pooledConnection.getConnection();
+		try {
+			return !connection.isClosed() && connection.isValid(validationTimeout);
+		} catch (SQLException e) {
+			LOGGER.debug("Unable to validate the connection", e);
+			return false;
+		}
+	}
+
+	protected boolean reset(Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			return true;
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to reset the connection", e);
+			return false;
+		}
+	}
+
+	public static ConnectionPool forURL(final String url, final Properties properties, int maxSize) {
+		return new ConnectionPool(new ConnectionFactory() {
+
+			@Override
+			public Connection newConnection() throws SQLException {
+				return DriverManager.getConnection(url, properties);
+			}
+
+		}, maxSize);
+	}
+
+	public static ConnectionPool forDataSource(final DataSource dataSource, int maxSize) {
+		return new ConnectionPool(new ConnectionFactory() {
+
+			@Override
+			public Connection newConnection() throws SQLException {
+				return dataSource.getConnection();
+			}
+
+		}, maxSize);
+	}
+
+}
@@ -0,0 +1,51 @@
+package adrien.database.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Count the rows without reading any column.
+public class CountingResultSink implements ResultSink {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(CountingResultSink.class);
+
+	private long rowCount = 0;
+
+	private long totalRowCount = 0;
+
+	@Override
+	public boolean isReadingRows() {
+		return true;
+	}
+
+	@Override
+	public void start(String sql, ResultSetMetaData metaData) throws SQLException {
+		rowCount = 0;
+	}
+
+	@Override
+	public boolean row(ResultSet resultSet) throws SQLException {
+		rowCount++;
+		return true;
+	}
+
+	@Override
+	public void end() throws SQLException {
+		totalRowCount += rowCount;
+		LOGGER.debug("{} rows fetched", rowCount);
+	}
+
+	// Return the number of rows fetched by the last statement.
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	// Return the number of rows fetched by all the statements.
+	public long getTotalRowCount() {
+		return totalRowCount;
+	}
+
+}
@@ -0,0 +1,265 @@
+package adrien.database.jdbc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Write the rows to a file as delimited text (CSV by default), with a header
+// line per query. The values are quoted when they contain the delimiter, a
+// quote or a line break. The rows are encoded in UTF-8 in reused buffers and
+// written through a file channel, so the memory used does not depend on the
+// number of rows, and the integers are written without being converted to
+// strings.
+public class DelimitedResultSink implements ResultSink, Closeable {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(DelimitedResultSink.class);
+
+	public static final char DEFAULT_DELIMITER = ',';
+
+	final private static int CHAR_BUFFER_SIZE = 64 * 1024;
+
+	final private static int BYTE_BUFFER_SIZE = 1024 * 1024;
+
+	final private static char QUOTE = '"';
+
+	final private static String EOL = System.getProperty("line.separator");
+
+	private File file;
+
+	private FileChannel channel;
+
+	private char delimiter;
+
+	private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+	private ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+
+	// Whether the column is read as a long.
+	private boolean[] integerColumns = new boolean[0];
+
+	private long rowCount = 0;
+
+	protected DelimitedResultSink(File file, boolean append, char delimiter) throws IOException {
+		super();
+
+		this.file = file;
+		this.channel = new FileOutputStream(file, append).getChannel();
+		this.delimiter = delimiter;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public boolean isReadingRows() {
+		return true;
+	}
+
+	@Override
+	public void start(String sql, ResultSetMetaData metaData) throws SQLException {
+		int columnCount = metaData.getColumnCount();
+		integerColumns = new boolean[columnCount];
+		rowCount = 0;
+		try {
+			for (int i = 1; i <= columnCount; i++) {
+				if (i > 1) {
+					append(delimiter);
+				}
+				appendValue(metaData.getColumnLabel(i));
+				integerColumns[i - 1] = isInteger(metaData.getColumnType(i));
+			}
+			append(EOL);
+		} catch (IOException e) {
+			throw new SQLException("Unable to write to " + file, e);
+		}
+	}
+
+	@Override
+	public boolean row(ResultSet resultSet) throws SQLException {
+		try {
+			for (int i = 1; i <= integerColumns.length; i++) {
+				if (i > 1) {
+					append(delimiter);
+				}
+
+				if (integerColumns[i - 1]) {
+					long value = resultSet.getLong(i);
+					if (!resultSet.wasNull()) {
+						appendLong(value);
+					}
+				} else {
+					String value = resultSet.getString(i);
+					if (value != null) {
+						appendValue(value);
+					}
+				}
+			}
+			append(EOL);
+		} catch (IOException e) {
+			throw new SQLException("Unable to write to " + file, e);
+		}
+		rowCount++;
+		return true;
+	}
+
+	// Write what is buffered, so that the file is complete once the query is
+	// done.
+	@Override
+	public void end() throws SQLException {
+		try {
+			flush();
+		} catch (IOException e) {
+			throw new SQLException("Unable to write to " + file, e);
+		}
+		LOGGER.debug("{} rows written to {}", rowCount, file);
+	}
+
+	private static boolean isInteger(int columnType) {
+		switch (columnType) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	protected void appendValue(String value) throws IOException {
+		boolean quoted = false;
+		for (int i = 0; i < value.length() && !quoted; i++) {
+			char character = value.charAt(i);
+			quoted = character == delimiter || character == QUOTE || character == '\n' || character == '\r';
+		}
+
+		if (!quoted) {
+			append(value);
+			return;
+		}
+
+		append(QUOTE);
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) == QUOTE) {
+				append(value, start, i + 1);
+				start = i;
+			}
+		}
+		append(value, start, value.length());
+		append(QUOTE);
+	}
+
+	// Write the digits from the end of the free space of the buffer.
+	protected void appendLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			append(Long.toString(value));
+			return;
+		}
+
+		if (chars.remaining() < 20) {
+			encode();
+		}
+		char[] array = chars.array();
+		int end = chars.position() + 20;
+		int position = end;
+		long remaining = Math.abs(value);
+		do {
+			array[--position] = (char) ('0' + remaining % 10);
+			remaining /= 10;
+		} while (remaining > 0);
+		if (value < 0) {
+			array[--position] = '-';
+		}
+		System.arraycopy(array, position, array, chars.position(), end - position);
+		chars.position(chars.position() + end - position);
+	}
+
+	private void append(char character) throws IOException {
+		if (!chars.hasRemaining()) {
+			encode();
+		}
+		chars.put(character);
+	}
+
+	private void append(String text) throws IOException {
+		append(text, 0, text.length());
+	}
+
+	private void append(String text, int start, int end) throws IOException {
+		while (start < end) {
+			if (!chars.hasRemaining()) {
+				encode();
+			}
+			int count = Math.min(end - start, chars.remaining());
+			text.getChars(start, start + count, chars.array(), chars.position());
+			chars.position(chars.position() + count);
+			start += count;
+		}
+	}
+
+	// Encode the buffered characters, writing the bytes to the file whenever
+	// their buffer is full. A high surrogate at the end is kept for the next
+	// time.
+	private void encode() throws IOException {
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, false);
+			if (result.isOverflow()) {
+				write();
+			} else {
+				break;
+			}
+		}
+		chars.compact();
+	}
+
+	private void write() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+
+	public void flush() throws IOException {
+		encode();
+		write();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static DelimitedResultSink open(File file, boolean append) throws IOException {
+		return open(file, append, DEFAULT_DELIMITER);
+	}
+
+	public static DelimitedResultSink open(File file, boolean append, char delimiter) throws IOException {
+		return new DelimitedResultSink(file, append, delimiter);
+	}
+
+}
@@ -0,0 +1,184 @@
+package adrien.database.jdbc;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+// A single row INSERT ... VALUES (...) statement, split into its shape (the
+// statement with its literals replaced by parameters) and the values of the
+// literals. Only the numbers and the strings are replaced: a NULL stays in the
+// shape, and any other expression makes the statement unsupported.
+final class InsertShape {
+
+	private String prefix;
+
+	private String row;
+
+	private Object[] values;
+
+	private InsertShape(String prefix, String row, Object[] values) {
+		super();
+
+		this.prefix = prefix;
+		this.row = row;
+		this.values = values;
+	}
+
+	public boolean hasSameShape(InsertShape shape) {
+		return prefix.equals(shape.prefix) && row.equals(shape.row);
+	}
+
+	// The values are either strings or big decimals.
+	public Object[] getValues() {
+		return values;
+	}
+
+	public int getParameterCount() {
+		return values.length;
+	}
+
+	// Return the statement inserting the given number of rows.
+	public String getSQL(int rowCount) {
+		StringBuilder sql = new StringBuilder(prefix.length() + 8 + (row.length() + 2) * rowCount);
+		sql.append(prefix).append(" VALUES ");
+		for (int i = 0; i < rowCount; i++) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(row);
+		}
+		return sql.toString();
+	}
+
+	// Return the shape of the statement, or null if it is not supported.
+	public static InsertShape of(String sql) {
+		if (!sql.regionMatches(true, 0, "INSERT", 0, 6)) {
+			return null;
+		}
+
+		int valuesOffset = indexOfValues(sql);
+		if (valuesOffset < 0) {
+			return null;
+		}
+
+		int length = sql.length();
+		int offset = skipWhitespaces(sql, valuesOffset + 6);
+		if (offset >= length || sql.charAt(offset) != '(') {
+			return null;
+		}
+
+		List<String> row = Lists.newArrayList();
+		List<Object> values = Lists.newArrayList();
+		while (true) {
+			offset = skipWhitespaces(sql, offset + 1);
+			if (offset >= length) {
+				return null;
+			}
+
+			char character = sql.charAt(offset);
+			if (character == '\'') {
+				StringBuilder value = new StringBuilder();
+				offset = readString(sql, offset, value);
+				if (offset < 0) {
+					return null;
+				}
+				row.add("?");
+				values.add(value.toString());
+			} else if (sql.regionMatches(true, offset, "NULL", 0, 4) && !isIdentifierPart(sql, offset + 4)) {
+				offset += 4;
+				row.add("NULL");
+			} else if (Character.isDigit(character) || character == '-' || character == '+' || character == '.') {
+				int end = offset + 1;
+				while (end < length && isNumberPart(sql.charAt(end))) {
+					end++;
+				}
+				try {
+					values.add(new BigDecimal(sql.substring(offset, end)));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				offset = end;
+				row.add("?");
+			} else {
+				return null;
+			}
+
+			offset = skipWhitespaces(sql, offset);
+			if (offset >= length) {
+				return null;
+			} else if (sql.charAt(offset) == ')') {
+				break;
+			} else if (sql.charAt(offset) != ',') {
+				return null;
+			}
+		}
+
+		if (skipWhitespaces(sql, offset + 1) != length) {
+			return null;
+		}
+
+		String prefix = sql.substring(0, valuesOffset).trim();
+		return new InsertShape(prefix, "(" + Joiner.on(", ").join(row) + ")", values.toArray());
+	}
+
+	// Find the VALUES keyword, outside of the quoted strings and identifiers.
+	private static int indexOfValues(String sql) {
+		int length = sql.length();
+		char quote = 0;
+		for (int offset = 0; offset < length; offset++) {
+			char character = sql.charAt(offset);
+			if (quote != 0) {
+				if (character == quote) {
+					quote = 0;
+				}
+			} else if (character == '\'' || character == '"') {
+				quote = character;
+			} else if (sql.regionMatches(true, offset, "VALUES", 0, 6) && !isIdentifierPart(sql, offset - 1) && !isIdentifierPart(sql, offset + 6)) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	// Read the string starting at the offset, and return the offset following
+	// its closing quote (or -1 if there is none).
+	private static int readString(String sql, int offset, StringBuilder value) {
+		int length = sql.length();
+		for (int i = offset + 1; i < length; i++) {
+			char character = sql.charAt(i);
+			if (character == '\'') {
+				if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+					value.append('\'');
+					i++;
+				} else {
+					return i + 1;
+				}
+			} else {
+				value.append(character);
+			}
+		}
+		return -1;
+	}
+
+	private static int skipWhitespaces(String sql, int offset) {
+		while (offset < sql.length() && Character.isWhitespace(sql.charAt(offset))) {
+			offset++;
+		}
+		return offset;
+	}
+
+	private static boolean isIdentifierPart(String sql, int offset) {
+		if (offset < 0 || offset >= sql.length()) {
+			return false;
+		}
+		char character = sql.charAt(offset);
+		return Character.isLetterOrDigit(character) || character == '_' || character == '$' || character == '#';
+	}
+
+	private static boolean isNumberPart(char character) {
+		return Character.isDigit(character) || character == '.' || character == 'e' || character == 'E' || character == '-' || character == '+';
+	}
+
+}
@@ -1,21 +1,78 @@
 package adrien.database.jdbc;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import adrien.database.StatementExecutor;
+import adrien.database.CountingStatementExecutor;
+import adrien.database.SpilledStatement;
+import adrien.database.SpoolingStatementExecutor;
+import adrien.database.StatementType;
+import adrien.database.StreamingStatementExecutor;
+import adrien.database.TransactionalStatementExecutor;
+import adrien.database.audit.AuditLog;
+import adrien.database.jdbc.LargeLiterals.Literal;
 
-public class JDBCStatementExecutor implements StatementExecutor {
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+
+public class JDBCStatementExecutor implements CountingStatementExecutor, TransactionalStatementExecutor, StreamingStatementExecutor, SpoolingStatementExecutor {
 	
 	final private static Logger LOGGER = LoggerFactory.getLogger(JDBCStatementExecutor.class);
 	
+	// In characters, the string literals of the spilled DML statements which
+	// are larger are bound as streamed parameters.
+	public static final long DEFAULT_LITERAL_THRESHOLD = 64 * 1024;
+
+	// The fetch size of the queries spooled to a file, unless one is set.
+	public static final int DEFAULT_SPOOL_FETCH_SIZE = 10000;
+
+	final private static int HEAD_LENGTH = 256;
+
 	private Connection connection; 
+
+	private ResultSink resultSink = ResultSinks.log();
+
+	// Use the driver default when not strictly positive.
+	private int fetchSize = 0;
+
+	private long literalThreshold = DEFAULT_LITERAL_THRESHOLD;
+
+	private AuditLog auditLog;
+
+	private DelimitedResultSink spoolResultSink;
+
+	// The result sink to restore once the spooling stops.
+	private ResultSink spooledResultSink;
+
+	private long lastRowsAffected = UNKNOWN;
+
+	private long lastRowsFetched = UNKNOWN;
+
+	private int commitInterval = 0;
+
+	private long commitRows = 0;
+
+	private long statementsSinceCommit = 0;
+
+	private long rowsSinceCommit = 0;
+
+	private volatile long committedStatementCount = 0;
+
+	// Whether a statement has been sent since the last commit or rollback.
+	private boolean pending = false;
+
+	// The auto-commit mode to restore when the grouping is disabled.
+	private Boolean autoCommit;
 	
 	protected JDBCStatementExecutor(Connection connection) {
 		super();
@@ -30,35 +87,297 @@ public class JDBCStatementExecutor implements StatementExecutor {
 	public Connection getConnection() {
 		return connection; 
 	}
-	
+
+	public void setResultSink(ResultSink resultSink) {
+		this.resultSink = resultSink;
+	}
+
+	public ResultSink getResultSink() {
+		return resultSink;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	public void setLiteralThreshold(long literalThreshold) {
+		this.literalThreshold = literalThreshold;
+	}
+
+	public long getLiteralThreshold() {
+		return literalThreshold;
+	}
+
+	@Override
+	public void spool(File file, boolean append, char delimiter) throws IOException {
+		spoolOff();
+		LOGGER.debug("Spooling the rows to {}", file);
+		spoolResultSink = DelimitedResultSink.open(file, append, delimiter);
+		spooledResultSink = resultSink;
+		resultSink = spoolResultSink;
+	}
+
+	@Override
+	public void spoolOff() throws IOException {
+		if (spoolResultSink == null) {
+			return;
+		}
+
+		DelimitedResultSink delimitedResultSink = spoolResultSink;
+		resultSink = spooledResultSink;
+		spoolResultSink = null;
+		spooledResultSink = null;
+		delimitedResultSink.close();
+	}
+
+	// Record the statements in the audit log rather than logging them at the
+	// info level.
+	public void setAuditLog(AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	protected void log(String sql) {
+		if (auditLog == null) {
+			LOGGER.info(sql);
+		} else {
+			auditLog.record(sql);
+			LOGGER.debug(sql);
+		}
+	}
+
+	@Override
+	public long getLastRowsAffected() {
+		return lastRowsAffected;
+	}
+
+	@Override
+	public long getLastRowsFetched() {
+		return lastRowsFetched;
+	}
+
+	protected void setLastRows(long lastRowsAffected, long lastRowsFetched) {
+		this.lastRowsAffected = lastRowsAffected;
+		this.lastRowsFetched = lastRowsFetched;
+	}
+
+	@Override
+	public void setCommitInterval(int commitInterval) throws SQLException {
+		LOGGER.debug("Changing the commit interval from {} to {} statements", this.commitInterval, commitInterval);
+		commit();
+		this.commitInterval = commitInterval;
+		updateAutoCommit();
+	}
+
+	@Override
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	@Override
+	public void setCommitRows(long commitRows) throws SQLException {
+		LOGGER.debug("Changing the commit interval from {} to {} rows", this.commitRows, commitRows);
+		commit();
+		this.commitRows = commitRows;
+		updateAutoCommit();
+	}
+
+	@Override
+	public long getCommitRows() {
+		return commitRows;
+	}
+
+	// Whether the statements are grouped in transactions.
+	protected boolean isCommitting() {
+		return commitInterval > 0 || commitRows > 0;
+	}
+
+	// Turn the auto-commit off while the statements are grouped, and restore it
+	// afterwards.
+	protected void updateAutoCommit() throws SQLException {
+		Connection connection = getConnection();
+		if (isCommitting() && autoCommit == null) {
+			autoCommit = connection.getAutoCommit();
+			if (autoCommit) {
+				connection.setAutoCommit(false);
+			}
+		} else if (!isCommitting() && autoCommit != null) {
+			connection.setAutoCommit(autoCommit);
+			autoCommit = null;
+		}
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		if (isCommitting() && statementsSinceCommit > 0) {
+			LOGGER.debug("Committing {} statements ({} rows)", statementsSinceCommit, rowsSinceCommit);
+			getConnection().commit();
+			committedStatementCount += statementsSinceCommit;
+		}
+		statementsSinceCommit = 0;
+		rowsSinceCommit = 0;
+		pending = false;
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		if (isCommitting() && pending) {
+			LOGGER.warn("Rolling back {} statements to the last commit", statementsSinceCommit);
+			statementsSinceCommit = 0;
+			rowsSinceCommit = 0;
+			pending = false;
+			getConnection().rollback();
+		}
+	}
+
+	@Override
+	public long getCommittedStatementCount() {
+		return committedStatementCount;
+	}
+
+	protected void markPending() {
+		pending = true;
+	}
+
+	// Roll back after a failure, without hiding it.
+	protected void rollbackQuietly() {
+		try {
+			rollback();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to roll back", e);
+		}
+	}
+
+	// Count the statements executed since the last commit, and commit if the
+	// interval is reached.
+	protected void executed(long statementCount, long rowsAffected) throws SQLException {
+		if (!isCommitting()) {
+			committedStatementCount += statementCount;
+			return;
+		}
+
+		statementsSinceCommit += statementCount;
+		rowsSinceCommit += Math.max(0, rowsAffected);
+		if ((commitInterval > 0 && statementsSinceCommit >= commitInterval) || (commitRows > 0 && rowsSinceCommit >= commitRows)) {
+			commit();
+		}
+	}
+
+	// The DDL statements commit implicitly on most databases, so the current
+	// transaction is committed before.
 	@Override
 	public void executeStatement(String sql) throws SQLException {
+		if (isCommitting() && StatementType.of(sql) == StatementType.DDL) {
+			commit();
+		}
+
+		try {
+			markPending();
+			execute(sql);
+		} catch (SQLException e) {
+			rollbackQuietly();
+			throw e;
+		}
+		executed(1, getLastRowsAffected());
+	}
+
+	// The large string literals of a DML statement are streamed from the file,
+	// and only the rest of the statement is read in memory. The other
+	// statements are read in memory.
+	@Override
+	public void executeStatement(SpilledStatement statement) throws SQLException {
+		try {
+			String head = statement.getHead(HEAD_LENGTH);
+			StatementType statementType = StatementType.of(head);
+			if (isCommitting() && statementType == StatementType.DDL) {
+				commit();
+			}
+
+			try {
+				markPending();
+				List<Literal> literals = statementType == StatementType.DML ? LargeLiterals.find(statement, literalThreshold) : null;
+				if (literals == null || literals.isEmpty()) {
+					execute(statement.read());
+				} else {
+					// Only the head of the statement is logged, the rest can be
+					// checked against the length and the SHA-256 of its
+					// characters (Hashing.sha256().hashUnencodedChars(sql)).
+					log(head + "... (" + statement.length() + " characters, " + literals.size() + " literals streamed, SHA-256 " + statement.hash(Hashing.sha256()) + ")");
+					execute(statement, literals);
+				}
+			} catch (SQLException e) {
+				rollbackQuietly();
+				throw e;
+			}
+		} catch (IOException e) {
+			rollbackQuietly();
+			throw new SQLException("Unable to read the statement from " + statement.getFile(), e);
+		}
+		executed(1, getLastRowsAffected());
+	}
+
+	protected void execute(SpilledStatement statement, List<Literal> literals) throws IOException, SQLException {
+		StringBuilder sql = new StringBuilder();
+		long offset = 0;
+		for (Literal literal : literals) {
+			// The literal and its quotes are replaced with a parameter.
+			append(sql, statement, offset, literal.offset - 1 - offset);
+			sql.append('?');
+			offset = literal.offset + literal.length + 1;
+		}
+		append(sql, statement, offset, statement.length() - offset);
+
+		PreparedStatement preparedStatement = getConnection().prepareStatement(sql.toString());
+		try {
+			int index = 0;
+			for (Literal literal : literals) {
+				preparedStatement.setCharacterStream(++index, LargeLiterals.open(statement, literal), literal.unescapedLength);
+			}
+			setLastRows(UNKNOWN, UNKNOWN);
+			setLastRows(preparedStatement.executeUpdate(), 0);
+		} finally {
+			closeQuietly(preparedStatement);
+		}
+	}
+
+	private static void append(StringBuilder sql, SpilledStatement statement, long offset, long length) throws IOException {
+		Reader reader = statement.openReader(offset, length);
+		try {
+			CharStreams.copy(reader, sql);
+		} finally {
+			reader.close();
+		}
+	}
+
+	protected void execute(String sql) throws SQLException {
 		Statement statement = null;
         ResultSet resultSet = null;
         Connection connection = getConnection();
         try {
             statement = connection.createStatement();
+            int fetchSize = this.fetchSize <= 0 && spoolResultSink != null ? DEFAULT_SPOOL_FETCH_SIZE : this.fetchSize;
+            if (fetchSize > 0) {
+                statement.setFetchSize(fetchSize);
+            }
 
-            LOGGER.info(sql);
+            log(sql);
 
+            setLastRows(UNKNOWN, UNKNOWN);
             boolean results = statement.execute(sql);
 
             resultSet = statement.getResultSet();
 
             if (results && resultSet != null) {
-                ResultSetMetaData metaData = resultSet.getMetaData();
-                int columnCount = metaData.getColumnCount();
-                for (int i = 1; i <= columnCount; i++) {
-                    String columnName = metaData.getColumnName(i);
-                    LOGGER.debug(columnName + "\t");
-                }
-                
-                while (resultSet.next()) {
-                    for (int i = 1; i <= columnCount; i++) {
-                        String value = resultSet.getString(i);
-                        LOGGER.debug(value + "\t");
-                    }
-                }
+                setLastRows(UNKNOWN, sink(sql, resultSet));
+            } else {
+                setLastRows(statement.getUpdateCount(), 0);
             }
 
         } finally {
@@ -66,12 +385,31 @@ public class JDBCStatementExecutor implements StatementExecutor {
         }
     }
 
-    private void closeQuietly(Statement statement, ResultSet resultSet) {
+    // Hand the rows over to the result sink and return how many were fetched.
+    protected long sink(String sql, ResultSet resultSet) throws SQLException {
+        ResultSink resultSink = getResultSink();
+        if (!resultSink.isReadingRows()) {
+            return 0;
+        }
+
+        long rowCount = 0;
+        resultSink.start(sql, resultSet.getMetaData());
+        while (resultSet.next()) {
+            rowCount++;
+            if (!resultSink.row(resultSet)) {
+                break;
+            }
+        }
+        resultSink.end();
+        return rowCount;
+    }
+
+    protected void closeQuietly(Statement statement, ResultSet resultSet) {
         closeQuietly(resultSet);
         closeQuietly(statement);
     }
 		
-    private void closeQuietly(Statement statement) {
+    protected void closeQuietly(Statement statement) {
 		if (statement != null) {
             try {
                 statement.close();
@@ -81,7 +419,7 @@ public class JDBCStatementExecutor implements StatementExecutor {
         }
 	}
     
-    private void closeQuietly(ResultSet resultSet) {
+    protected void closeQuietly(ResultSet resultSet) {
 		if (resultSet != null) {
             try {
                 resultSet.close();
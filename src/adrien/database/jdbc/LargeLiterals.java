@@ -0,0 +1,175 @@
+package adrien.database.jdbc;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+import adrien.database.SpilledStatement;
+
+import com.google.common.collect.Lists;
+
+// Find the string literals of a spilled statement which are large enough to
+// be bound as streamed parameters rather than sent in the statement text.
+final class LargeLiterals {
+
+	final private static int BUFFER_SIZE = 64 * 1024;
+
+	// The offset and the length of a literal, without its quotes, and its length
+	// once the doubled quotes are unescaped.
+	static class Literal {
+
+		final long offset;
+
+		final long length;
+
+		final long unescapedLength;
+
+		Literal(long offset, long length, long unescapedLength) {
+			this.offset = offset;
+			this.length = length;
+			this.unescapedLength = unescapedLength;
+		}
+
+	}
+
+	private static enum State {
+
+		CODE, LINE_COMMENT, BLOCK_COMMENT, QUOTED_IDENTIFIER, LITERAL
+
+	}
+
+	private LargeLiterals() {
+	}
+
+	// The comments and the quoted identifiers are skipped, as in
+	// StatementType.skipComments. The literals preceded by a letter or a digit
+	// (N'...', X'...') are left in the statement.
+	static List<Literal> find(SpilledStatement statement, long threshold) throws IOException {
+		List<Literal> literals = Lists.newArrayList();
+		Reader reader = statement.openReader();
+		try {
+			char[] chars = new char[BUFFER_SIZE];
+			State state = State.CODE;
+			long offset = 0;
+			long start = -1;
+			long quoteCount = 0;
+			char previous = 0;
+			boolean prefixed = false;
+			boolean quotePending = false;
+			int count;
+			while ((count = reader.read(chars)) >= 0) {
+				for (int i = 0; i < count; i++, offset++) {
+					char character = chars[i];
+					if (state == State.LITERAL) {
+						if (!quotePending) {
+							quotePending = character == '\'';
+							previous = character;
+							continue;
+						}
+
+						quotePending = false;
+						if (character == '\'') {
+							quoteCount++;
+							previous = character;
+							continue;
+						}
+
+						// The literal is over, and the character is code.
+						add(literals, start, offset - 1, quoteCount, prefixed, threshold);
+						state = State.CODE;
+					}
+
+					if (state == State.CODE) {
+						if (character == '\'') {
+							state = State.LITERAL;
+							start = offset + 1;
+							quoteCount = 0;
+							prefixed = Character.isLetterOrDigit(previous);
+						} else if (character == '"') {
+							state = State.QUOTED_IDENTIFIER;
+						} else if (character == '-' && previous == '-') {
+							state = State.LINE_COMMENT;
+						} else if (character == '*' && previous == '/') {
+							state = State.BLOCK_COMMENT;
+							// So that /*/ does not end the comment.
+							character = ' ';
+						}
+					} else if (state == State.LINE_COMMENT) {
+						if (character == '\n') {
+							state = State.CODE;
+						}
+					} else if (state == State.BLOCK_COMMENT) {
+						if (character == '/' && previous == '*') {
+							state = State.CODE;
+							// So that */* does not start another one.
+							character = ' ';
+						}
+					} else if (character == '"') {
+						state = State.CODE;
+					}
+					previous = character;
+				}
+			}
+
+			if (state == State.LITERAL && quotePending) {
+				add(literals, start, offset - 1, quoteCount, prefixed, threshold);
+			}
+		} finally {
+			reader.close();
+		}
+		return literals;
+	}
+
+	private static void add(List<Literal> literals, long start, long end, long quoteCount, boolean prefixed, long threshold) {
+		long length = end - start;
+		if (!prefixed && length >= threshold) {
+			literals.add(new Literal(start, length, length - quoteCount));
+		}
+	}
+
+	// Read the literal, with its doubled quotes unescaped.
+	static Reader open(SpilledStatement statement, Literal literal) throws IOException {
+		return new FilterReader(statement.openReader(literal.offset, literal.length)) {
+
+			private boolean quote = false;
+
+			@Override
+			public int read() throws IOException {
+				char[] chars = new char[1];
+				return read(chars, 0, 1) < 0 ? -1 : chars[0];
+			}
+
+			@Override
+			public int read(char[] chars, int offset, int length) throws IOException {
+				while (true) {
+					int count = super.read(chars, offset, length);
+					if (count < 0) {
+						return count;
+					}
+
+					int unescapedCount = 0;
+					for (int i = offset; i < offset + count; i++) {
+						char character = chars[i];
+						if (character == '\'' && quote) {
+							quote = false;
+							continue;
+						}
+						quote = character == '\'';
+						chars[offset + unescapedCount++] = character;
+					}
+					if (unescapedCount > 0) {
+						return unescapedCount;
+					}
+				}
+			}
+
+			@Override
+			public long skip(long count) throws IOException {
+				throw new IOException("Skipping is not supported");
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,175 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.TableLinks;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+// Find the tables and the foreign keys from the metadata of a side connection,
+// and the triggers from the information schema (or the Oracle dictionary). If
+// the triggers can not be listed, every table is taken as having some. A name
+// is a table only if nothing else (a view, a synonym, a system table) has it
+// in any schema.
+//
+// The connection is only used by the caller, and the answers are kept.
+public class MetadataTableLinks implements TableLinks {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(MetadataTableLinks.class);
+
+	final private static String[] TRIGGER_QUERIES = new String[] {
+		"SELECT event_object_table FROM information_schema.triggers",
+		"SELECT table_name FROM information_schema.triggers",
+		"SELECT table_name FROM user_triggers"
+	};
+
+	// H2 names the tables BASE TABLE.
+	final private static Set<String> TABLE_TYPES = ImmutableSet.of("TABLE", "BASE TABLE");
+
+	private Connection connection;
+
+	// Null until they are listed.
+	private Set<String> tables;
+
+	private Map<String, Set<String>> linkedTables = Maps.newHashMap();
+
+	// Null until they are listed, absent if they can not be.
+	private Optional<Set<String>> triggeredTables;
+
+	protected MetadataTableLinks(Connection connection) {
+		super();
+
+		this.connection = connection;
+	}
+
+	@Override
+	public boolean isTable(String name) throws SQLException {
+		if (tables == null) {
+			tables = findTables();
+		}
+		return tables.contains(name);
+	}
+
+	protected Set<String> findTables() throws SQLException {
+		Set<String> tables = Sets.newHashSet();
+		Set<String> others = Sets.newHashSet();
+		ResultSet resultSet = connection.getMetaData().getTables(null, null, "%", null);
+		try {
+			while (resultSet.next()) {
+				String name = resultSet.getString("TABLE_NAME").toLowerCase();
+				if (TABLE_TYPES.contains(resultSet.getString("TABLE_TYPE"))) {
+					tables.add(name);
+				} else {
+					others.add(name);
+				}
+			}
+		} finally {
+			resultSet.close();
+		}
+		tables.removeAll(others);
+		LOGGER.debug("{} tables", tables.size());
+		return tables;
+	}
+
+	@Override
+	public Set<String> getLinkedTables(String table) throws SQLException {
+		Set<String> tables = linkedTables.get(table);
+		if (tables == null) {
+			tables = findLinkedTables(table);
+			linkedTables.put(table, tables);
+		}
+		return tables;
+	}
+
+	// Walk the foreign keys both ways, from the referencing tables to the
+	// referenced ones and back.
+	protected Set<String> findLinkedTables(String table) throws SQLException {
+		DatabaseMetaData metaData = connection.getMetaData();
+		Set<String> tables = Sets.newLinkedHashSet();
+		Deque<String> pendingTables = Queues.newArrayDeque();
+		pendingTables.add(table);
+		tables.add(table);
+		while (!pendingTables.isEmpty()) {
+			String pendingTable = toIdentifier(metaData, pendingTables.removeFirst());
+			addTables(metaData.getImportedKeys(null, null, pendingTable), "PKTABLE_NAME", tables, pendingTables);
+			addTables(metaData.getExportedKeys(null, null, pendingTable), "FKTABLE_NAME", tables, pendingTables);
+		}
+		tables.remove(table);
+		return ImmutableSet.copyOf(tables);
+	}
+
+	private static void addTables(ResultSet resultSet, String column, Set<String> tables, Deque<String> pendingTables) throws SQLException {
+		try {
+			while (resultSet.next()) {
+				String table = resultSet.getString(column).toLowerCase();
+				if (tables.add(table)) {
+					pendingTables.add(table);
+				}
+			}
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	// Write the name as the database stores the unquoted ones.
+	private static String toIdentifier(DatabaseMetaData metaData, String table) throws SQLException {
+		if (metaData.storesUpperCaseIdentifiers()) {
+			return table.toUpperCase();
+		} else if (metaData.storesLowerCaseIdentifiers()) {
+			return table.toLowerCase();
+		}
+		return table;
+	}
+
+	@Override
+	public boolean hasTriggers(String table) throws SQLException {
+		if (triggeredTables == null) {
+			triggeredTables = findTriggeredTables();
+		}
+		return !triggeredTables.isPresent() || triggeredTables.get().contains(table);
+	}
+
+	protected Optional<Set<String>> findTriggeredTables() throws SQLException {
+		for (String query : TRIGGER_QUERIES) {
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet resultSet = statement.executeQuery(query);
+				Set<String> tables = Sets.newHashSet();
+				while (resultSet.next()) {
+					tables.add(resultSet.getString(1).toLowerCase());
+				}
+				LOGGER.debug("Tables with triggers: {}", tables);
+				return Optional.<Set<String>> of(tables);
+			} catch (SQLException e) {
+				LOGGER.debug("Unable to list the triggers with {}", query, e);
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		LOGGER.warn("Unable to list the triggers, every table is taken as having some");
+		return Optional.absent();
+	}
+
+	public static MetadataTableLinks forConnection(Connection connection) {
+		MetadataTableLinks metadataTableLinks = new MetadataTableLinks(connection);
+		return metadataTableLinks;
+	}
+
+}
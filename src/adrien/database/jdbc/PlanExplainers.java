@@ -0,0 +1,103 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import adrien.database.PlanExplainer;
+import adrien.database.StatementType;
+
+// Explain the queries and the DML statements on a side connection, so that the
+// connection running the script is left alone. The plans of the other
+// statements are not explained.
+public class PlanExplainers {
+
+	private PlanExplainers() {
+	}
+
+	// Choose the syntax from the name of the database, or return null if it is
+	// not known.
+	public static PlanExplainer forConnection(Connection connection) throws SQLException {
+		String productName = connection.getMetaData().getDatabaseProductName().toLowerCase();
+		if (productName.contains("oracle")) {
+			return oracle(connection);
+		} else if (productName.contains("postgres") || productName.contains("mysql") || productName.contains("mariadb") || productName.contains("h2")) {
+			return prefix(connection, "EXPLAIN ");
+		} else if (productName.contains("hsql")) {
+			return prefix(connection, "EXPLAIN PLAN FOR ");
+		} else if (productName.contains("sqlite")) {
+			return prefix(connection, "EXPLAIN QUERY PLAN ");
+		}
+		return null;
+	}
+
+	// Run the statement prefixed, and return the rows of the result, one per
+	// line with tabulations between the columns.
+	public static PlanExplainer prefix(final Connection connection, final String prefix) {
+		return new PlanExplainer() {
+
+			@Override
+			public String explain(String sql) throws SQLException {
+				if (!isExplainable(sql)) {
+					return null;
+				}
+				return query(connection, prefix + sql);
+			}
+
+		};
+	}
+
+	// Write the plan in the plan table, and read it back with DBMS_XPLAN.
+	public static PlanExplainer oracle(final Connection connection) {
+		return new PlanExplainer() {
+
+			@Override
+			public String explain(String sql) throws SQLException {
+				if (!isExplainable(sql)) {
+					return null;
+				}
+
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("EXPLAIN PLAN FOR " + sql);
+				} finally {
+					statement.close();
+				}
+				return query(connection, "SELECT plan_table_output FROM TABLE(DBMS_XPLAN.DISPLAY())");
+			}
+
+		};
+	}
+
+	private static boolean isExplainable(String sql) {
+		StatementType statementType = StatementType.of(sql);
+		return statementType == StatementType.QUERY || statementType == StatementType.DML;
+	}
+
+	private static String query(Connection connection, String sql) throws SQLException {
+		StringBuilder plan = new StringBuilder();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(sql);
+			try {
+				int columnCount = resultSet.getMetaData().getColumnCount();
+				while (resultSet.next()) {
+					for (int i = 1; i <= columnCount; i++) {
+						if (i > 1) {
+							plan.append('\t');
+						}
+						plan.append(resultSet.getString(i));
+					}
+					plan.append('\n');
+				}
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+		return plan.toString();
+	}
+
+}
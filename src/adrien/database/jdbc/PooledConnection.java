@@ -0,0 +1,61 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A connection borrowed from a pool, with its prepared statements. Closing it
+// gives it back to the pool.
+public class PooledConnection {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(PooledConnection.class);
+
+	private ConnectionPool connectionPool;
+
+	private Connection connection;
+
+	private StatementCache statementCache;
+
+	private boolean borrowed = false;
+
+	protected PooledConnection(ConnectionPool connectionPool, Connection connection, int statementCacheSize) {
+		super();
+
+		this.connectionPool = connectionPool;
+		this.connection = connection;
+		this.statementCache = new StatementCache(connection, statementCacheSize);
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public StatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	// Closing it again does nothing.
+	public synchronized void close() {
+		if (borrowed) {
+			borrowed = false;
+			connectionPool.release(this);
+		}
+	}
+
+	protected synchronized void markBorrowed() {
+		borrowed = true;
+	}
+
+	// Close the connection itself, when it is removed from the pool.
+	protected void closeQuietly() {
+		statementCache.clear();
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to close connection", e);
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import adrien.database.StatementExecutor;
+import adrien.database.StatementExecutorFactory;
+
+import com.google.common.collect.Maps;
+
+// Create the statement executors on connections borrowed from a pool, which
+// go back to the pool with their prepared statements once the executors are
+// released. The INSERT statements are sent through prepared statements only
+// when asked (see PreparingJDBCStatementExecutor), the others being batched.
+public class PooledStatementExecutorFactory implements StatementExecutorFactory {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(PooledStatementExecutorFactory.class);
+
+	private ConnectionPool connectionPool;
+
+	private int batchSize;
+
+	private boolean preparingInserts = false;
+
+	private Map<StatementExecutor, PooledConnection> pooledConnections = Maps.newConcurrentMap();
+
+	protected PooledStatementExecutorFactory(ConnectionPool connectionPool, int batchSize) {
+		super();
+
+		this.connectionPool = connectionPool;
+		this.batchSize = batchSize;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	public void setPreparingInserts(boolean preparingInserts) {
+		this.preparingInserts = preparingInserts;
+	}
+
+	public boolean isPreparingInserts() {
+		return preparingInserts;
+	}
+
+	@Override
+	public StatementExecutor newStatementExecutor() throws SQLException {
+		PooledConnection pooledConnection = connectionPool.borrow();
+		StatementExecutor statementExecutor;
+		if (preparingInserts) {
+			statementExecutor = PreparingJDBCStatementExecutor.forConnection(pooledConnection.getConnection(), batchSize, pooledConnection.getStatementCache());
+		} else {
+			statementExecutor = BatchingJDBCStatementExecutor.forConnection(pooledConnection.getConnection(), batchSize);
+		}
+		pooledConnections.put(statementExecutor, pooledConnection);
+		return statementExecutor;
+	}
+
+	// The connection is committed even if the statement executor does not
+	// group the statements, since it may not be in auto-commit. The pool rolls
+	// back what is left, so a failure to commit is thrown.
+	@Override
+	public void release(StatementExecutor statementExecutor, boolean succeeded) throws SQLException {
+		PooledConnection pooledConnection = pooledConnections.remove(statementExecutor);
+		if (pooledConnection == null) {
+			throw new IllegalArgumentException("The statement executor does not come from this factory");
+		}
+
+		BatchingJDBCStatementExecutor batchingJDBCStatementExecutor = (BatchingJDBCStatementExecutor) statementExecutor;
+		try {
+			if (succeeded) {
+				batchingJDBCStatementExecutor.flush();
+				batchingJDBCStatementExecutor.commit();
+				Connection connection = pooledConnection.getConnection();
+				if (!connection.getAutoCommit()) {
+					connection.commit();
+				}
+			} else {
+				rollbackQuietly(batchingJDBCStatementExecutor);
+			}
+		} finally {
+			pooledConnection.close();
+		}
+	}
+
+	// The script has failed already.
+	private static void rollbackQuietly(BatchingJDBCStatementExecutor batchingJDBCStatementExecutor) {
+		try {
+			batchingJDBCStatementExecutor.rollback();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to roll back", e);
+		}
+	}
+
+	public static PooledStatementExecutorFactory of(ConnectionPool connectionPool) {
+		return of(connectionPool, BatchingJDBCStatementExecutor.DEFAULT_BATCH_SIZE);
+	}
+
+	public static PooledStatementExecutorFactory of(ConnectionPool connectionPool, int batchSize) {
+		PooledStatementExecutorFactory pooledStatementExecutorFactory = new PooledStatementExecutorFactory(connectionPool, batchSize);
+		return pooledStatementExecutorFactory;
+	}
+
+}
@@ -0,0 +1,283 @@
+package adrien.database.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+// Send the runs of INSERT statements with the same shape (which only differ by
+// their literals) through prepared statements, with the literals bound as
+// parameters, so that the database parses the statement once. The prepared
+// statements are kept in the LRU cache of the connection. When the
+// database supports it, the rows can rather be coalesced in multi-row VALUES.
+// The other statements are batched as before.
+//
+// The literals are bound with the types of their columns, as given by the
+// parameter metadata of the driver; when it does not give them, they are bound
+// as strings and numbers, which the database has to convert.
+public class PreparingJDBCStatementExecutor extends BatchingJDBCStatementExecutor {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(PreparingJDBCStatementExecutor.class);
+
+	// Below the limit of the usual drivers.
+	public static final int DEFAULT_MAX_PARAMETERS = 1000;
+
+	private StatementCache statementCache;
+
+	private boolean multiRowValues = false;
+
+	private int maxParameters = DEFAULT_MAX_PARAMETERS;
+
+	// The run of INSERT statements waiting to be executed, all of the same shape.
+	private InsertShape runShape;
+
+	private List<Object[]> runValues = Lists.newArrayList();
+
+	private List<String> runStatements = Lists.newArrayList();
+
+	// The types of the parameters of the last statement bound (null when the
+	// driver does not give them).
+	private PreparedStatement typedStatement;
+
+	private int[] parameterTypes;
+
+	protected PreparingJDBCStatementExecutor(Connection connection, int batchSize, StatementCache statementCache) {
+		super(connection, batchSize);
+
+		this.statementCache = statementCache;
+	}
+
+	public StatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	// Insert the rows of a run with multi-row VALUES rather than with a batch.
+	public void setMultiRowValues(boolean multiRowValues) throws SQLException {
+		flush();
+		this.multiRowValues = multiRowValues;
+	}
+
+	public boolean isMultiRowValues() {
+		return multiRowValues;
+	}
+
+	// The maximum number of parameters of a multi-row INSERT statement.
+	public void setMaxParameters(int maxParameters) {
+		this.maxParameters = maxParameters;
+	}
+
+	public int getMaxParameters() {
+		return maxParameters;
+	}
+
+	@Override
+	public void executeStatement(String sql) throws SQLException {
+		InsertShape shape = InsertShape.of(sql);
+		if (shape == null) {
+			flushRun();
+			super.executeStatement(sql);
+			return;
+		}
+
+		if (runShape == null || !runShape.hasSameShape(shape)) {
+			flush();
+			runShape = shape;
+		}
+
+		log(sql);
+
+		markPending();
+		runValues.add(shape.getValues());
+		runStatements.add(sql);
+		setLastRows(UNKNOWN, 0);
+		if (runValues.size() >= Math.max(1, getBatchSize())) {
+			flushRun();
+		}
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		flushRun();
+		super.flush();
+	}
+
+	protected void flushRun() throws SQLException {
+		if (runValues.isEmpty()) {
+			return;
+		}
+
+		LOGGER.debug("Inserting a run of {} rows", runValues.size());
+		int statementCount = runValues.size();
+		long rowsAffected;
+		try {
+			rowsAffected = multiRowValues ? executeMultiRowValues() : executePrepared();
+		} catch (SQLException e) {
+			rollbackQuietly();
+			throw e;
+		} finally {
+			clearRun();
+		}
+		executed(statementCount, rowsAffected);
+	}
+
+	protected long executePrepared() throws SQLException {
+		PreparedStatement preparedStatement = prepare(runShape.getSQL(1));
+		try {
+			for (Object[] values : runValues) {
+				bind(preparedStatement, values, 0);
+				preparedStatement.addBatch();
+			}
+
+			long rowsAffected = 0;
+			for (int updateCount : preparedStatement.executeBatch()) {
+				rowsAffected += Math.max(0, updateCount);
+			}
+			return rowsAffected;
+		} catch (BatchUpdateException e) {
+			throw failedStatement(e, runStatements);
+		} finally {
+			preparedStatement.clearBatch();
+		}
+	}
+
+	protected long executeMultiRowValues() throws SQLException {
+		int statementCount = runValues.size();
+		int rowsPerStatement = Math.max(1, Math.min(Math.max(1, getBatchSize()), maxParameters / Math.max(1, runShape.getParameterCount())));
+		long rowsAffected = 0;
+		for (int offset = 0; offset < statementCount; offset += rowsPerStatement) {
+			int rowCount = Math.min(rowsPerStatement, statementCount - offset);
+			PreparedStatement preparedStatement = prepare(runShape.getSQL(rowCount));
+			int index = 0;
+			for (int i = offset; i < offset + rowCount; i++) {
+				index = bind(preparedStatement, runValues.get(i), index);
+			}
+
+			try {
+				rowsAffected += Math.max(0, preparedStatement.executeUpdate());
+			} catch (SQLException e) {
+				String message = String.format("One of the statements %d to %d of the batch failed (%s): %s", offset + 1, offset + rowCount, e.getMessage(), runStatements.get(offset));
+				throw new SQLException(message, e.getSQLState(), e.getErrorCode(), e);
+			}
+		}
+		return rowsAffected;
+	}
+
+	protected PreparedStatement prepare(String sql) throws SQLException {
+		return statementCache.prepare(sql);
+	}
+
+	// Bind the values after the given parameter index, and return the index of
+	// the last one.
+	protected int bind(PreparedStatement preparedStatement, Object[] values, int index) throws SQLException {
+		int[] types = getParameterTypes(preparedStatement);
+		for (Object value : values) {
+			index++;
+			bind(preparedStatement, index, value, types != null && index <= types.length ? types[index - 1] : Types.NULL);
+		}
+		return index;
+	}
+
+	// Bind the value as the type of its column (Types.NULL when it is not
+	// known). A string is converted by the driver, which parses a date or a
+	// timestamp in the JDBC escape format (and the types it does not know, as
+	// Types.OTHER, are left to the database).
+	protected void bind(PreparedStatement preparedStatement, int index, Object value, int type) throws SQLException {
+		if (type == Types.NULL) {
+			if (value instanceof BigDecimal) {
+				preparedStatement.setBigDecimal(index, (BigDecimal) value);
+			} else {
+				preparedStatement.setString(index, (String) value);
+			}
+		} else if (isCharacterType(type)) {
+			preparedStatement.setString(index, value.toString());
+		} else {
+			preparedStatement.setObject(index, value, type);
+		}
+	}
+
+	protected static boolean isCharacterType(int type) {
+		switch (type) {
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+		case Types.NCLOB:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Ask the driver once for the statement of the run, which is the same from
+	// one row to the next.
+	protected int[] getParameterTypes(PreparedStatement preparedStatement) {
+		if (preparedStatement != typedStatement) {
+			typedStatement = preparedStatement;
+			parameterTypes = null;
+			try {
+				ParameterMetaData parameterMetaData = preparedStatement.getParameterMetaData();
+				if (parameterMetaData != null) {
+					int[] types = new int[parameterMetaData.getParameterCount()];
+					for (int i = 0; i < types.length; i++) {
+						types[i] = parameterMetaData.getParameterType(i + 1);
+					}
+					parameterTypes = types;
+				}
+			} catch (SQLException e) {
+				LOGGER.debug("Unable to get the types of the parameters, binding them as strings and numbers", e);
+			}
+		}
+		return parameterTypes;
+	}
+
+	protected void clearRun() {
+		runShape = null;
+		runValues.clear();
+		runStatements.clear();
+	}
+
+	// The pending run is discarded.
+	@Override
+	protected void clearBatch() {
+		clearRun();
+		super.clearBatch();
+	}
+
+	// Close the prepared statements, once the executor is not used anymore
+	// (unless the cache is shared with other executors of the connection).
+	public void close() {
+		typedStatement = null;
+		parameterTypes = null;
+		statementCache.clear();
+	}
+
+	public static PreparingJDBCStatementExecutor forConnection(Connection connection) {
+		return forConnection(connection, DEFAULT_BATCH_SIZE);
+	}
+
+	public static PreparingJDBCStatementExecutor forConnection(Connection connection, int batchSize) {
+		return forConnection(connection, batchSize, new StatementCache(connection));
+	}
+
+	public static PreparingJDBCStatementExecutor forConnection(Connection connection, int batchSize, int cacheSize) {
+		return forConnection(connection, batchSize, new StatementCache(connection, cacheSize));
+	}
+
+	public static PreparingJDBCStatementExecutor forConnection(Connection connection, int batchSize, StatementCache statementCache) {
+		PreparingJDBCStatementExecutor preparingJDBCStatementExecutor = new PreparingJDBCStatementExecutor(connection, batchSize, statementCache);
+		return preparingJDBCStatementExecutor;
+	}
+
+}
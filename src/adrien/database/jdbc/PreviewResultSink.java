@@ -0,0 +1,69 @@
+package adrien.database.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+// Keep the first rows of the last statement and stop reading after them.
+public class PreviewResultSink implements ResultSink {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(PreviewResultSink.class);
+
+	private int maxRows;
+
+	private List<String> columnNames = Lists.newArrayList();
+
+	private List<Object[]> rows = Lists.newArrayList();
+
+	public PreviewResultSink(int maxRows) {
+		super();
+
+		this.maxRows = maxRows;
+	}
+
+	@Override
+	public boolean isReadingRows() {
+		return maxRows > 0;
+	}
+
+	@Override
+	public void start(String sql, ResultSetMetaData metaData) throws SQLException {
+		columnNames.clear();
+		rows.clear();
+		int columnCount = metaData.getColumnCount();
+		for (int i = 1; i <= columnCount; i++) {
+			columnNames.add(metaData.getColumnName(i));
+		}
+	}
+
+	@Override
+	public boolean row(ResultSet resultSet) throws SQLException {
+		Object[] row = new Object[columnNames.size()];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = resultSet.getObject(i + 1);
+		}
+		rows.add(row);
+		return rows.size() < maxRows;
+	}
+
+	@Override
+	public void end() throws SQLException {
+		LOGGER.debug("{} rows previewed", rows.size());
+	}
+
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(columnNames);
+	}
+
+	public List<Object[]> getRows() {
+		return Collections.unmodifiableList(rows);
+	}
+
+}
@@ -0,0 +1,23 @@
+package adrien.database.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+// Receive the rows returned by a statement. The sink reads the columns it
+// needs from the result set itself, with the typed getters, so that no value is
+// converted to a String unless it has to.
+public interface ResultSink {
+
+	// Whether the rows should be read at all. When false, the result set is
+	// closed without being walked.
+	boolean isReadingRows();
+
+	void start(String sql, ResultSetMetaData metaData) throws SQLException;
+
+	// Receive the current row of the result set. Return false to stop reading.
+	boolean row(ResultSet resultSet) throws SQLException;
+
+	void end() throws SQLException;
+
+}
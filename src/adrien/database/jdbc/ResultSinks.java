@@ -0,0 +1,88 @@
+package adrien.database.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ResultSinks {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ResultSinks.class);
+
+	// Close the result set without reading it.
+	public static ResultSink discard() {
+		return new ResultSink() {
+
+			@Override
+			public boolean isReadingRows() {
+				return false;
+			}
+
+			@Override
+			public void start(String sql, ResultSetMetaData metaData) throws SQLException {
+			}
+
+			@Override
+			public boolean row(ResultSet resultSet) throws SQLException {
+				return false;
+			}
+
+			@Override
+			public void end() throws SQLException {
+			}
+
+		};
+	}
+
+	public static CountingResultSink count() {
+		return new CountingResultSink();
+	}
+
+	public static PreviewResultSink preview(int maxRows) {
+		return new PreviewResultSink(maxRows);
+	}
+
+	// Log every row at the debug level. The rows are not read at all when the
+	// debug level is disabled.
+	public static ResultSink log() {
+		return new ResultSink() {
+
+			private int columnCount;
+
+			private StringBuilder buffer = new StringBuilder();
+
+			@Override
+			public boolean isReadingRows() {
+				return LOGGER.isDebugEnabled();
+			}
+
+			@Override
+			public void start(String sql, ResultSetMetaData metaData) throws SQLException {
+				columnCount = metaData.getColumnCount();
+				buffer.setLength(0);
+				for (int i = 1; i <= columnCount; i++) {
+					buffer.append(metaData.getColumnName(i)).append('\t');
+				}
+				LOGGER.debug(buffer.toString());
+			}
+
+			@Override
+			public boolean row(ResultSet resultSet) throws SQLException {
+				buffer.setLength(0);
+				for (int i = 1; i <= columnCount; i++) {
+					buffer.append(resultSet.getString(i)).append('\t');
+				}
+				LOGGER.debug(buffer.toString());
+				return true;
+			}
+
+			@Override
+			public void end() throws SQLException {
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,83 @@
+package adrien.database.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A LRU cache of the prepared statements of a connection. The statements
+// evicted are closed.
+public class StatementCache {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+	public static final int DEFAULT_SIZE = 32;
+
+	private Connection connection;
+
+	private Map<String, PreparedStatement> preparedStatements;
+
+	public StatementCache(Connection connection) {
+		this(connection, DEFAULT_SIZE);
+	}
+
+	public StatementCache(Connection connection, final int size) {
+		super();
+
+		this.connection = connection;
+		this.preparedStatements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > size) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+
+		};
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	// Return the prepared statement from the cache, or prepare it.
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement preparedStatement = preparedStatements.get(sql);
+		if (preparedStatement == null) {
+			LOGGER.debug("Preparing {}", sql);
+			preparedStatement = connection.prepareStatement(sql);
+			preparedStatements.put(sql, preparedStatement);
+		}
+		return preparedStatement;
+	}
+
+	public int size() {
+		return preparedStatements.size();
+	}
+
+	// Close all the prepared statements.
+	public void clear() {
+		for (PreparedStatement preparedStatement : preparedStatements.values()) {
+			closeQuietly(preparedStatement);
+		}
+		preparedStatements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement preparedStatement) {
+		try {
+			preparedStatement.close();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to close statement", e);
+		}
+	}
+
+}
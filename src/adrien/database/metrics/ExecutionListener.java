@@ -0,0 +1,14 @@
+package adrien.database.metrics;
+
+// Notified of every statement executed by a script executor.
+public interface ExecutionListener {
+
+	// The metrics are reused for the next statement: they have to be copied to
+	// be kept.
+	void statementExecuted(StatementMetrics statementMetrics);
+
+	// Called once the outermost script is done (once all the sessions are, for
+	// a shared script executor).
+	void runEnded();
+
+}
@@ -0,0 +1,192 @@
+package adrien.database.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+// Aggregate the statement metrics per script file, and for the whole run. The
+// summary is available as JSON at any time, through JMX while running, and is
+// written at the end of the run (in a file if any, in the log otherwise).
+public class ExecutionMetrics implements ExecutionListener, ExecutionMetricsMXBean {
+
+	final private static Logger LOGGER = LoggerFactory.getLogger(ExecutionMetrics.class);
+
+	final private static String STREAM = "(stream)";
+
+	final private static double[] PERCENTILES = new double[] { 50, 90, 99, 99.9 };
+
+	private ConcurrentMap<String, ScriptMetrics> scriptMetrics = Maps.newConcurrentMap();
+
+	private ScriptMetrics totalMetrics = new ScriptMetrics(null);
+
+	private volatile String currentScript;
+
+	private File summaryFile;
+
+	private ObjectName objectName;
+
+	// Write the summary in the file at the end of the run.
+	public void setSummaryFile(File summaryFile) {
+		this.summaryFile = summaryFile;
+	}
+
+	@Override
+	public void statementExecuted(StatementMetrics statementMetrics) {
+		String script = statementMetrics.getScript() == null ? STREAM : statementMetrics.getScript();
+		ScriptMetrics metrics = scriptMetrics.get(script);
+		if (metrics == null) {
+			scriptMetrics.putIfAbsent(script, new ScriptMetrics(script));
+			metrics = scriptMetrics.get(script);
+		}
+		metrics.record(statementMetrics);
+		totalMetrics.record(statementMetrics);
+		currentScript = script;
+	}
+
+	@Override
+	public void runEnded() {
+		if (summaryFile == null) {
+			LOGGER.info(getSummary());
+			return;
+		}
+
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(summaryFile), StandardCharsets.UTF_8);
+			try {
+				writer.write(getSummary());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write the execution summary to {}", summaryFile, e);
+		}
+	}
+
+	public Map<String, ScriptMetrics> getScriptMetrics() {
+		return scriptMetrics;
+	}
+
+	public ScriptMetrics getTotalMetrics() {
+		return totalMetrics;
+	}
+
+	@Override
+	public long getStatementCount() {
+		return totalMetrics.getStatementCount();
+	}
+
+	@Override
+	public long getExecutionTimeMillis() {
+		return totalMetrics.getExecutionTimes().getTotal() / 1000000;
+	}
+
+	@Override
+	public long getRowsAffected() {
+		return totalMetrics.getRowsAffected();
+	}
+
+	@Override
+	public long getRowsFetched() {
+		return totalMetrics.getRowsFetched();
+	}
+
+	@Override
+	public String getCurrentScript() {
+		return currentScript;
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"total\":");
+		appendJson(json, totalMetrics);
+		json.append(",\"scripts\":{");
+		boolean first = true;
+		for (ScriptMetrics metrics : scriptMetrics.values()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			appendString(json, metrics.getScript());
+			json.append(':');
+			appendJson(json, metrics);
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+	// Publish the metrics through JMX under the given name.
+	public void register(String name) throws JMException {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		objectName = new ObjectName("adrien.database:type=ExecutionMetrics,name=" + ObjectName.quote(name));
+		mBeanServer.registerMBean(this, objectName);
+	}
+
+	public void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	protected static void appendJson(StringBuilder json, ScriptMetrics metrics) {
+		json.append("{\"statements\":").append(metrics.getStatementCount());
+		json.append(",\"rowsAffected\":").append(metrics.getRowsAffected());
+		json.append(",\"rowsFetched\":").append(metrics.getRowsFetched());
+		json.append(",\"parseNanos\":");
+		appendJson(json, metrics.getParseTimes());
+		json.append(",\"substitutionNanos\":");
+		appendJson(json, metrics.getSubstitutionTimes());
+		json.append(",\"executionNanos\":");
+		appendJson(json, metrics.getExecutionTimes());
+		json.append('}');
+	}
+
+	protected static void appendJson(StringBuilder json, LatencyHistogram histogram) {
+		json.append("{\"total\":").append(histogram.getTotal());
+		json.append(",\"mean\":").append(histogram.getMean());
+		json.append(",\"max\":").append(histogram.getMax());
+		for (double percentile : PERCENTILES) {
+			String name = Double.toString(percentile).replace(".0", "").replace('.', '_');
+			json.append(",\"p").append(name).append("\":").append(histogram.getPercentile(percentile));
+		}
+		json.append('}');
+	}
+
+	protected static void appendString(StringBuilder json, String text) {
+		json.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char character = text.charAt(i);
+			switch (character) {
+				case '"':
+				case '\\':
+					json.append('\\').append(character);
+					break;
+
+				default:
+					if (character < ' ') {
+						json.append(String.format("\\u%04x", (int) character));
+					} else {
+						json.append(character);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+}
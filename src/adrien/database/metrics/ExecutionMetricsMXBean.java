@@ -0,0 +1,19 @@
+package adrien.database.metrics;
+
+// The view of the execution metrics published through JMX.
+public interface ExecutionMetricsMXBean {
+
+	long getStatementCount();
+
+	long getExecutionTimeMillis();
+
+	long getRowsAffected();
+
+	long getRowsFetched();
+
+	String getCurrentScript();
+
+	// Return the JSON summary of the run so far.
+	String getSummary();
+
+}
@@ -0,0 +1,147 @@
+package adrien.database.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+// Aggregate the metrics of a script run many times from many threads: the
+// latencies of the iterations, and the latencies of each statement, keyed by
+// the script and the line it comes from. The summary gives the throughputs over
+// the elapsed time, as JSON.
+public class LoadMetrics implements ExecutionListener {
+
+	final private static String STREAM = "<stream>";
+
+	// The measures of a statement of the script, over all its executions.
+	public static class StatementLoad {
+
+		private String source;
+
+		private String sql;
+
+		private LatencyHistogram executionTimes = new LatencyHistogram();
+
+		public StatementLoad(String source, String sql) {
+			super();
+
+			this.source = source;
+			this.sql = sql;
+		}
+
+		// Return the script and the line of the statement.
+		public String getSource() {
+			return source;
+		}
+
+		// Return the statement, as first substituted.
+		public String getSQL() {
+			return sql;
+		}
+
+		public LatencyHistogram getExecutionTimes() {
+			return executionTimes;
+		}
+
+	}
+
+	private ConcurrentMap<String, StatementLoad> statementLoads = Maps.newConcurrentMap();
+
+	private LatencyHistogram iterationTimes = new LatencyHistogram();
+
+	private AtomicLong failureCount = new AtomicLong();
+
+	private volatile long startTime = System.nanoTime();
+
+	private volatile long endTime = 0;
+
+	// Called from any thread, for every statement of every iteration.
+	@Override
+	public void statementExecuted(StatementMetrics statementMetrics) {
+		String source = (statementMetrics.getScript() == null ? STREAM : statementMetrics.getScript()) + ":" + statementMetrics.getLine();
+		StatementLoad statementLoad = statementLoads.get(source);
+		if (statementLoad == null) {
+			statementLoads.putIfAbsent(source, new StatementLoad(source, statementMetrics.getSQL()));
+			statementLoad = statementLoads.get(source);
+		}
+		statementLoad.getExecutionTimes().record(statementMetrics.getExecutionTime());
+	}
+
+	// Every iteration is a run of its own.
+	@Override
+	public void runEnded() {
+	}
+
+	public void started() {
+		startTime = System.nanoTime();
+		endTime = 0;
+	}
+
+	public void ended() {
+		endTime = System.nanoTime();
+	}
+
+	// Record the latency of an iteration in nanoseconds, from the time it was
+	// scheduled when the rate is fixed.
+	public void iterationExecuted(long time) {
+		iterationTimes.record(time);
+	}
+
+	public void iterationFailed() {
+		failureCount.incrementAndGet();
+	}
+
+	public Map<String, StatementLoad> getStatementLoads() {
+		return statementLoads;
+	}
+
+	public LatencyHistogram getIterationTimes() {
+		return iterationTimes;
+	}
+
+	public long getIterationCount() {
+		return iterationTimes.getCount();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	// Return the elapsed time in nanoseconds, so far if not ended.
+	public long getElapsedTime() {
+		return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+	}
+
+	public String getSummary() {
+		double elapsedSeconds = Math.max(1, getElapsedTime()) / 1e9;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"iterations\":").append(getIterationCount());
+		json.append(",\"failures\":").append(getFailureCount());
+		json.append(",\"elapsedMillis\":").append(getElapsedTime() / 1000000);
+		json.append(",\"iterationsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", getIterationCount() / elapsedSeconds));
+		json.append(",\"iterationNanos\":");
+		ExecutionMetrics.appendJson(json, iterationTimes);
+		json.append(",\"statements\":{");
+		boolean first = true;
+		for (StatementLoad statementLoad : statementLoads.values()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			ExecutionMetrics.appendString(json, statementLoad.getSource());
+			LatencyHistogram executionTimes = statementLoad.getExecutionTimes();
+			json.append(":{\"sql\":");
+			ExecutionMetrics.appendString(json, statementLoad.getSQL());
+			json.append(",\"executions\":").append(executionTimes.getCount());
+			json.append(",\"perSecond\":").append(String.format(Locale.ROOT, "%.1f", executionTimes.getCount() / elapsedSeconds));
+			json.append(",\"executionNanos\":");
+			ExecutionMetrics.appendJson(json, executionTimes);
+			json.append('}');
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+}
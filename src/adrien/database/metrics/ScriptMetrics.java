@@ -0,0 +1,66 @@
+package adrien.database.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// The measures of all the statements of a script file.
+public class ScriptMetrics {
+
+	private String script;
+
+	private LatencyHistogram parseTimes = new LatencyHistogram();
+
+	private LatencyHistogram substitutionTimes = new LatencyHistogram();
+
+	private LatencyHistogram executionTimes = new LatencyHistogram();
+
+	private AtomicLong rowsAffected = new AtomicLong();
+
+	private AtomicLong rowsFetched = new AtomicLong();
+
+	public ScriptMetrics(String script) {
+		super();
+
+		this.script = script;
+	}
+
+	public void record(StatementMetrics statementMetrics) {
+		parseTimes.record(statementMetrics.getParseTime());
+		substitutionTimes.record(statementMetrics.getSubstitutionTime());
+		executionTimes.record(statementMetrics.getExecutionTime());
+		if (statementMetrics.getRowsAffected() > 0) {
+			rowsAffected.addAndGet(statementMetrics.getRowsAffected());
+		}
+		if (statementMetrics.getRowsFetched() > 0) {
+			rowsFetched.addAndGet(statementMetrics.getRowsFetched());
+		}
+	}
+
+	public String getScript() {
+		return script;
+	}
+
+	public long getStatementCount() {
+		return executionTimes.getCount();
+	}
+
+	public LatencyHistogram getParseTimes() {
+		return parseTimes;
+	}
+
+	public LatencyHistogram getSubstitutionTimes() {
+		return substitutionTimes;
+	}
+
+	public LatencyHistogram getExecutionTimes() {
+		return executionTimes;
+	}
+
+	public long getRowsAffected() {
+		return rowsAffected.get();
+	}
+
+	public long getRowsFetched() {
+		return rowsFetched.get();
+	}
+
+}
@@ -0,0 +1,92 @@
+package adrien.database.metrics;
+
+// The measures of a statement. A single instance is reused by a script
+// executor for all its statements, so that measuring does not allocate.
+public class StatementMetrics {
+
+	public static final long UNKNOWN = -1;
+
+	private String script;
+
+	private int line;
+
+	private String sql;
+
+	private long parseTime;
+
+	private long substitutionTime;
+
+	private long executionTime;
+
+	private long rowsAffected = UNKNOWN;
+
+	private long rowsFetched = UNKNOWN;
+
+	public void reset(String script, int line, String sql) {
+		this.script = script;
+		this.line = line;
+		this.sql = sql;
+		this.parseTime = 0;
+		this.substitutionTime = 0;
+		this.executionTime = 0;
+		this.rowsAffected = UNKNOWN;
+		this.rowsFetched = UNKNOWN;
+	}
+
+	// Return the script the statement comes from (null for a stream).
+	public String getScript() {
+		return script;
+	}
+
+	// Return the line of the script where the statement starts.
+	public int getLine() {
+		return line;
+	}
+
+	// Return the substituted statement.
+	public String getSQL() {
+		return sql;
+	}
+
+	// The times are in nanoseconds.
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	public void setParseTime(long parseTime) {
+		this.parseTime = parseTime;
+	}
+
+	public long getSubstitutionTime() {
+		return substitutionTime;
+	}
+
+	public void setSubstitutionTime(long substitutionTime) {
+		this.substitutionTime = substitutionTime;
+	}
+
+	public long getExecutionTime() {
+		return executionTime;
+	}
+
+	public void setExecutionTime(long executionTime) {
+		this.executionTime = executionTime;
+	}
+
+	public long getRowsAffected() {
+		return rowsAffected;
+	}
+
+	public void setRowsAffected(long rowsAffected) {
+		this.rowsAffected = rowsAffected;
+	}
+
+	public long getRowsFetched() {
+		return rowsFetched;
+	}
+
+	public void setRowsFetched(long rowsFetched) {
+		this.rowsFetched = rowsFetched;
+	}
+
+}
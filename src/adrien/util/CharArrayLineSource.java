@@ -0,0 +1,52 @@
+package adrien.util;
+
+import java.nio.CharBuffer;
+
+// Read the lines of characters already in memory. The lines are returned as
+// views on the characters, which are never copied.
+public class CharArrayLineSource implements LineSource {
+
+	private char[] array;
+
+	private int position;
+
+	private int limit;
+
+	private LineView line = new LineView();
+
+	public CharArrayLineSource(char[] array, int offset, int length) {
+		super();
+
+		this.array = array;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+
+	// The buffer must be backed by an array, and is not modified.
+	public CharArrayLineSource(CharBuffer chars) {
+		this(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+	}
+
+	@Override
+	public CharSequence readLine() {
+		int start = position;
+		if (start >= limit) {
+			return null;
+		}
+
+		for (int i = start; i < limit; i++) {
+			char character = array[i];
+			if (character == '\n' || character == '\r') {
+				position = character == '\r' && i + 1 < limit && array[i + 1] == '\n' ? i + 2 : i + 1;
+				return line.trim(array, start, i);
+			}
+		}
+		position = limit;
+		return line.trim(array, start, limit);
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -2,20 +2,67 @@ package adrien.util;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.regex.Pattern;
 
 public class FileFilters {
 
+	// Only the last extension is checked, so that the dots of the name (as in
+	// v1.2__init.sql) do not matter.
 	public static FileFilter havingExtension(final String expectedExtension) {
 		return new FileFilter() {
 			
 			@Override
 			public boolean accept(File file) {
 				String fileName = file.getName();
-				String extension = fileName.substring(fileName.indexOf(".") + 1);
-				return extension.equalsIgnoreCase(expectedExtension);
+				int index = fileName.lastIndexOf('.');
+				return index >= 0 && fileName.substring(index + 1).equalsIgnoreCase(expectedExtension);
 			}
 			
 		};
 	}
+
+	// Match the name of the file (not its path) against a glob: * matches any
+	// characters, ? any single character, and [...] one of the characters.
+	public static FileFilter matchingGlob(String glob) {
+		final Pattern pattern = toPattern(glob);
+		return new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return pattern.matcher(file.getName()).matches();
+			}
+
+		};
+	}
+
+	public static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		boolean insideClass = false;
+		for (int i = 0; i < glob.length(); i++) {
+			char character = glob.charAt(i);
+			if (insideClass) {
+				if (character == ']') {
+					insideClass = false;
+					regex.append(']');
+				} else if (character == '\\' || character == '[' || character == '&') {
+					regex.append('\\').append(character);
+				} else if (character == '!' && glob.charAt(i - 1) == '[') {
+					regex.append('^');
+				} else {
+					regex.append(character);
+				}
+			} else if (character == '*') {
+				regex.append(".*");
+			} else if (character == '?') {
+				regex.append('.');
+			} else if (character == '[' && glob.indexOf(']', i + 1) > i + 1) {
+				insideClass = true;
+				regex.append('[');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(character)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
 	
 }
@@ -0,0 +1,176 @@
+package adrien.util;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Ordering;
+
+// Order the scripts by their names, the way they are expected to run.
+public class FileOrderings {
+
+	// An optional V, the version parts separated with dots or underscores, and
+	// the rest of the name (usually __ and a description).
+	final private static Pattern VERSIONED_NAME_PATTERN = Pattern.compile("^[Vv]?(\\d+(?:[._]\\d+)*)(.*)$", Pattern.DOTALL);
+
+	final private static Pattern VERSION_SEPARATOR_PATTERN = Pattern.compile("[._]");
+
+	final private static Function<File, String> GET_NAME = new Function<File, String>() {
+
+		@Override
+		public String apply(File file) {
+			return file.getName();
+		}
+
+	};
+
+	// The numbers in the names are compared by value, so 2_a.sql comes before
+	// 10_a.sql.
+	final private static Ordering<String> NATURAL_NAMES = new Ordering<String>() {
+
+		@Override
+		public int compare(String name, String otherName) {
+			int comparison = compareNaturally(name, otherName);
+			return comparison != 0 ? comparison : name.compareTo(otherName);
+		}
+
+	};
+
+	// The names starting with a version are compared by version first (so
+	// V1.10__b.sql comes after V1.9__a.sql), and come before the other names.
+	final private static Ordering<String> VERSIONED_NAMES = new Ordering<String>() {
+
+		@Override
+		public int compare(String name, String otherName) {
+			Matcher matcher = VERSIONED_NAME_PATTERN.matcher(name);
+			Matcher otherMatcher = VERSIONED_NAME_PATTERN.matcher(otherName);
+			boolean versioned = matcher.matches();
+			boolean otherVersioned = otherMatcher.matches();
+			if (versioned != otherVersioned) {
+				return versioned ? -1 : 1;
+			}
+
+			if (versioned) {
+				int comparison = compareVersions(matcher.group(1), otherMatcher.group(1));
+				if (comparison != 0) {
+					return comparison;
+				}
+				comparison = NATURAL_NAMES.compare(matcher.group(2), otherMatcher.group(2));
+				return comparison != 0 ? comparison : name.compareTo(otherName);
+			}
+			return NATURAL_NAMES.compare(name, otherName);
+		}
+
+	};
+
+	// The versions compared part by part, 1 and 1.0 being the same.
+	final private static Ordering<String> VERSIONS = new Ordering<String>() {
+
+		@Override
+		public int compare(String version, String otherVersion) {
+			return compareVersions(version, otherVersion);
+		}
+
+	};
+
+	private FileOrderings() {
+	}
+
+	public static Ordering<File> natural() {
+		return NATURAL_NAMES.onResultOf(GET_NAME);
+	}
+
+	public static Ordering<File> versioned() {
+		return VERSIONED_NAMES.onResultOf(GET_NAME);
+	}
+
+	public static Ordering<String> naturalNames() {
+		return NATURAL_NAMES;
+	}
+
+	public static Ordering<String> versionedNames() {
+		return VERSIONED_NAMES;
+	}
+
+	public static Ordering<String> versions() {
+		return VERSIONS;
+	}
+
+	// Return the version the name starts with (without the V), or null.
+	public static String getVersion(String name) {
+		Matcher matcher = VERSIONED_NAME_PATTERN.matcher(name);
+		return matcher.matches() ? matcher.group(1) : null;
+	}
+
+	private static int compareVersions(String version, String otherVersion) {
+		String[] parts = VERSION_SEPARATOR_PATTERN.split(version);
+		String[] otherParts = VERSION_SEPARATOR_PATTERN.split(otherVersion);
+		for (int i = 0; i < Math.max(parts.length, otherParts.length); i++) {
+			int comparison = compareNumbers(i < parts.length ? parts[i] : "0", i < otherParts.length ? otherParts[i] : "0");
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	// Compare the runs of digits by value, and the rest ignoring the case.
+	private static int compareNaturally(String name, String otherName) {
+		int i = 0;
+		int j = 0;
+		while (i < name.length() && j < otherName.length()) {
+			char character = name.charAt(i);
+			char otherCharacter = otherName.charAt(j);
+			if (isDigit(character) && isDigit(otherCharacter)) {
+				int end = endOfDigits(name, i);
+				int otherEnd = endOfDigits(otherName, j);
+				int comparison = compareNumbers(name.substring(i, end), otherName.substring(j, otherEnd));
+				if (comparison != 0) {
+					return comparison;
+				}
+				i = end;
+				j = otherEnd;
+			} else {
+				int comparison = Character.toLowerCase(character) - Character.toLowerCase(otherCharacter);
+				if (comparison != 0) {
+					return comparison;
+				}
+				i++;
+				j++;
+			}
+		}
+		return (name.length() - i) - (otherName.length() - j);
+	}
+
+	// Compare two runs of digits of any length, ignoring the leading zeros.
+	private static int compareNumbers(String number, String otherNumber) {
+		String digits = stripLeadingZeros(number);
+		String otherDigits = stripLeadingZeros(otherNumber);
+		if (digits.length() != otherDigits.length()) {
+			return digits.length() - otherDigits.length();
+		}
+		return digits.compareTo(otherDigits);
+	}
+
+	private static String stripLeadingZeros(String number) {
+		int start = 0;
+		while (start < number.length() - 1 && number.charAt(start) == '0') {
+			start++;
+		}
+		return number.substring(start);
+	}
+
+	private static int endOfDigits(String name, int start) {
+		int end = start;
+		while (end < name.length() && isDigit(name.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+	private static boolean isDigit(char character) {
+		return character >= '0' && character <= '9';
+	}
+
+}
@@ -0,0 +1,13 @@
+package adrien.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// A source of trimmed lines. The returned line may be a view which is only
+// valid until the next call, so it has to be copied to be kept.
+public interface LineSource extends Closeable {
+
+	// Return the next trimmed line, or null at the end of the input.
+	CharSequence readLine() throws IOException;
+
+}
@@ -0,0 +1,47 @@
+package adrien.util;
+
+// A reusable view on a trimmed part of the character buffer of a line source.
+class LineView implements CharSequence {
+
+	private char[] array;
+
+	private int start;
+
+	private int end;
+
+	public LineView trim(char[] array, int start, int end) {
+		while (start < end && array[start] <= ' ') {
+			start++;
+		}
+		while (end > start && array[end - 1] <= ' ') {
+			end--;
+		}
+
+		this.array = array;
+		this.start = start;
+		this.end = end;
+		return this;
+	}
+
+	@Override
+	public int length() {
+		return end - start;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return array[start + index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new String(array, this.start + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(array, start, end - start);
+	}
+
+}
+
@@ -0,0 +1,168 @@
+package adrien.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+// Read the lines of a file mapped in memory window by window, and decoded in a
+// reused character buffer. The lines are returned as views on that buffer, so
+// the memory used depends on the window size and on the longest line, not on
+// the size of the file.
+public class MappedFileLineSource implements LineSource {
+
+	public static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	final private static int MINIMUM_WINDOW_SIZE = 16;
+
+	private FileChannel channel;
+
+	private CharsetDecoder decoder;
+
+	private int windowSize;
+
+	private long windowPosition = 0;
+
+	private ByteBuffer bytes;
+
+	// The decoded characters not read yet are between position and limit.
+	private CharBuffer chars;
+
+	private boolean endOfInput = false;
+
+	private boolean underflow = false;
+
+	private LineView line = new LineView();
+
+	public MappedFileLineSource(File file, CharsetDecoder decoder) throws IOException {
+		this(file, decoder, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFileLineSource(File file, CharsetDecoder decoder, int windowSize) throws IOException {
+		super();
+
+		this.channel = new FileInputStream(file).getChannel();
+		this.decoder = decoder;
+		// A window has to hold at least one character, whatever the charset.
+		this.windowSize = Math.max(windowSize, MINIMUM_WINDOW_SIZE);
+		this.chars = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+		this.chars.flip();
+		decoder.reset();
+	}
+
+	@Override
+	public CharSequence readLine() throws IOException {
+		int scanned = 0;
+		while (true) {
+			int start = chars.position();
+			int limit = chars.limit();
+			char[] array = chars.array();
+			for (int i = start + scanned; i < limit; i++) {
+				char character = array[i];
+				if (character == '\n' || character == '\r') {
+					// A \r at the end of the buffer may be followed by a \n.
+					if (character == '\r' && i + 1 == limit && !endOfInput) {
+						break;
+					}
+					int next = character == '\r' && i + 1 < limit && array[i + 1] == '\n' ? i + 2 : i + 1;
+					chars.position(next);
+					return line.trim(array, start, i);
+				}
+			}
+			scanned = Math.max(0, limit - start - 1);
+
+			if (endOfInput) {
+				if (start == limit) {
+					return null;
+				}
+				chars.position(limit);
+				return line.trim(array, start, limit);
+			}
+			fill();
+		}
+	}
+
+	// Decode more characters after the ones not read yet, growing the buffer
+	// when a line does not fit in it.
+	protected void fill() throws IOException {
+		chars.compact();
+		int position = chars.position();
+		while (chars.position() == position) {
+			if (!chars.hasRemaining()) {
+				grow();
+			}
+
+			if (bytes == null || !bytes.hasRemaining() || underflow) {
+				if (!map()) {
+					finish();
+					break;
+				}
+			}
+
+			CoderResult result = decoder.decode(bytes, chars, false);
+			if (result.isError()) {
+				result.throwException();
+			}
+			// The window may end in the middle of a character.
+			underflow = result.isUnderflow();
+			if (result.isOverflow() && chars.position() == position) {
+				grow();
+			}
+		}
+		chars.flip();
+	}
+
+	private void grow() {
+		CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+		chars.flip();
+		larger.put(chars);
+		chars = larger;
+	}
+
+	// Decode the last bytes of the file.
+	private void finish() throws IOException {
+		ByteBuffer remaining = bytes == null ? ByteBuffer.allocate(0) : bytes;
+		CoderResult result = decoder.decode(remaining, chars, true);
+		while (result.isOverflow()) {
+			grow();
+			result = decoder.decode(remaining, chars, true);
+		}
+		if (!result.isError()) {
+			result = decoder.flush(chars);
+		}
+		if (result.isError()) {
+			result.throwException();
+		}
+		endOfInput = true;
+	}
+
+	// Map the next window, starting at the first byte not decoded yet. Return
+	// false when the current window already reaches the end of the file.
+	private boolean map() throws IOException {
+		long size = size();
+		if (bytes == null ? size == 0 : windowPosition + bytes.limit() >= size) {
+			return false;
+		}
+
+		windowPosition = bytes == null ? 0 : windowPosition + bytes.position();
+		bytes = channel.map(FileChannel.MapMode.READ_ONLY, windowPosition, Math.min(windowSize, size - windowPosition));
+		underflow = false;
+		return true;
+	}
+
+	private long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,32 @@
+package adrien.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.common.io.LineReader;
+
+public class ReaderLineSource implements LineSource {
+
+	private Reader reader;
+
+	private LineReader lineReader;
+
+	public ReaderLineSource(Reader reader) {
+		super();
+
+		this.reader = reader;
+		this.lineReader = new LineReader(reader);
+	}
+
+	@Override
+	public CharSequence readLine() throws IOException {
+		String line = lineReader.readLine();
+		return line == null ? null : line.trim();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
@@ -0,0 +1,66 @@
+package adrien.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// An in-memory H2 database for the tests, kept until it is dropped, with a
+// PAUSE(millis) function to make a statement slow.
+public class H2TestDatabase {
+
+	private final String url;
+
+	// Keeps the database open.
+	private final Connection connection;
+
+	protected H2TestDatabase(String url) throws SQLException {
+		super();
+
+		this.url = url;
+		this.connection = DriverManager.getConnection(url + ";DB_CLOSE_DELAY=-1");
+		execute("CREATE ALIAS PAUSE FOR \"" + H2TestDatabase.class.getName() + ".pause\"");
+	}
+
+	// Called by the database, through the PAUSE alias.
+	public static int pause(int millis) throws InterruptedException {
+		Thread.sleep(millis);
+		return millis;
+	}
+
+	public String getURL() {
+		return url;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	// Open another connection, which the caller closes.
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(url);
+	}
+
+	public void execute(String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	// Drop everything, for the next test to start from an empty database.
+	public void drop() throws SQLException {
+		try {
+			execute("DROP ALL OBJECTS");
+		} finally {
+			connection.close();
+		}
+	}
+
+	public static H2TestDatabase create(String name) throws SQLException {
+		return new H2TestDatabase("jdbc:h2:mem:" + name);
+	}
+
+}
@@ -0,0 +1,169 @@
+package adrien.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adrien.database.jdbc.JDBCStatementExecutor;
+import adrien.database.metrics.LatencyHistogram;
+import adrien.database.metrics.LoadMetrics;
+import adrien.database.metrics.LoadMetrics.StatementLoad;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+public class LoadReplayRunnerTest {
+
+	private H2TestDatabase database;
+
+	private File scriptFile;
+
+	// One connection per session, closed when the session is over.
+	private StatementExecutorFactory statementExecutorFactory = new StatementExecutorFactory() {
+
+		private Map<StatementExecutor, Connection> connections = Maps.newConcurrentMap();
+
+		@Override
+		public StatementExecutor newStatementExecutor() throws SQLException {
+			Connection connection = database.connect();
+			StatementExecutor statementExecutor = JDBCStatementExecutor.forConnection(connection);
+			connections.put(statementExecutor, connection);
+			return statementExecutor;
+		}
+
+		@Override
+		public void release(StatementExecutor statementExecutor, boolean succeeded) {
+			try {
+				connections.remove(statementExecutor).close();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+	};
+
+	@Before
+	public void setUp() throws IOException, SQLException {
+		database = H2TestDatabase.create("load");
+		database.execute("CREATE TABLE t (id INT PRIMARY KEY, session INT)");
+		scriptFile = File.createTempFile("load", ".sql");
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		scriptFile.delete();
+		database.drop();
+	}
+
+	@Test
+	public void runsEachIterationOnce() throws Exception {
+		LoadReplayRunner loadReplayRunner = new LoadReplayRunner(statementExecutorFactory, 3);
+		loadReplayRunner.setIterationCount(30);
+		LoadMetrics loadMetrics = loadReplayRunner.run(writeScript("INSERT INTO t VALUES (&1., &2.);"));
+
+		assertEquals(30, loadMetrics.getIterationCount());
+		assertEquals(0, loadMetrics.getFailureCount());
+		assertEquals(30, queryForLong("SELECT COUNT(DISTINCT id) FROM t WHERE id BETWEEN 1 AND 30"));
+		assertEquals(0, queryForLong("SELECT COUNT(*) FROM t WHERE session NOT BETWEEN 1 AND 3"));
+
+		StatementLoad statementLoad = Iterables.getOnlyElement(loadMetrics.getStatementLoads().values());
+		assertEquals(scriptFile.getPath() + ":1", statementLoad.getSource());
+		assertEquals(30, statementLoad.getExecutionTimes().getCount());
+	}
+
+	@Test
+	public void countsTheFailedIterations() throws Exception {
+		LoadReplayRunner loadReplayRunner = new LoadReplayRunner(statementExecutorFactory, 2);
+		loadReplayRunner.setIterationCount(20);
+		LoadMetrics loadMetrics = loadReplayRunner.run(writeScript("INSERT INTO t VALUES (MOD(&1., 10), &2.);"));
+
+		assertEquals(10, loadMetrics.getIterationCount());
+		assertEquals(10, loadMetrics.getFailureCount());
+		assertEquals(10, queryForLong("SELECT COUNT(*) FROM t"));
+	}
+
+	// The 20th iteration is scheduled 190 ms after the start.
+	@Test
+	public void schedulesTheIterationsAtTheTargetRate() throws Exception {
+		LoadReplayRunner loadReplayRunner = new LoadReplayRunner(statementExecutorFactory, 2);
+		loadReplayRunner.setIterationCount(20);
+		loadReplayRunner.setTargetRate(100);
+		LoadMetrics loadMetrics = loadReplayRunner.run(writeScript("INSERT INTO t VALUES (&1., &2.);"));
+
+		assertEquals(20, loadMetrics.getIterationCount());
+		assertTrue(loadMetrics.getElapsedTime() >= TimeUnit.MILLISECONDS.toNanos(190));
+	}
+
+	// A single session takes 50 ms per iteration while one is scheduled every
+	// 10 ms: the last ones wait for the previous ones, and their latency
+	// counts the wait, which the execution times of the statements do not.
+	@Test
+	public void measuresTheLatencyFromTheScheduledTime() throws Exception {
+		LoadReplayRunner loadReplayRunner = new LoadReplayRunner(statementExecutorFactory, 1);
+		loadReplayRunner.setIterationCount(10);
+		loadReplayRunner.setTargetRate(100);
+		LoadMetrics loadMetrics = loadReplayRunner.run(writeScript("SELECT PAUSE(50);"));
+
+		LatencyHistogram iterationTimes = loadMetrics.getIterationTimes();
+		assertEquals(10, iterationTimes.getCount());
+		assertTrue(iterationTimes.getMax() >= TimeUnit.MILLISECONDS.toNanos(10 * 50 - 9 * 10));
+		assertTrue(iterationTimes.getPercentile(90) >= TimeUnit.MILLISECONDS.toNanos(300));
+		assertTrue(iterationTimes.getPercentile(10) < TimeUnit.MILLISECONDS.toNanos(200));
+
+		LatencyHistogram executionTimes = Iterables.getOnlyElement(loadMetrics.getStatementLoads().values()).getExecutionTimes();
+		assertTrue(executionTimes.getPercentile(99) < TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	// The percentiles are the upper bounds of buckets of 1/8 of a power of
+	// two.
+	@Test
+	public void computesThePercentiles() {
+		LatencyHistogram latencyHistogram = new LatencyHistogram();
+		for (long value = 1; value <= 1000; value++) {
+			latencyHistogram.record(TimeUnit.MICROSECONDS.toNanos(value));
+		}
+
+		assertEquals(1000, latencyHistogram.getCount());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), latencyHistogram.getMax());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(1001) / 2, latencyHistogram.getMean());
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(500), latencyHistogram.getPercentile(50));
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(900), latencyHistogram.getPercentile(90));
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(990), latencyHistogram.getPercentile(99));
+		assertEquals(latencyHistogram.getMax(), latencyHistogram.getPercentile(100));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual + " is not within 12.5% above " + expected, actual >= expected && actual <= expected + expected / 8);
+	}
+
+	private File writeScript(String script) throws IOException {
+		Files.write(script + "\n", scriptFile, StandardCharsets.UTF_8);
+		return scriptFile;
+	}
+
+	private long queryForLong(String sql) throws SQLException {
+		Statement statement = database.getConnection().createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(sql);
+			resultSet.next();
+			return resultSet.getLong(1);
+		} finally {
+			statement.close();
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package adrien.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class PipelinedStatementExecutorTest {
+
+	// Record the statements, the spool switches and the thread executing them,
+	// fail on the ones containing "fail", and wait for the gate before the ones
+	// containing "wait".
+	private static class RecordingStatementExecutor implements SpoolingStatementExecutor {
+
+		final List<String> statements = Lists.newCopyOnWriteArrayList();
+
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		volatile Thread thread;
+
+		@Override
+		public void executeStatement(String sql) throws SQLException {
+			thread = Thread.currentThread();
+			if (sql.contains("wait")) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new SQLException(e);
+				}
+			}
+			if (sql.contains("fail")) {
+				throw new SQLException("Failed: " + sql);
+			}
+			statements.add(sql);
+		}
+
+		@Override
+		public void spool(File file, boolean append, char delimiter) {
+			statements.add("SPOOL " + file.getName());
+		}
+
+		@Override
+		public void spoolOff() {
+			statements.add("SPOOL OFF");
+		}
+
+	}
+
+	private RecordingStatementExecutor recordingStatementExecutor = new RecordingStatementExecutor();
+
+	private PipelinedStatementExecutor pipelinedStatementExecutor;
+
+	@After
+	public void tearDown() throws SQLException {
+		recordingStatementExecutor.gate.countDown();
+		pipelinedStatementExecutor.rollback();
+		pipelinedStatementExecutor.close();
+	}
+
+	@Test
+	public void executesTheStatementsInOrderOnItsThread() throws SQLException {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 4);
+		List<String> statements = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			statements.add("INSERT INTO t VALUES (" + i + ")");
+			pipelinedStatementExecutor.executeStatement(statements.get(i));
+		}
+		pipelinedStatementExecutor.flush();
+
+		assertEquals(statements, recordingStatementExecutor.statements);
+		assertNotSame(Thread.currentThread(), recordingStatementExecutor.thread);
+		assertEquals(100, pipelinedStatementExecutor.getCommittedStatementCount());
+	}
+
+	// The first statement is executing and the next two fill the queue: the
+	// fourth one waits for room.
+	@Test
+	public void blocksTheParserWhenTheQueueIsFull() throws Exception {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 2);
+		final AtomicInteger queuedStatementCount = new AtomicInteger();
+		Thread parser = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					pipelinedStatementExecutor.executeStatement("wait 1");
+					queuedStatementCount.incrementAndGet();
+					for (int i = 2; i <= 4; i++) {
+						while (i == 2 && recordingStatementExecutor.thread == null) {
+							Thread.yield();
+						}
+						pipelinedStatementExecutor.executeStatement("statement " + i);
+						queuedStatementCount.incrementAndGet();
+					}
+				} catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+		});
+		parser.start();
+
+		parser.join(200);
+		assertTrue(parser.isAlive());
+		assertEquals(3, queuedStatementCount.get());
+
+		recordingStatementExecutor.gate.countDown();
+		parser.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(parser.isAlive());
+		pipelinedStatementExecutor.flush();
+		assertEquals(ImmutableList.of("wait 1", "statement 2", "statement 3", "statement 4"), recordingStatementExecutor.statements);
+	}
+
+	@Test
+	public void stopsAtTheFirstFailure() throws SQLException {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 4);
+		pipelinedStatementExecutor.executeStatement("statement 1");
+		pipelinedStatementExecutor.executeStatement("fail 2");
+		pipelinedStatementExecutor.executeStatement("statement 3");
+		try {
+			pipelinedStatementExecutor.flush();
+			fail("The failure should be rethrown");
+		} catch (SQLException e) {
+			assertEquals("Failed: fail 2", e.getMessage());
+		}
+		try {
+			pipelinedStatementExecutor.executeStatement("statement 4");
+			fail("The failure should be rethrown");
+		} catch (SQLException e) {
+			assertEquals("Failed: fail 2", e.getMessage());
+		}
+
+		assertEquals(ImmutableList.of("statement 1"), recordingStatementExecutor.statements);
+	}
+
+	@Test
+	public void switchesTheSpoolInStatementOrder() throws Exception {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 4);
+		pipelinedStatementExecutor.executeStatement("wait 1");
+		pipelinedStatementExecutor.spool(new File("result.csv"), false, ',');
+		pipelinedStatementExecutor.executeStatement("statement 2");
+		recordingStatementExecutor.gate.countDown();
+		pipelinedStatementExecutor.spoolOff();
+
+		assertEquals(ImmutableList.of("wait 1", "SPOOL result.csv", "statement 2", "SPOOL OFF"), recordingStatementExecutor.statements);
+	}
+
+	// The spool file is closed even if the statements before failed.
+	@Test
+	public void switchesTheSpoolOffAfterAFailure() throws Exception {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 4);
+		pipelinedStatementExecutor.spool(new File("result.csv"), false, ',');
+		pipelinedStatementExecutor.executeStatement("fail 1");
+		pipelinedStatementExecutor.executeStatement("statement 2");
+		pipelinedStatementExecutor.spoolOff();
+
+		assertEquals(ImmutableList.of("SPOOL result.csv", "SPOOL OFF"), recordingStatementExecutor.statements);
+	}
+
+	// The statement executor has no transaction, the failure is dropped all
+	// the same.
+	@Test
+	public void forgetsTheFailureOnRollback() throws SQLException {
+		pipelinedStatementExecutor = PipelinedStatementExecutor.of(recordingStatementExecutor, 4);
+		pipelinedStatementExecutor.executeStatement("fail 1");
+		pipelinedStatementExecutor.rollback();
+		pipelinedStatementExecutor.executeStatement("statement 2");
+		pipelinedStatementExecutor.flush();
+
+		assertEquals(ImmutableList.of("statement 2"), recordingStatementExecutor.statements);
+	}
+
+}
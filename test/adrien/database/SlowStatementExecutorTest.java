@@ -0,0 +1,186 @@
+package adrien.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adrien.database.SlowStatementExecutor.SlowStatement;
+import adrien.database.jdbc.AsyncJDBCStatementExecutor;
+import adrien.database.jdbc.JDBCStatementExecutor;
+import adrien.database.jdbc.PlanExplainers;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class SlowStatementExecutorTest {
+
+	private H2TestDatabase database;
+
+	private Connection connection;
+
+	private Connection sideConnection;
+
+	private SlowStatementExecutor slowStatementExecutor;
+
+	@Before
+	public void setUp() throws SQLException {
+		database = H2TestDatabase.create("slow");
+		database.execute("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR(20))");
+		connection = database.getConnection();
+		sideConnection = database.connect();
+		slowStatementExecutor = SlowStatementExecutor.of(JDBCStatementExecutor.forConnection(connection), 2);
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		sideConnection.close();
+		database.drop();
+	}
+
+	@Test
+	public void keepsTheStatementsSlowerThanTheThreshold() throws SQLException {
+		slowStatementExecutor.setThreshold(50, TimeUnit.MILLISECONDS);
+		slowStatementExecutor.setSource("load.sql", 1);
+		slowStatementExecutor.executeStatement("INSERT INTO t VALUES (1, 'a')");
+		slowStatementExecutor.setSource("load.sql", 2);
+		slowStatementExecutor.executeStatement("SELECT PAUSE(100), name FROM t");
+		slowStatementExecutor.setSource("load.sql", 3);
+		slowStatementExecutor.executeStatement("INSERT INTO t VALUES (2, 'b')");
+
+		List<SlowStatement> slowStatements = slowStatementExecutor.getSlowStatements();
+		assertEquals(1, slowStatements.size());
+		SlowStatement slowStatement = slowStatements.get(0);
+		assertEquals("load.sql", slowStatement.getScript());
+		assertEquals(2, slowStatement.getLine());
+		assertEquals("SELECT PAUSE(100), name FROM t", slowStatement.getSQL());
+		assertTrue(slowStatement.getExecutionTime() >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertNull(slowStatement.getPlan());
+	}
+
+	// The division by zero fails once the pause is over.
+	@Test
+	public void keepsTheSlowStatementsWhichFail() {
+		slowStatementExecutor.setThreshold(50, TimeUnit.MILLISECONDS);
+		slowStatementExecutor.setSource("load.sql", 4);
+		try {
+			slowStatementExecutor.executeStatement("SELECT 1 / (PAUSE(100) - 100)");
+			fail("The statement should fail");
+		} catch (SQLException e) {
+			// Expected.
+		}
+
+		SlowStatement slowStatement = Iterables.getOnlyElement(slowStatementExecutor.getSlowStatements());
+		assertEquals(4, slowStatement.getLine());
+		assertTrue(slowStatement.getExecutionTime() >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertNotNull(slowStatement.getFailure());
+		assertEquals(CountingStatementExecutor.UNKNOWN, slowStatement.getRowsAffected());
+	}
+
+	@Test
+	public void measuresTheAsynchronousStatementsOnceTheyComplete() throws Exception {
+		AsyncJDBCStatementExecutor asyncStatementExecutor = AsyncJDBCStatementExecutor.of(JDBCStatementExecutor.forConnection(connection));
+		try {
+			SlowStatementExecutor slowStatementExecutor = SlowStatementExecutor.of(asyncStatementExecutor);
+			slowStatementExecutor.setThreshold(200, TimeUnit.MILLISECONDS);
+			slowStatementExecutor.setSource("load.sql", 1);
+			ListenableFuture<Long> fast = slowStatementExecutor.submitStatement("INSERT INTO t VALUES (1, 'a')");
+			slowStatementExecutor.setSource("load.sql", 2);
+			ListenableFuture<Long> slow = slowStatementExecutor.submitStatement("UPDATE t SET name = 'b' WHERE PAUSE(300) > 0");
+			assertEquals(Long.valueOf(1), fast.get());
+			assertEquals(Long.valueOf(1), slow.get());
+
+			SlowStatement slowStatement = Iterables.getOnlyElement(slowStatementExecutor.getSlowStatements());
+			assertEquals(2, slowStatement.getLine());
+			assertEquals(1, slowStatement.getRowsAffected());
+			assertNull(slowStatement.getFailure());
+		} finally {
+			asyncStatementExecutor.close();
+		}
+	}
+
+	@Test
+	public void keepsTheLastStatements() throws SQLException {
+		slowStatementExecutor.setThreshold(0, TimeUnit.NANOSECONDS);
+		for (int i = 1; i <= 5; i++) {
+			slowStatementExecutor.setSource("load.sql", i);
+			slowStatementExecutor.executeStatement("INSERT INTO t VALUES (" + i + ", 'a')");
+		}
+
+		List<SlowStatement> slowStatements = slowStatementExecutor.getSlowStatements();
+		assertEquals(2, slowStatements.size());
+		assertEquals("INSERT INTO t VALUES (4, 'a')", slowStatements.get(0).getSQL());
+		assertEquals(4, slowStatements.get(0).getLine());
+		assertEquals("INSERT INTO t VALUES (5, 'a')", slowStatements.get(1).getSQL());
+		assertEquals(1, slowStatements.get(1).getRowsAffected());
+	}
+
+	@Test
+	public void writesTheReportAtTheEndOfTheRun() throws Exception {
+		File reportFile = File.createTempFile("slow", ".txt");
+		try {
+			slowStatementExecutor.setThreshold(0, TimeUnit.NANOSECONDS);
+			slowStatementExecutor.setPlanExplainer(PlanExplainers.forConnection(sideConnection));
+			slowStatementExecutor.setReportFile(reportFile);
+			for (int i = 1; i <= 3; i++) {
+				slowStatementExecutor.setSource("load.sql", i);
+				slowStatementExecutor.executeStatement("INSERT INTO t VALUES (" + i + ", 'a')");
+			}
+			slowStatementExecutor.runEnded();
+
+			String report = Files.toString(reportFile, StandardCharsets.UTF_8);
+			assertTrue(report, report.startsWith("3 of 3 statements slower than 0 ms (the last 2 are kept)"));
+			assertTrue(report, report.contains("#1 "));
+			assertTrue(report, report.contains(" load.sql:2 "));
+			assertTrue(report, report.contains("#2 "));
+			assertTrue(report, report.contains(" load.sql:3 "));
+			assertTrue(report, !report.contains(" load.sql:1 "));
+			assertTrue(report, report.contains("1 rows affected"));
+			assertTrue(report, report.contains("Plan:"));
+			assertTrue(slowStatementExecutor.getSlowStatements().isEmpty());
+		} finally {
+			reportFile.delete();
+		}
+	}
+
+	@Test
+	public void explainsTheQueriesAndTheDMLStatements() throws SQLException {
+		PlanExplainer planExplainer = PlanExplainers.forConnection(sideConnection);
+		assertNotNull(planExplainer);
+
+		String plan = planExplainer.explain("SELECT name FROM t WHERE id = 1");
+		assertNotNull(plan);
+		assertTrue(plan, plan.contains("PRIMARY_KEY"));
+		assertNotNull(planExplainer.explain("UPDATE t SET name = 'b' WHERE id = 1"));
+		assertNull(planExplainer.explain("CREATE TABLE u (id INT)"));
+	}
+
+	// The temporary table is not seen by the side connection.
+	@Test
+	public void keepsThePlanOfTheSlowStatements() throws SQLException {
+		slowStatementExecutor.setThreshold(0, TimeUnit.NANOSECONDS);
+		slowStatementExecutor.setPlanExplainer(PlanExplainers.forConnection(sideConnection));
+		slowStatementExecutor.executeStatement("CREATE LOCAL TEMPORARY TABLE tmp (id INT)");
+		slowStatementExecutor.executeStatement("SELECT name FROM t");
+		slowStatementExecutor.executeStatement("SELECT id FROM tmp");
+
+		List<SlowStatement> slowStatements = slowStatementExecutor.getSlowStatements();
+		assertEquals(2, slowStatements.size());
+		assertTrue(slowStatements.get(0).getPlan(), slowStatements.get(0).getPlan().contains("\"T\""));
+		assertTrue(slowStatements.get(1).getPlan(), slowStatements.get(1).getPlan().startsWith("Unable to explain the statement: "));
+	}
+
+}